@@ -4,8 +4,10 @@ import com.example.rl.RLAgent;
 import com.example.rl.State;
 import com.example.rl.Action;
 import com.example.util.PacketParser;
+import com.example.util.PacketRecord;
 import com.example.logging.AlertLogger;
 import com.example.detection.AnomalyDetector;
+import com.example.flow.FlowVerdictCache;
 
 import java.util.Map;
 import java.util.HashMap;
@@ -20,6 +22,8 @@ public class IDPSController {
     private Consumer<Map<String, Object>> statsCallback;
     private final AlertLogger alertLogger;
     private AnomalyDetector anomalyDetector;
+    private final FlowVerdictCache<Action> verdictCache = new FlowVerdictCache<>();
+    private final PacketRecord cacheKey = new PacketRecord();
     
     public IDPSController() {
         this.rlAgent = new RLAgent();
@@ -54,11 +58,18 @@ public class IDPSController {
             String destPort = validateField(packetData.get("destPort"), "0");
             String destIP = validateField(packetData.get("destIP"), "0.0.0.0");
             
-            // Créer l'état pour le RL
-            State currentState = new State(protocol, srcPort, srcIP, destPort, destIP);
-            
-            // Obtenir la décision du RL
-            Action action = rlAgent.getAction(currentState);
+            // Obtenir la décision du RL, réutilisée pour le reste du flux tant qu'elle est fraîche
+            Action action;
+            synchronized (verdictCache) {
+                PacketRecord.fromMap(packetData, cacheKey);
+                action = verdictCache.lookupAction(cacheKey);
+                if (action != null) {
+                    rlAgent.recordDecision(action);
+                } else {
+                    action = rlAgent.getAction(new State(protocol, srcPort, srcIP, destPort, destIP));
+                    verdictCache.storeAction(cacheKey, action);
+                }
+            }
             boolean allow = action.isAllowed();
             
             notifyDecision(protocol, srcIP, destIP, destPort, allow, action);
@@ -71,6 +82,14 @@ public class IDPSController {
         }
     }
 
+    /**
+     * Record form of {@link #processPacket(Map)}. The RL state is built from
+     * strings, so the record is converted back to its map form here.
+     */
+    public boolean processPacket(PacketRecord packet) {
+        return processPacket(packet != null ? packet.toMap() : null);
+    }
+
     private String validateField(String value, String defaultValue) {
         return value != null && !value.trim().isEmpty() ? value : defaultValue;
     }
@@ -132,6 +151,9 @@ public class IDPSController {
         double accuracy = totalPackets > 0 ? 
             ((double) (allowedCount + blockedCount) / totalPackets) * 100 : 0.0;
         stats.put("accuracy", accuracy);
+        synchronized (verdictCache) {
+            stats.put("verdictCache", verdictCache.getStatistics());
+        }
         
         return stats;
     }
@@ -0,0 +1,135 @@
+package com.example.concurrent;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor wrapper that counts submitted, running and completed tasks so
+ * {@link PoolManager} can report pool sizes and utilization.
+ */
+public final class MeteredExecutor extends AbstractExecutorService {
+    private final String name;
+    private final ExecutorService delegate;
+    // Fixed thread count, or -1 for a thread-per-task (virtual) executor
+    private final int maxThreads;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    MeteredExecutor(String name, ExecutorService delegate, int maxThreads) {
+        this.name = name;
+        this.delegate = delegate;
+        this.maxThreads = maxThreads;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.incrementAndGet();
+        delegate.execute(() -> {
+            int running = active.incrementAndGet();
+            peakActive.accumulateAndGet(running, Math::max);
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                failed.incrementAndGet();
+                throw e;
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+    }
+
+    // submit() wraps tasks in a FutureTask, which keeps the exception instead of throwing it
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable task, T value) {
+        return new MeteredTask<>(Executors.callable(task, value));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> task) {
+        return new MeteredTask<>(task);
+    }
+
+    /** Future that counts the task as failed when it completes exceptionally. */
+    private final class MeteredTask<T> extends FutureTask<T> {
+        MeteredTask(Callable<T> task) {
+            super(task);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failed.incrementAndGet();
+            super.setException(t);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVirtual() {
+        return maxThreads < 0;
+    }
+
+    /**
+     * Snapshot of the pool: thread limit (-1 when unbounded), live threads,
+     * running, peak and queued tasks, totals, and utilization (running tasks
+     * over the thread limit; 0 for unbounded pools).
+     */
+    public Map<String, Number> getMetrics() {
+        int running = active.get();
+        long done = completed.get();
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("maxThreads", maxThreads);
+        metrics.put("poolSize", delegate instanceof ThreadPoolExecutor
+            ? ((ThreadPoolExecutor) delegate).getPoolSize() : running);
+        metrics.put("active", running);
+        metrics.put("peakActive", peakActive.get());
+        metrics.put("queued", Math.max(0, submitted.get() - done - running));
+        metrics.put("submitted", submitted.get());
+        metrics.put("completed", done);
+        metrics.put("failed", failed.get());
+        metrics.put("utilization", maxThreads > 0 ? (double) running / maxThreads : 0.0);
+        return metrics;
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.concurrent;
+
+/**
+ * What a producer does with a packet when the consumers have fallen behind.
+ * Every packet not admitted is counted on the ring it was headed for.
+ */
+public enum OverloadPolicy {
+    /** Wait for room. Nothing is dropped here, but a live capture stalls and the kernel drops instead. */
+    BLOCK,
+    /** Drop the arriving packet when the ring is full. */
+    DROP_NEWEST,
+    /**
+     * Evict the oldest queued packet to make room for the arriving one. If a
+     * consumer has already taken that packet, nothing can be evicted and the
+     * arriving packet is dropped as with DROP_NEWEST.
+     */
+    DROP_OLDEST,
+    /**
+     * Above the ring's high watermark, admit only one in {@code sampleRate} bulk
+     * payload packets; control packets (TCP SYN/FIN/RST, ICMP, anything without
+     * payload) are always admitted, evicting the oldest packet if the ring is full.
+     */
+    SAMPLED;
+
+    /**
+     * Parses a policy name such as "drop-oldest"; unknown names fall back to DROP_NEWEST.
+     */
+    public static OverloadPolicy fromString(String name) {
+        if (name != null) {
+            String key = name.trim().toUpperCase().replace('-', '_');
+            for (OverloadPolicy policy : values()) {
+                if (policy.name().equals(key)) {
+                    return policy;
+                }
+            }
+        }
+        return DROP_NEWEST;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.concurrent;
+
+import com.example.util.PacketRecord;
+
+/**
+ * Consecutive packets taken from a {@link PacketRing} in one go with
+ * {@link PacketRing#drainTo}. A consumer keeps one batch object and reuses it;
+ * the records belong to the ring and must not be kept after {@link #release()}.
+ */
+public final class PacketBatch {
+    private PacketRing ring;
+    private long first;
+    private int count;
+
+    void set(PacketRing ring, long first, int count) {
+        this.ring = ring;
+        this.first = first;
+        this.count = count;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public PacketRecord get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of batch of " + count);
+        }
+        return ring.get(first + index);
+    }
+
+    /**
+     * Hands every slot in the batch back to the producer and empties the batch.
+     */
+    public void release() {
+        if (count > 0) {
+            ring.release(first, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.example.concurrent;
+
+import com.example.util.PacketRecord;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded single-producer / multi-consumer ring of preallocated {@link PacketRecord}
+ * slots, replacing the unbounded LinkedBlockingQueue between producer and consumers.
+ * Nothing is allocated per packet and no lock is taken: each slot carries a sequence
+ * number that tells whether it is free, published or being consumed. Publishing
+ * swaps the producer's record with the free slot's, so records are never copied.
+ *
+ * Producer side (one thread), see {@link PacketSink}:
+ * <pre>
+ *   PacketRecord record = ring.claim();
+ *   if (decodeInto(record)) ring.offer(policy);  // publish() waits, tryPublish() drops
+ *   ...
+ *   ring.flush();                                 // when idle or done
+ * </pre>
+ * While consumers are busy, packets are made visible in batches of up to
+ * {@link #setPublishBatch maxPackets}, or once the oldest pending packet has waited
+ * {@code maxDelayMicros}; producers must call {@link #flush()} when they run out of input.
+ *
+ * Consumer side (any number of threads, each packet goes to exactly one of them):
+ * <pre>
+ *   while (ring.drainTo(batch, 64) > 0) {   // 0 once the ring is halted
+ *       for (int i = 0; i < batch.size(); i++) process(batch.get(i));
+ *       batch.release();
+ *   }
+ * </pre>
+ * or one packet at a time with {@link #next()} and {@link #release(long)}.
+ * A slot's record is reused after release, so consumers must not keep a reference to it.
+ */
+public final class PacketRing implements PacketSink {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_SAMPLE_RATE = 8;
+    public static final int DEFAULT_PUBLISH_BATCH = 32;
+    public static final long DEFAULT_PUBLISH_DELAY_MICROS = 100;
+
+    private final PacketRecord[] slots;
+    private final int mask;
+    // seq == n: free for the n-th publish; n + 1: holds the n-th packet;
+    // n + capacity: released, free for publish n + capacity
+    private final AtomicLongArray sequences;
+    private final WaitStrategy waitStrategy;
+    // Filled by the producer, then swapped into a free slot on publish
+    private PacketRecord staging = new PacketRecord();
+
+    // tail: next slot the producer fills; published: slots visible to consumers
+    private long tail;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile boolean halted;
+
+    // Producer-side batching
+    private int publishBatch = DEFAULT_PUBLISH_BATCH;
+    private long publishDelayNanos = DEFAULT_PUBLISH_DELAY_MICROS * 1000L;
+    private long pendingSince;
+
+    // Overload accounting; see OverloadPolicy
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong sampledOut = new AtomicLong();
+    private final int highWatermark;
+    private volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+    private long sampleCounter;
+
+    public PacketRing(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Ring capacity must be at least 2: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new PacketRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new PacketRecord();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.highWatermark = size / 2;
+    }
+
+    public PacketRing() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    // ----- producer -----
+
+    @Override
+    public PacketRecord claim() {
+        return halted ? null : staging;
+    }
+
+    @Override
+    public boolean offer(OverloadPolicy policy) {
+        PacketRecord displaced = admit(staging, policy);
+        if (displaced == null) {
+            return false;
+        }
+        staging = displaced;
+        return true;
+    }
+
+    /**
+     * Publishes {@code record} under {@code policy}, as {@link #exchange} does, and
+     * counts it if it is not admitted. Producer thread only.
+     */
+    PacketRecord admit(PacketRecord record, OverloadPolicy policy) {
+        if (policy == OverloadPolicy.BLOCK) {
+            return exchange(record, true);
+        }
+        boolean control = isControl(record);
+        if (policy == OverloadPolicy.SAMPLED && !control && getOccupancy() >= highWatermark
+            && sampleCounter++ % sampleRate != 0) {
+            sampledOut.incrementAndGet();
+            return null;
+        }
+        PacketRecord displaced = exchange(record, false);
+        boolean evict = policy == OverloadPolicy.DROP_OLDEST
+            || (policy == OverloadPolicy.SAMPLED && control);
+        // A consumer may free the slot between our attempts, so a failed eviction is retried once
+        for (int attempt = 0; displaced == null && evict && !halted && attempt < 2; attempt++) {
+            evictOldest();
+            displaced = exchange(record, false);
+        }
+        if (displaced == null && !halted) {
+            rejected.incrementAndGet();
+        }
+        return displaced;
+    }
+
+    /**
+     * Packets worth keeping under load: connection control, ICMP, and anything
+     * without payload. The rest is bulk data that sampling may skip.
+     */
+    static boolean isControl(PacketRecord record) {
+        int protocol = record.getProtocol();
+        if (protocol == PacketRecord.PROTO_TCP) {
+            int control = PacketRecord.TCP_SYN | PacketRecord.TCP_FIN | PacketRecord.TCP_RST;
+            return (record.getTcpFlags() & control) != 0 || !record.hasPayload();
+        }
+        return protocol == PacketRecord.PROTO_ICMP || !record.hasPayload();
+    }
+
+    /**
+     * Takes the packet in the slot the producer fills next away from the consumers
+     * and frees the slot. That packet is the oldest one queued, unless a consumer
+     * already took it and has not released it yet: nothing is evicted then, since
+     * no other slot would make room, and the arriving packet is dropped instead.
+     */
+    private boolean evictOldest() {
+        long position = tail - slots.length;
+        int slot = (int) position & mask;
+        if (sequences.get(slot) == position + 1 && head.compareAndSet(position, position + 1)) {
+            release(position);
+            evicted.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts {@code record} in the next slot, returning the record the slot held
+     * before, which now belongs to the producer. The slot becomes visible to
+     * consumers with the rest of its batch. Returns null, leaving {@code record}
+     * with the caller, if the ring is halted or if it is full and {@code wait} is
+     * false. Producer thread only.
+     */
+    PacketRecord exchange(PacketRecord record, boolean wait) {
+        int slot = (int) tail & mask;
+        for (int attempt = 0; ; attempt++) {
+            if (halted) {
+                return null;
+            }
+            if (sequences.get(slot) == tail) {
+                break;
+            }
+            // Consumers can only free slots they can see
+            flush();
+            if (!wait) {
+                return null;
+            }
+            waitStrategy.idle(attempt);
+        }
+        PacketRecord displaced = slots[slot];
+        slots[slot] = record;
+        long pending = ++tail - published.get();
+        // Batching only pays off under load: idle consumers get the packet right away
+        if (pending >= publishBatch || published.get() == head.get()) {
+            flush();
+        } else if (pending == 1) {
+            pendingSince = System.nanoTime();
+        } else if ((pending & 7) == 0 && System.nanoTime() - pendingSince >= publishDelayNanos) {
+            // The clock is only read every few packets; it costs about as much as a publish
+            flush();
+        }
+        return displaced;
+    }
+
+    /**
+     * Makes every filled slot visible to consumers. Producer thread only.
+     */
+    @Override
+    public void flush() {
+        long from = published.get();
+        for (long position = from; position < tail; position++) {
+            // Release store: a consumer reading the sequence also sees the slot's record
+            sequences.lazySet((int) position & mask, position + 1);
+        }
+        if (from != tail) {
+            published.lazySet(tail);
+        }
+    }
+
+    /**
+     * Flushes if the oldest pending packet has waited past the publish delay.
+     * Producer thread only.
+     */
+    void flushIfDue(long now) {
+        if (tail != published.get() && now - pendingSince >= publishDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Publishes in batches of up to {@code maxPackets}, or earlier once the oldest
+     * pending packet has waited {@code maxDelayMicros}. A batch of 1 publishes every
+     * packet immediately. Call before producing.
+     */
+    public void setPublishBatch(int maxPackets, long maxDelayMicros) {
+        if (maxPackets < 1) {
+            throw new IllegalArgumentException("Publish batch must be at least 1: " + maxPackets);
+        }
+        // Leave consumers something to drain while the producer fills the rest
+        this.publishBatch = Math.min(maxPackets, Math.max(1, slots.length / 2));
+        this.publishDelayNanos = Math.max(0, maxDelayMicros) * 1000L;
+    }
+
+    // ----- consumers -----
+
+    /**
+     * Takes the next published packet for this consumer, waiting while the ring is empty.
+     * @return the packet's sequence, or -1 once the ring is halted
+     */
+    public long next() {
+        for (int attempt = 0; ; attempt++) {
+            long position = head.get();
+            long available = sequences.get((int) position & mask);
+            if (available == position + 1) {
+                if (head.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                attempt = 0;
+            } else if (halted) {
+                return -1;
+            } else {
+                waitStrategy.idle(attempt);
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code maxCount} consecutive published packets with a single CAS,
+     * waiting while the ring is empty. Release them with {@link PacketBatch#release()}.
+     * @return the number of packets in {@code batch}, or 0 once the ring is halted
+     */
+    public int drainTo(PacketBatch batch, int maxCount) {
+        for (int attempt = 0; ; attempt++) {
+            long position = head.get();
+            int count = 0;
+            while (count < maxCount
+                   && sequences.get((int) (position + count) & mask) == position + count + 1) {
+                count++;
+            }
+            if (count > 0) {
+                if (head.compareAndSet(position, position + count)) {
+                    batch.set(this, position, count);
+                    return count;
+                }
+                attempt = 0;
+            } else if (halted) {
+                batch.set(this, position, 0);
+                return 0;
+            } else {
+                waitStrategy.idle(attempt);
+            }
+        }
+    }
+
+    public PacketRecord get(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * Returns the slot taken with {@link #next()} to the producer.
+     */
+    public void release(long sequence) {
+        sequences.set((int) sequence & mask, sequence + slots.length);
+    }
+
+    /**
+     * Returns {@code count} slots taken with {@link #drainTo} to the producer.
+     */
+    void release(long first, int count) {
+        for (int i = 0; i < count; i++) {
+            long sequence = first + i;
+            sequences.lazySet((int) sequence & mask, sequence + slots.length);
+        }
+    }
+
+    /**
+     * Wakes every waiting thread: {@link #claim()} returns null, publishing fails and
+     * {@link #next()} returns -1.
+     */
+    public void halt() {
+        halted = true;
+    }
+
+    @Override
+    public boolean isHalted() {
+        return halted;
+    }
+
+    // ----- counters -----
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /** Packets published but not yet taken by a consumer. */
+    public int getOccupancy() {
+        return (int) Math.max(0, published.get() - head.get());
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    /** Packets lost to overload, for any reason. */
+    public long getDrops() {
+        return rejected.get() + evicted.get() + sampledOut.get();
+    }
+
+    /** Arriving packets dropped because the ring was full. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /** Queued packets evicted to make room for newer ones. */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /** Bulk packets skipped by sampled admission. */
+    public long getSampledOut() {
+        return sampledOut.get();
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Under {@link OverloadPolicy#SAMPLED}, one bulk packet in {@code sampleRate} is
+     * admitted above the high watermark.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+}
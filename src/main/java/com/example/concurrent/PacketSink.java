@@ -0,0 +1,38 @@
+package com.example.concurrent;
+
+import com.example.util.PacketRecord;
+
+/**
+ * Producer side of the packet pipeline. The producer decodes into the record
+ * returned by {@link #claim()} and hands it over with {@link #offer(OverloadPolicy)};
+ * afterwards {@link #claim()} gives the record to fill next. A record that is not
+ * admitted is simply reused. Admitted packets may be held back to be published
+ * in a batch, so a producer calls {@link #flush()} whenever it runs out of input.
+ * Only one thread may produce into a sink.
+ */
+public interface PacketSink {
+    /** Record to decode the next packet into, or null once the sink is halted. */
+    PacketRecord claim();
+
+    /**
+     * Hands the claimed record over, applying {@code policy} if the consumers are
+     * behind. Returns false if the packet was not admitted (dropped, sampled out,
+     * or the sink is halted); drops are counted by the sink.
+     */
+    boolean offer(OverloadPolicy policy);
+
+    /** Hands the claimed record over, waiting for room. False once the sink is halted. */
+    default boolean publish() {
+        return offer(OverloadPolicy.BLOCK);
+    }
+
+    /** Hands the claimed record over if there is room right now, otherwise drops it. */
+    default boolean tryPublish() {
+        return offer(OverloadPolicy.DROP_NEWEST);
+    }
+
+    /** Makes every admitted packet visible to the consumers. */
+    void flush();
+
+    boolean isHalted();
+}
@@ -1,38 +1,89 @@
 package com.example.concurrent;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
+/**
+ * Shared executors. CPU-bound work (detection consumers, capture, rule
+ * processing) runs on platform pools sized from the available processors.
+ * Blocking work (DB, GUI helpers, email, log I/O, observer notifications) runs
+ * on a virtual thread per task, or on small fixed platform pools when the
+ * {@value #MODE_PROPERTY} system property is "platform".
+ */
 public final class PoolManager {
-    // 4 threads for DB
-    private static final ExecutorService EngineIds =
-    Executors.newFixedThreadPool(5);
+    private static final Logger LOGGER = Logger.getLogger(PoolManager.class.getName());
 
-    // 4 threads for DB
-    private static final ExecutorService dbPool =
-        Executors.newFixedThreadPool(4);
+    /** "virtual" (default) or "platform", for the blocking pools */
+    public static final String MODE_PROPERTY = "ids.executor.mode";
 
-    // 4 threads for GUI helpers
-    private static final ExecutorService guiPool =
-        Executors.newFixedThreadPool(4);
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    private static final boolean VIRTUAL =
+        !"platform".equalsIgnoreCase(System.getProperty(MODE_PROPERTY, "virtual"));
 
-    // 4 threads for rule processing
-    private static final ExecutorService rulePool =
-        Executors.newFixedThreadPool(4);
+    // One thread per detection consumer, plus the capture producer
+    private static final MeteredExecutor EngineIds = platform("engine", CPUS + 2);
+
+    // Blocking DB calls
+    private static final MeteredExecutor dbPool = blocking("db", 4);
+
+    // GUI helpers
+    private static final MeteredExecutor guiPool = blocking("gui", 4);
+
+    // CPU-bound rule processing
+    private static final MeteredExecutor rulePool = platform("rule", CPUS);
+
+    // Email, log I/O and observer notifications
+    private static final MeteredExecutor ioPool = blocking("io", 4);
 
     private PoolManager() {} // no instances
     public static ExecutorService EngineIds()     { return EngineIds;     }
     public static ExecutorService dbPool()        { return dbPool;        }
     public static ExecutorService guiPool()       { return guiPool;       }
     public static ExecutorService rulePool()      { return rulePool;      }
+    public static ExecutorService ioPool()        { return ioPool;        }
+
+    public static boolean isVirtualMode() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Single-threaded executor for blocking work that must stay in order, such as
+     * appending to a log file. Runs on a virtual thread in virtual mode. Not
+     * tracked by {@link #getMetrics()}; the caller shuts it down.
+     */
+    public static ExecutorService newSerialExecutor(String name) {
+        ThreadFactory factory = VIRTUAL ? Thread.ofVirtual().name("ids-" + name).factory()
+                                        : namedPlatformThreads(name);
+        return Executors.newSingleThreadExecutor(factory);
+    }
+
+    /**
+     * Per-pool size and utilization snapshot, keyed by pool name.
+     */
+    public static Map<String, Map<String, Number>> getMetrics() {
+        Map<String, Map<String, Number>> metrics = new LinkedHashMap<>();
+        for (MeteredExecutor pool : new MeteredExecutor[] {EngineIds, rulePool, dbPool, guiPool, ioPool}) {
+            metrics.put(pool.getName(), pool.getMetrics());
+        }
+        return metrics;
+    }
 
     public static void shutdownAll() {
+        LOGGER.info("Executor metrics at shutdown: " + getMetrics());
         try {
 
             dbPool.shutdown();
             guiPool.shutdown();
             rulePool.shutdown();
+            ioPool.shutdown();
             EngineIds.shutdown();
             if(!EngineIds.awaitTermination(5, TimeUnit.SECONDS)) {
                 EngineIds.shutdownNow();
@@ -46,14 +97,40 @@ public final class PoolManager {
             if (!rulePool.awaitTermination(5, TimeUnit.SECONDS)) {
                 rulePool.shutdownNow();
             }
+            if (!ioPool.awaitTermination(5, TimeUnit.SECONDS)) {
+                ioPool.shutdownNow();
+            }
             //clear interrupt flag catch do that 
         } catch (InterruptedException e) {
             dbPool.shutdownNow();
             guiPool.shutdownNow();
             EngineIds.shutdownNow();
             rulePool.shutdownNow();
+            ioPool.shutdownNow();
             //we need to throw it again to make the interrupt
             Thread.currentThread().interrupt();
         }
     }
+
+    private static MeteredExecutor platform(String name, int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                                         new LinkedBlockingQueue<>(), namedPlatformThreads(name));
+        return new MeteredExecutor(name, pool, threads);
+    }
+
+    private static MeteredExecutor blocking(String name, int platformThreads) {
+        if (VIRTUAL) {
+            ThreadFactory factory = Thread.ofVirtual().name("ids-" + name + "-", 0).factory();
+            return new MeteredExecutor(name, Executors.newThreadPerTaskExecutor(factory), -1);
+        }
+        return platform(name, platformThreads);
+    }
+
+    private static ThreadFactory namedPlatformThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "ids-" + name + "-" + counter.incrementAndGet());
+            return thread;
+        };
+    }
 }
@@ -1,10 +1,12 @@
 package com.example.concurrent;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class RuleQueue {
-    private static final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    // Bounded so a burst of rule updates blocks producers instead of growing without limit
+    public static final int CAPACITY = 10_000;
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(CAPACITY);
 
     private RuleQueue() {} 
 
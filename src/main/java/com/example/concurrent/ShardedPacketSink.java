@@ -0,0 +1,76 @@
+package com.example.concurrent;
+
+import com.example.util.PacketRecord;
+
+/**
+ * Routes each packet to one of several {@link PacketRing}s by its symmetric flow
+ * hash ({@link PacketRecord#flowHash()}), so both directions of a flow always
+ * reach the same consumer and per-flow state (flow table, verdict cache, stream
+ * reassembly) can stay confined to that consumer's thread. State keyed by
+ * address spans many flows, hence several shards, and must be shared between
+ * the consumers instead. Each ring has exactly one consumer.
+ */
+public final class ShardedPacketSink implements PacketSink {
+    private final PacketRing[] rings;
+    private PacketRecord staging = new PacketRecord();
+    private int offers;
+
+    // Rings that stop receiving packets are checked this often for an overdue batch
+    private static final int FLUSH_SWEEP_INTERVAL = 64;
+
+    public ShardedPacketSink(PacketRing[] rings) {
+        if (rings.length == 0) {
+            throw new IllegalArgumentException("At least one ring is required");
+        }
+        this.rings = rings.clone();
+    }
+
+    /**
+     * Shard for a packet among {@code shards} consumers.
+     */
+    public static int shardOf(PacketRecord record, int shards) {
+        return Math.floorMod(record.flowHash(), shards);
+    }
+
+    @Override
+    public PacketRecord claim() {
+        return isHalted() ? null : staging;
+    }
+
+    @Override
+    public boolean offer(OverloadPolicy policy) {
+        PacketRecord displaced = ring().admit(staging, policy);
+        if (++offers % FLUSH_SWEEP_INTERVAL == 0) {
+            long now = System.nanoTime();
+            for (PacketRing ring : rings) {
+                ring.flushIfDue(now);
+            }
+        }
+        if (displaced == null) {
+            return false;
+        }
+        staging = displaced;
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        for (PacketRing ring : rings) {
+            ring.flush();
+        }
+    }
+
+    @Override
+    public boolean isHalted() {
+        for (PacketRing ring : rings) {
+            if (ring.isHalted()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private PacketRing ring() {
+        return rings.length == 1 ? rings[0] : rings[shardOf(staging, rings.length)];
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a {@link PacketRing}: a consumer for the next packet, or
+ * the producer for a free slot. Called with the number of attempts so far, so a
+ * strategy can back off as the wait gets longer.
+ */
+public enum WaitStrategy {
+    /** Spins on the CPU; lowest latency, burns a core per waiting thread. */
+    BUSY_SPIN {
+        @Override
+        public void idle(int attempt) {
+            Thread.onSpinWait();
+        }
+    },
+    /** Spins briefly, then yields the CPU to other runnable threads. */
+    YIELD {
+        @Override
+        public void idle(int attempt) {
+            if (attempt < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    },
+    /** Spins, yields, then parks for short periods; cheapest when traffic is idle. */
+    PARK {
+        @Override
+        public void idle(int attempt) {
+            if (attempt < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (attempt < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50_000L;
+
+    public abstract void idle(int attempt);
+
+    /**
+     * Parses a strategy name such as "park" or "busy-spin"; unknown names fall back to PARK.
+     */
+    public static WaitStrategy fromString(String name) {
+        if (name != null) {
+            String key = name.trim().toUpperCase().replace('-', '_');
+            for (WaitStrategy strategy : values()) {
+                if (strategy.name().equals(key)) {
+                    return strategy;
+                }
+            }
+        }
+        return PARK;
+    }
+}
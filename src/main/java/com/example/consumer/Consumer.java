@@ -4,60 +4,151 @@ import com.example.detection.AnomalyDetector;
 import com.example.detection.Alert;
 import com.example.logging.AlertLogger;
 import com.example.detection.RuleEngine;
-import com.example.util.PacketParser;
+import com.example.flow.FlowTable;
+import com.example.flow.FlowVerdictCache;
+import com.example.flow.OverlapPolicy;
+import com.example.flow.StreamReassembler;
+import com.example.util.Rule;
+import com.example.util.PacketRecord;
+import com.example.concurrent.PacketBatch;
+import com.example.concurrent.PacketRing;
 import com.example.designpatterns.StrategyPattern.ConsumerStrategy;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.io.IOException;
 
 public class Consumer implements ConsumerStrategy {
+    private static final int BATCH_SIZE = 64;
+
     private final AnomalyDetector anomalyDetector;
     private final AlertLogger alertLogger;
     private final RuleEngine ruleEngine;
+    private final FlowTable flowTable;
+    private final FlowVerdictCache<Void> verdictCache;
+    // Réassemblage TCP optionnel : -Dids.reassembly=true, -Dids.reassembly.overlap=first|last
+    private final StreamReassembler reassembler;
+    private final PacketRecord streamWindow = new PacketRecord();
+    private final boolean ownsLogger;
     private volatile boolean running;
 
     public Consumer() {
-        this.anomalyDetector = new AnomalyDetector();
+        this(createLogger(), true);
+    }
+
+    /**
+     * Consumer writing to a logger shared with other consumers; the caller closes it.
+     * The rule engine and flow table are this consumer's own, so their state is
+     * only touched by its thread.
+     */
+    public Consumer(AlertLogger alertLogger) {
+        this(alertLogger, new AnomalyDetector(), false);
+    }
+
+    /**
+     * Consumer of one shard among several: packets are sharded by flow, but a
+     * scan, brute force or flood spans many flows, so every shard must feed the
+     * same {@code anomalyDetector}.
+     */
+    public Consumer(AlertLogger alertLogger, AnomalyDetector anomalyDetector) {
+        this(alertLogger, anomalyDetector, false);
+    }
+
+    private Consumer(AlertLogger alertLogger, boolean ownsLogger) {
+        this(alertLogger, new AnomalyDetector(), ownsLogger);
+    }
+
+    private Consumer(AlertLogger alertLogger, AnomalyDetector anomalyDetector, boolean ownsLogger) {
+        this.anomalyDetector = anomalyDetector;
+        this.alertLogger = alertLogger;
+        this.ownsLogger = ownsLogger;
+        this.ruleEngine = new RuleEngine();
+        this.flowTable = new FlowTable();
+        this.verdictCache = new FlowVerdictCache<>();
+        this.ruleEngine.setFlowTable(flowTable);
+        this.reassembler = Boolean.getBoolean("ids.reassembly")
+            ? new StreamReassembler(flowTable,
+                  OverlapPolicy.fromString(System.getProperty("ids.reassembly.overlap")))
+            : null;
+        this.running = true;
+    }
+
+    private static AlertLogger createLogger() {
         try {
-            this.alertLogger = new AlertLogger();
+            return new AlertLogger();
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize AlertLogger", e);
         }
-        this.ruleEngine = new RuleEngine();
-        this.running = true;
     }
 
     @Override
-    public void start(BlockingQueue<String> queue) {
-        try {
-            while (running) {
-                String packetStr = queue.take();
-                Map<String, String> packet = PacketParser.parsePacket(packetStr);
-                if (packet != null) {
-                    processPacket(packet);
-                }
+    public void start(PacketRing ring) {
+        PacketBatch batch = new PacketBatch();
+        while (running && ring.drainTo(batch, BATCH_SIZE) > 0) {
+            try {
+                processBatch(batch);
+            } finally {
+                // Les slots sont réutilisés par le producteur après libération
+                batch.release();
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         }
     }
 
-    private void processPacket(Map<String, String> packet) {
+    private void processBatch(PacketBatch batch) {
+        // Une seule lecture d'horloge par lot pour les fenêtres de détection
+        anomalyDetector.advanceClock(batch.get(batch.size() - 1).getTimestampNanos());
+        // Une passe par détecteur : les règles puis les anomalies restent chaudes dans le cache
+        // Suivi des connexions d'abord : les options flow: des règles en dépendent
+        for (int i = 0; i < batch.size(); i++) {
+            flowTable.track(batch.get(i));
+        }
+
         // Vérifier les règles Snort
-        if (ruleEngine.matches(packet)) {
-            alertLogger.logAlert(ruleEngine.getLastMatchedRule(), packet);
+        for (int i = 0; i < batch.size(); i++) {
+            PacketRecord packet = batch.get(i);
+            Rule packetRule = null;
+            if (ruleEngine.matches(packet, verdictCache)) {
+                packetRule = ruleEngine.getLastMatchedRule();
+                alertLogger.logAlert(packetRule, packet.toMap());
+            }
+            // Signatures à cheval sur plusieurs segments TCP
+            if (reassembler != null && reassembler.accept(packet, streamWindow)
+                    && ruleEngine.matchesStream(streamWindow)) {
+                Rule streamRule = ruleEngine.getLastMatchedRule();
+                if (streamRule != packetRule && reassembler.shouldReport(streamWindow, streamRule)) {
+                    alertLogger.logAlert(streamRule, streamWindow.toMap());
+                }
+            }
         }
 
-        // Vérifier les anomalies
-        Alert anomaly = anomalyDetector.detectAnomaly(packet);
-        if (anomaly != null) {
-            alertLogger.logAnomaly(anomaly, packet);
+        // Vérifier les anomalies ; le détecteur peut être partagé entre les shards,
+        // son verrou est pris une fois par lot plutôt qu'à chaque paquet
+        synchronized (anomalyDetector) {
+            for (int i = 0; i < batch.size(); i++) {
+                PacketRecord packet = batch.get(i);
+                Alert anomaly = anomalyDetector.detectAnomaly(packet);
+                if (anomaly != null) {
+                    alertLogger.logAnomaly(anomaly, packet.toMap());
+                }
+            }
         }
     }
 
+    public FlowTable getFlowTable() {
+        return flowTable;
+    }
+
+    public FlowVerdictCache<Void> getVerdictCache() {
+        return verdictCache;
+    }
+
+    /** The stream reassembler, or null when reassembly is disabled. */
+    public StreamReassembler getReassembler() {
+        return reassembler;
+    }
+
     @Override
     public void stop() {
         running = false;
-        alertLogger.close();
+        if (ownsLogger) {
+            alertLogger.close();
+        }
     }
 }
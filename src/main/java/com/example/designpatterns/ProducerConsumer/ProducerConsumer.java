@@ -1,35 +1,122 @@
 package com.example.designpatterns.ProducerConsumer;
 
+import com.example.concurrent.PacketRing;
+import com.example.concurrent.PacketSink;
+import com.example.concurrent.ShardedPacketSink;
+import com.example.concurrent.WaitStrategy;
 import com.example.designpatterns.StrategyPattern.ConsumerStrategy;
 import com.example.designpatterns.StrategyPattern.ProducerStrategy;
 
-import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * One producer feeding one or more consumers. With several consumers each gets its
+ * own ring and packets are routed by flow hash, so both directions of a flow are
+ * always handled by the same consumer thread.
+ */
 public class ProducerConsumer  {
-    private ConsumerStrategy consumer;
+    private final List<ConsumerStrategy> consumers;
     private ProducerStrategy producer;
 
-    private BlockingQueue<String> queue = new LinkedBlockingQueue<>(); 
+    // Bounded and preallocated: a traffic spike fills the rings instead of the heap
+    private final PacketRing[] rings;
+    private final PacketSink sink;
 
     public ProducerConsumer(ConsumerStrategy consumer , ProducerStrategy producer) {
-        this.consumer = consumer;
+        this(consumer, producer, PacketRing.DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    public ProducerConsumer(ConsumerStrategy consumer, ProducerStrategy producer,
+                            int capacity, WaitStrategy waitStrategy) {
+        this(Collections.singletonList(consumer), producer, capacity, waitStrategy);
+    }
+
+    /**
+     * @param capacity slots per consumer ring
+     */
+    public ProducerConsumer(List<? extends ConsumerStrategy> consumers, ProducerStrategy producer,
+                            int capacity, WaitStrategy waitStrategy) {
+        if (consumers.isEmpty()) {
+            throw new IllegalArgumentException("At least one consumer is required");
+        }
+        this.consumers = new ArrayList<>(consumers);
         this.producer = producer;
+        this.rings = new PacketRing[consumers.size()];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new PacketRing(capacity, waitStrategy);
+        }
+        this.sink = rings.length == 1 ? rings[0] : new ShardedPacketSink(rings);
     }
+
+    public int getConsumerCount() {
+        return consumers.size();
+    }
+
     public void runConsumer() {
-        consumer.start(queue);
+        runConsumer(0);
+    }
+
+    /**
+     * Runs consumer {@code index} on its ring until it is stopped; call once per
+     * consumer, each on its own thread.
+     */
+    public void runConsumer(int index) {
+        consumers.get(index).start(rings[index]);
     }
 
     public void runProducer() {
-        producer.start(queue);
+        producer.start(sink);
     }
 
     public void stopConsumer() {
-        consumer.stop();
+        for (ConsumerStrategy consumer : consumers) {
+            consumer.stop();
+        }
+        haltRings();
     }
 
     public void stopProducer() {
         producer.stop();
+        haltRings();
+    }
+
+    private void haltRings() {
+        for (PacketRing ring : rings) {
+            ring.halt();
+        }
+    }
+
+    public PacketRing getRing() {
+        return rings[0];
+    }
+
+    public PacketRing getRing(int index) {
+        return rings[index];
+    }
+
+    /**
+     * Packets published and lost to overload, summed over all consumer rings.
+     */
+    public Map<String, Long> getOverloadStatistics() {
+        long published = 0, rejected = 0, evicted = 0, sampledOut = 0, queued = 0;
+        for (PacketRing ring : rings) {
+            published += ring.getPublished();
+            rejected += ring.getRejected();
+            evicted += ring.getEvicted();
+            sampledOut += ring.getSampledOut();
+            queued += ring.getOccupancy();
+        }
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("published", published);
+        stats.put("queued", queued);
+        stats.put("rejected", rejected);
+        stats.put("evicted", evicted);
+        stats.put("sampledOut", sampledOut);
+        stats.put("dropped", rejected + evicted + sampledOut);
+        return stats;
     }
 }
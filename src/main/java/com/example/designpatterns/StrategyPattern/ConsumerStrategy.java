@@ -1,8 +1,8 @@
 package com.example.designpatterns.StrategyPattern;
 
-import java.util.concurrent.BlockingQueue;
+import com.example.concurrent.PacketRing;
 
 public interface ConsumerStrategy {
-    void start(BlockingQueue<String> queue);
+    void start(PacketRing ring);
     void stop();
 }
@@ -1,6 +1,6 @@
 package com.example.designpatterns.StrategyPattern;
-import java.util.concurrent.BlockingQueue;
+import com.example.concurrent.PacketSink;
 public interface ProducerStrategy {
-    void start(BlockingQueue<String> queue);  // Starts producing items and adding to the queue
+    void start(PacketSink sink);  // Starts producing items and publishing them to the sink
     void stop();  // Stops the production process
 }
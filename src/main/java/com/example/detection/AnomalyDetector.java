@@ -1,9 +1,10 @@
 package com.example.detection;
 
+import com.example.util.CoarseClock;
+import com.example.util.PacketRecord;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.Set;
@@ -15,27 +16,111 @@ import java.util.Arrays;
 
 public class AnomalyDetector {
     private static final Logger LOGGER = Logger.getLogger(AnomalyDetector.class.getName());
-    private final Map<String, Integer> portScanCount = new ConcurrentHashMap<>();
-    private final Map<String, java.util.concurrent.atomic.AtomicInteger> bruteForceCount = new ConcurrentHashMap<>();
-    private final Map<String, Integer> ddosCount = new ConcurrentHashMap<>();
-    private final Map<String, Long> lastSeenTime = new ConcurrentHashMap<>();
-    private final Map<String, Map<String, Integer>> ddosStats = new ConcurrentHashMap<>();
+    private final ThreadLocal<PacketRecord> adapterRecord = ThreadLocal.withInitial(PacketRecord::new);
     private Alert lastAnomaly;
     
     // Constants for detection thresholds
     private static final int PORT_SCAN_THRESHOLD = 3;  // 3 ports différents
     private static final int BRUTE_FORCE_THRESHOLD = 3;
-    private static final int DDOS_THRESHOLD = 15;      // Reduced from 20 to 15
     private static final long TIME_WINDOW_MS = 3000;     // 3 seconds for port scan and brute force
-    private static final long DDOS_WINDOW = 4000;      // 4 seconds for DDoS detection
+    private static final int WINDOW_BUCKETS = 8;
+    // Balayages lents ou larges : ports et hôtes distincts estimés sur une fenêtre longue
+    private static final long SLOW_SCAN_WINDOW_MS = 300_000;
+    private static final int DISTINCT_PORT_THRESHOLD = 64;
+    private static final int DISTINCT_HOST_THRESHOLD = 256;
+    private static final int SKETCH_PRECISION = 8;     // 256 octets par esquisse, ~6.5 % d'erreur
+    private static final long PORT_SEED = 0x706F7274L;
+    private static final long HOST_SEED = 0x686F7374L;
+    // Floods : paquets d'attaque récents par clé, compteurs divisés par deux chaque seconde
+    private static final double FLOOD_SHARE = Double.parseDouble(System.getProperty("ids.flood.share", "0.5"));
+    private static final long FLOOD_MIN_PACKETS = Long.getLong("ids.flood.min", 10_000);
+    private static final int FLOOD_MIN_SOURCES = Integer.getInteger("ids.flood.sources", 128);
+    private static final long FLOOD_DECAY_MS = 1000;
+    private static final long FLOOD_SOURCES_WINDOW_MS = 10_000;
+    private static final long SOURCE_SEED = 0x73726373L;
+    private static final long FLOOD_ALERT_INTERVAL_MS = 10_000;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int TOP_K = 16;
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
-    private final Map<String, Set<String>> scannedPorts = new ConcurrentHashMap<>();
-    private final Map<String, Long> lastScanTime = new ConcurrentHashMap<>();
+    /** Sources tracked at once; -Dids.anomaly.sources overrides it. */
+    public static final int DEFAULT_MAX_SOURCES = Integer.getInteger("ids.anomaly.sources", 1 << 14);
+    /** A source silent for this long is forgotten. */
+    private static final long SOURCE_IDLE_NANOS = 60_000_000_000L;
 
+    // Horloge avancée par lot plutôt qu'un appel système par paquet
+    private final CoarseClock clock = new CoarseClock();
+
+    // État par source, indexé par le slot de la table : mémoire fixe même sous un flood d'IP usurpées
+    private final SourceStateTable sources;
+    // Fenêtres glissantes : nouveaux ports visés, tentatives sur les ports d'authentification
+    private final SlidingWindowCounter newPorts;
+    private final SlidingWindowCounter bruteForceAttempts;
+    // Derniers ports distincts visés, en anneau de PORT_SCAN_THRESHOLD par source
+    private final int[] recentPorts;
+    private final int[] recentPortCount;
+    private final int[] recentPortNext;
+    // Esquisses HyperLogLog par source : ports visés et hôtes contactés depuis sketchStart
+    private final HyperLogLogArray distinctPorts;
+    private final HyperLogLogArray distinctHosts;
+    private final long[] sketchStart;
+
+    // Gros émetteurs et destinataires, en mémoire constante quel que soit le nombre d'adresses
+    private final HeavyHitterSketch floodSources = new HeavyHitterSketch(SKETCH_DEPTH, SKETCH_WIDTH, TOP_K);
+    private final HeavyHitterSketch floodTargets = new HeavyHitterSketch(SKETCH_DEPTH, SKETCH_WIDTH, TOP_K);
+    private final HeavyHitterSketch floodServices = new HeavyHitterSketch(SKETCH_DEPTH, SKETCH_WIDTH, TOP_K);
+    // Sources distinctes des cibles les plus visées : un DDoS vient de nombreuses sources
+    private final DistinctSources targetSources = new DistinctSources();
+    private final DistinctSources serviceSources = new DistinctSources();
+    private long floodEpoch = Long.MIN_VALUE;
+    private long floodAlerts;
+
+    // Poignées de main TCP : SYN floods, scans demi-ouverts et furtifs, tempêtes de RST
+    private final SynFloodDetector synFloods = new SynFloodDetector(SynFloodDetector.DEFAULT_SLOTS);
+
+    public AnomalyDetector() {
+        this(DEFAULT_MAX_SOURCES);
+    }
+
+    /**
+     * @param maxSources sources whose state is kept at once; beyond it the
+     *                   least recently active ones are evicted
+     */
+    public AnomalyDetector(int maxSources) {
+        this.sources = new SourceStateTable(maxSources, SOURCE_IDLE_NANOS, this::resetSource);
+        this.newPorts = new SlidingWindowCounter(maxSources, TIME_WINDOW_MS, WINDOW_BUCKETS);
+        this.bruteForceAttempts = new SlidingWindowCounter(maxSources, TIME_WINDOW_MS, WINDOW_BUCKETS);
+        this.recentPorts = new int[maxSources * PORT_SCAN_THRESHOLD];
+        this.recentPortCount = new int[maxSources];
+        this.recentPortNext = new int[maxSources];
+        this.distinctPorts = new HyperLogLogArray(maxSources, SKETCH_PRECISION);
+        this.distinctHosts = new HyperLogLogArray(maxSources, SKETCH_PRECISION);
+        this.sketchStart = new long[maxSources];
+    }
+
+    private void resetSource(int slot) {
+        newPorts.reset(slot);
+        bruteForceAttempts.reset(slot);
+        recentPortCount[slot] = 0;
+        recentPortNext[slot] = 0;
+        // Les esquisses sont vidées au premier usage, la fenêtre étant expirée
+        sketchStart[slot] = 0;
+    }
+
+    /**
+     * Advances the clock the detection windows are measured on. Callers passing
+     * records call it once per batch with the newest capture timestamp of the
+     * batch (0 for the wall clock); the map form advances it on every call.
+     */
+    public void advanceClock(long timestampNanos) {
+        clock.advance(timestampNanos);
+    }
+
+    // Stored in lower case; content is lowered once before matching
     private static final Set<String> SUSPICIOUS_PATTERNS = new HashSet<>(Arrays.asList(
-        "UNION SELECT",
-        "OR 1=1",
+        "union select",
+        "or 1=1",
         "<script>",
         "javascript:",
         "eval(",
@@ -47,64 +132,217 @@ public class AnomalyDetector {
     ));
 
     public Alert detectAnomaly(Map<String, String> packetData) {
-        String srcIP = packetData.get("srcIP");
-        String protocol = packetData.get("protocol");
-        String destPort = packetData.get("destPort");
-        String destIP = packetData.get("destIP");
-        
-        if (srcIP == null || protocol == null) {
+        if (packetData.get("srcIP") == null || packetData.get("protocol") == null) {
             return null;
         }
+        clock.tick();
+        return detect(PacketRecord.fromMap(packetData, adapterRecord.get()), packetData);
+    }
+
+    public Alert detectAnomaly(PacketRecord packet) {
+        return detect(packet, null);
+    }
+
+    /**
+     * @param source the map the record was built from, attached to alerts as is;
+     *               null when the caller passed a record
+     */
+    private synchronized Alert detect(PacketRecord packet, Map<String, String> source) {
+        // Per-source state is keyed by the IPv4 address; other records only get the content checks
+        long srcAddress = packet.getSrcIp();
+        boolean tracked = srcAddress >= 0;
+        String protocol = packet.getProtocolName();
+        int destPort = packet.getDstPort();
+
+        if (clock.isUnset()) {
+            clock.tick();
+        }
+        int slot = tracked ? sources.acquire((int) srcAddress, clock.millis() * 1_000_000L) : -1;
 
-        // Reset counters if time window has expired
-        long currentTime = System.currentTimeMillis();
-        if (lastSeenTime.containsKey(srcIP)) {
-            long timeSinceLastSeen = currentTime - lastSeenTime.get(srcIP);
-            if (timeSinceLastSeen > TIME_WINDOW_MS) {
-                portScanCount.remove(srcIP);
-                bruteForceCount.remove(srcIP);
-                scannedPorts.remove(srcIP);
+        if (tracked) {
+            // Every packet counts towards the flood sketches and the handshake table
+            Alert floodAlert = detectFlood(packet, source);
+            Alert handshakeAlert = synFloods.inspect(packet, clock.millis(), source);
+            if (floodAlert != null) {
+                return floodAlert;
             }
-            if (timeSinceLastSeen > DDOS_WINDOW) {
-                ddosCount.remove(srcIP);
-                ddosStats.remove(srcIP);
+            if (handshakeAlert != null) {
+                return handshakeAlert;
             }
         }
-        lastSeenTime.put(srcIP, currentTime);
 
         // Check for XSS attack first
-        Alert xssAlert = detectXss(packetData);
+        Alert xssAlert = detectXss(packet, source);
         if (xssAlert != null) {
             return xssAlert;
         }
 
-        // Check for port scan
-        if (protocol.equals("TCP")) {
-            Alert portScanAlert = detectPortScan(packetData);
-            if (portScanAlert != null) {
-                return portScanAlert;
+        if (tracked) {
+            // Check for port scan
+            if (protocol.equals("TCP")) {
+                Alert portScanAlert = detectPortScan(packet, source, slot);
+                if (portScanAlert != null) {
+                    return portScanAlert;
+                }
             }
-        }
 
-        // Check for brute force attempts
-        if (protocol.equals("TCP") && 
-            (destPort.equals("22") || destPort.equals("445") || destPort.equals("3389"))) {
-            Alert bruteForceAlert = detectBruteForce(packetData);
-            if (bruteForceAlert != null) {
-                return bruteForceAlert;
+            // Check for slow vertical and horizontal scans
+            Alert wideScanAlert = detectWideScan(packet, source, slot);
+            if (wideScanAlert != null) {
+                return wideScanAlert;
+            }
+
+            // Check for brute force attempts
+            if (protocol.equals("TCP") && 
+                (destPort == 22 || destPort == 445 || destPort == 3389)) {
+                Alert bruteForceAlert = detectBruteForce(packet, slot);
+                if (bruteForceAlert != null) {
+                    return bruteForceAlert;
+                }
             }
         }
 
         // Check for abnormal traffic
-        return detectAbnormalTraffic(packetData);
+        return detectAbnormalTraffic(packet, source);
+    }
+
+    /**
+     * Counts attack-shaped packets by source, destination and destination
+     * service. A flooded host or service is one that receives at least
+     * {@code FLOOD_MIN_PACKETS} recent packets from at least
+     * {@code FLOOD_MIN_SOURCES} distinct sources; a flooding source sends at
+     * least {@code FLOOD_MIN_PACKETS} and {@code FLOOD_SHARE} of them. ICMP
+     * floods get their own alert type. Each key alerts at most every 10s.
+     */
+    private Alert detectFlood(PacketRecord packet, Map<String, String> source) {
+        long now = clock.millis();
+        long epoch = now / FLOOD_DECAY_MS;
+        if (epoch != floodEpoch) {
+            int halvings = floodEpoch == Long.MIN_VALUE ? 0 : (int) Math.min(31, epoch - floodEpoch);
+            floodSources.decay(halvings);
+            floodTargets.decay(halvings);
+            floodServices.decay(halvings);
+            floodEpoch = epoch;
+        }
+        if (!isAttackShaped(packet)) return null;
+
+        long srcIp = packet.getSrcIp();
+        long dstIp = packet.getDstIp();
+        int dstPort = packet.getDstPort();
+        long fromSource = floodSources.add(srcIp);
+        long sourceHash = HyperLogLogArray.hash(srcIp, SOURCE_SEED);
+        long toTarget = 0;
+        long toService = 0;
+        long targetSenders = 0;
+        long serviceSenders = 0;
+        long serviceKey = (dstIp << 16) | dstPort;
+        if (dstIp != PacketRecord.ABSENT) {
+            toTarget = floodTargets.add(dstIp);
+            targetSenders = targetSources.add(floodTargets.indexOf(dstIp), dstIp, sourceHash, now);
+            if (dstPort != PacketRecord.ABSENT) {
+                toService = floodServices.add(serviceKey);
+                serviceSenders = serviceSources.add(floodServices.indexOf(serviceKey), serviceKey, sourceHash, now);
+            }
+        }
+
+        boolean icmp = packet.getProtocol() == PacketRecord.PROTO_ICMP;
+        String message;
+        AlertType type;
+        if (toService >= FLOOD_MIN_PACKETS && serviceSenders >= FLOOD_MIN_SOURCES
+                && floodServices.claimAlert(serviceKey, now, FLOOD_ALERT_INTERVAL_MS)) {
+            type = AlertType.DDOS_ATTACK;
+            message = "Flood on service " + ipString(dstIp) + ":" + dstPort + " (~" + serviceSenders + " sources)";
+        } else if (toTarget >= FLOOD_MIN_PACKETS && targetSenders >= FLOOD_MIN_SOURCES
+                && floodTargets.claimAlert(dstIp, now, FLOOD_ALERT_INTERVAL_MS)) {
+            type = icmp ? AlertType.ICMP_FLOOD : AlertType.DDOS_ATTACK;
+            message = (icmp ? "ICMP flood" : "Flood") + " on host " + ipString(dstIp) + " (~" + targetSenders + " sources)";
+        } else if (fromSource >= FLOOD_MIN_PACKETS && fromSource >= FLOOD_SHARE * floodSources.getTotal()
+                && floodSources.claimAlert(srcIp, now, FLOOD_ALERT_INTERVAL_MS)) {
+            type = icmp ? AlertType.ICMP_FLOOD : AlertType.DOS_ATTACK;
+            message = (icmp ? "ICMP flood" : "Flood") + " from " + ipString(srcIp)
+                + " (" + Math.round(100.0 * fromSource / floodSources.getTotal()) + "% of recent attack traffic)";
+        } else {
+            return null;
+        }
+        floodAlerts++;
+        return new Alert(type, Severity.CRITICAL, message, packetData(packet, source));
+    }
+
+    /**
+     * Packets a flood is made of: TCP SYNs, ICMP, and anything else not on an
+     * established flow. Answers and traffic of established flows, such as a fast
+     * download, are left out; untracked TCP only counts by its flags.
+     */
+    private static boolean isAttackShaped(PacketRecord packet) {
+        if (isAnswer(packet)) return false;
+        int flowFlags = packet.getFlowFlags();
+        boolean tracked = (flowFlags & PacketRecord.FLOW_TRACKED) != 0;
+        boolean established = (flowFlags & PacketRecord.FLOW_ESTABLISHED) != 0;
+        switch (packet.getProtocol()) {
+            case PacketRecord.PROTO_ICMP:
+                return true;
+            case PacketRecord.PROTO_TCP:
+                if (packet.hasTcpFlags()
+                        && (packet.getTcpFlags() & (PacketRecord.TCP_SYN | PacketRecord.TCP_ACK)) == PacketRecord.TCP_SYN) {
+                    return true;
+                }
+                return tracked && !established;
+            case PacketRecord.PROTO_UDP:
+                return !established;
+            default:
+                return tracked && !established;
+        }
+    }
+
+    /**
+     * Packets going back to the client: marked so by the flow tracker or, for
+     * untracked UDP, sent from a reserved port (DNS, NTP...).
+     */
+    private static boolean isAnswer(PacketRecord packet) {
+        int flowFlags = packet.getFlowFlags();
+        if ((flowFlags & PacketRecord.FLOW_TRACKED) != 0) {
+            return (flowFlags & PacketRecord.FLOW_TO_CLIENT) != 0;
+        }
+        int srcPort = packet.getSrcPort();
+        return packet.getProtocol() == PacketRecord.PROTO_UDP && srcPort != PacketRecord.ABSENT && srcPort < 1024;
+    }
+
+    /**
+     * Distinct sources of the keys in a {@link HeavyHitterSketch}'s top-K, one
+     * HyperLogLog per top-K entry. A sketch starts over when its entry changes
+     * key or its window has passed.
+     */
+    private static final class DistinctSources {
+        private final HyperLogLogArray sketches = new HyperLogLogArray(TOP_K, SKETCH_PRECISION);
+        private final long[] keys = new long[TOP_K];
+        private final long[] start = new long[TOP_K];
+
+        DistinctSources() {
+            Arrays.fill(keys, PacketRecord.ABSENT);
+        }
+
+        /** @return the estimated distinct sources of {@code key}, 0 when it is not in the top-K */
+        long add(int index, long key, long sourceHash, long now) {
+            if (index < 0) return 0;
+            if (keys[index] != key || now - start[index] > FLOOD_SOURCES_WINDOW_MS) {
+                sketches.clear(index);
+                keys[index] = key;
+                start[index] = now;
+            }
+            sketches.add(index, sourceHash);
+            return Math.round(sketches.estimate(index));
+        }
     }
 
-    private Alert detectXss(Map<String, String> packetData) {
-        String data = packetData.get("data");
+    private Alert detectXss(PacketRecord packet, Map<String, String> source) {
+        String data = packet.getPayloadText();
         if (data != null && (data.contains("<script>") || data.contains("javascript:"))) {
             StringBuilder message = new StringBuilder();
-            message.append(String.format("XSS Attack Detected! Source: %s\n", packetData.get("srcIP")));
-            message.append(String.format("Target: %s\n", packetData.get("destIP")));
+            // Le map d'origine garde les adresses que le record ne sait pas porter (IPv6)
+            message.append(String.format("XSS Attack Detected! Source: %s\n",
+                source != null ? source.get("srcIP") : ipString(packet.getSrcIp())));
+            message.append(String.format("Target: %s\n",
+                source != null ? source.get("destIP") : ipString(packet.getDstIp())));
             message.append(String.format("Payload: %s\n", data));
             
             LOGGER.warning(message.toString());
@@ -113,62 +351,116 @@ public class AnomalyDetector {
                 AlertType.XSS_ATTACK,
                 Severity.HIGH,
                 message.toString(),
-                new HashMap<>(packetData)
+                packetData(packet, source)
             );
         }
         return null;
     }
 
-    private Alert detectPortScan(Map<String, String> packetData) {
-        String srcIP = packetData.get("srcIP");
-        String destPort = packetData.get("destPort");
-        long now = System.currentTimeMillis();
-
-        if (srcIP == null || destPort == null) return null;
-
-        scannedPorts.putIfAbsent(srcIP, new HashSet<>());
-        lastScanTime.putIfAbsent(srcIP, now);
+    private Alert detectPortScan(PacketRecord packet, Map<String, String> source, int slot) {
+        int destPort = packet.getDstPort();
+        if (destPort == PacketRecord.ABSENT) return null;
 
-        // Reset si la fenêtre est dépassée
-        if (now - lastScanTime.get(srcIP) > TIME_WINDOW_MS) {
-            scannedPorts.get(srcIP).clear();
-            lastScanTime.put(srcIP, now);
+        // Seul un port absent des derniers ports visés compte dans la fenêtre
+        int base = slot * PORT_SCAN_THRESHOLD;
+        for (int i = 0; i < recentPortCount[slot]; i++) {
+            if (recentPorts[base + i] == destPort) return null;
         }
+        recentPorts[base + recentPortNext[slot]] = destPort;
+        recentPortNext[slot] = (recentPortNext[slot] + 1) % PORT_SCAN_THRESHOLD;
+        recentPortCount[slot] = Math.min(recentPortCount[slot] + 1, PORT_SCAN_THRESHOLD);
 
-        scannedPorts.get(srcIP).add(destPort);
-
-        if (scannedPorts.get(srcIP).size() >= PORT_SCAN_THRESHOLD) {
+        int count = newPorts.add(slot, clock.millis(), 1);
+        if (count >= PORT_SCAN_THRESHOLD) {
             Alert alert = new Alert(
                 AlertType.PORT_SCAN,
                 Severity.HIGH,
-                "Port scan detected from " + srcIP + " (" + scannedPorts.get(srcIP).size() + " ports)",
-                new HashMap<>(packetData)
+                "Port scan detected from " + ipString(packet.getSrcIp()) + " (" + count + " ports)",
+                packetData(packet, source)
             );
-            scannedPorts.get(srcIP).clear();
-            lastScanTime.put(srcIP, now);
+            newPorts.reset(slot);
             return alert;
         }
         return null;
     }
 
-    private Alert detectBruteForce(Map<String, String> packetData) {
-        String srcIP = packetData.get("srcIP");
-        String destPort = packetData.get("destPort");
-        String protocol = packetData.get("protocol");
+    /**
+     * Feeds connection attempts (TCP SYN, UDP, ICMP echo requests) to the source's
+     * sketches and alerts once the distinct destination ports or hosts seen
+     * within the slow scan window cross their threshold, however slowly they were probed.
+     * Answers to a client are not attempts.
+     */
+    private Alert detectWideScan(PacketRecord packet, Map<String, String> source, int slot) {
+        if (isAnswer(packet)) return null;
+        int protocol = packet.getProtocol();
+        boolean attempt;
+        if (protocol == PacketRecord.PROTO_TCP) {
+            // Packets without flags (text parser) count as attempts
+            attempt = !packet.hasTcpFlags()
+                || (packet.getTcpFlags() & (PacketRecord.TCP_SYN | PacketRecord.TCP_ACK)) == PacketRecord.TCP_SYN;
+        } else if (protocol == PacketRecord.PROTO_UDP) {
+            attempt = true;
+        } else {
+            attempt = protocol == PacketRecord.PROTO_ICMP && packet.getIcmpType() == 8;
+        }
+        long destIp = packet.getDstIp();
+        if (!attempt || destIp == PacketRecord.ABSENT) return null;
+
+        long now = clock.millis();
+        if (now - sketchStart[slot] > SLOW_SCAN_WINDOW_MS) {
+            distinctPorts.clear(slot);
+            distinctHosts.clear(slot);
+            sketchStart[slot] = now;
+        }
+
+        int destPort = packet.getDstPort();
+        if (destPort != PacketRecord.ABSENT
+                && distinctPorts.add(slot, HyperLogLogArray.hash((protocol << 16) | destPort, PORT_SEED))) {
+            double ports = distinctPorts.estimate(slot);
+            if (ports >= DISTINCT_PORT_THRESHOLD) {
+                distinctPorts.clear(slot);
+                return new Alert(
+                    AlertType.PORT_SCAN,
+                    Severity.HIGH,
+                    "Slow port scan detected from " + ipString(packet.getSrcIp()) + " (~" + Math.round(ports) + " ports)",
+                    packetData(packet, source)
+                );
+            }
+        }
+        // Un balayage horizontal vise un port sur de nombreux hôtes ; l'UDP (DNS...) en est exclu
+        if (protocol != PacketRecord.PROTO_UDP && distinctHosts.add(slot, HyperLogLogArray.hash(destIp, HOST_SEED))) {
+            double hosts = distinctHosts.estimate(slot);
+            if (hosts >= DISTINCT_HOST_THRESHOLD) {
+                distinctHosts.clear(slot);
+                return new Alert(
+                    protocol == PacketRecord.PROTO_ICMP ? AlertType.ICMP_SCAN : AlertType.SERVER_SCAN,
+                    Severity.HIGH,
+                    "Horizontal scan detected from " + ipString(packet.getSrcIp()) + " (~" + Math.round(hosts) + " hosts)",
+                    packetData(packet, source)
+                );
+            }
+        }
+        return null;
+    }
+
+    private Alert detectBruteForce(PacketRecord packet, int slot) {
+        int destPort = packet.getDstPort();
+        String protocol = packet.getProtocolName();
         
         if (protocol.equals("TCP") && 
-            (destPort.equals("22") || destPort.equals("445") || destPort.equals("3389"))) {
-            AtomicInteger count = bruteForceCount.computeIfAbsent(srcIP, k -> new AtomicInteger(0));
-            if (count.incrementAndGet() >= BRUTE_FORCE_THRESHOLD) {
+            (destPort == 22 || destPort == 445 || destPort == 3389)) {
+            int count = bruteForceAttempts.add(slot, clock.millis(), 1);
+            if (count >= BRUTE_FORCE_THRESHOLD) {
+                String srcAddress = ipString(packet.getSrcIp());
                 return new Alert(
                     AlertType.BRUTE_FORCE,
                     Severity.CRITICAL,
-                    "Brute force attempt detected from " + srcIP + " on port " + destPort,
+                    "Brute force attempt detected from " + srcAddress + " on port " + destPort,
                     new HashMap<>(Map.of(
-                        "srcIP", srcIP,
-                        "destPort", destPort,
+                        "srcIP", srcAddress,
+                        "destPort", String.valueOf(destPort),
                         "protocol", protocol,
-                        "count", String.valueOf(count.get())
+                        "count", String.valueOf(count)
                     ))
                 );
             }
@@ -178,22 +470,22 @@ public class AnomalyDetector {
 
     public Alert detectAbnormalTraffic(Map<String, String> packet) {
         if (packet == null) return null;
-        
-        String data = packet.get("data");
-        String payload = packet.get("payload");
-        
+        return detectAbnormalTraffic(PacketRecord.fromMap(packet, adapterRecord.get()), packet);
+    }
+
+    public Alert detectAbnormalTraffic(PacketRecord packet) {
+        if (packet == null) return null;
+        return detectAbnormalTraffic(packet, null);
+    }
+
+    private Alert detectAbnormalTraffic(PacketRecord packet, Map<String, String> source) {
         // Si ni data ni payload n'est présent, pas besoin de vérifier le contenu
-        if (data == null && payload == null) {
-            return null;
-        }
-        
-        // Vérifier le contenu si présent
-        String contentToCheck = data != null ? data : payload;
+        String contentToCheck = packet.getPayloadText();
         if (contentToCheck != null && !contentToCheck.isEmpty()) {
             // Vérifier les motifs suspects
             if (containsSuspiciousPatterns(contentToCheck)) {
                 return createAlert(AlertType.SUSPICIOUS_CONTENT, Severity.HIGH, 
-                    "Suspicious content detected", packet);
+                    "Suspicious content detected", packetData(packet, source));
             }
         }
         
@@ -206,8 +498,9 @@ public class AnomalyDetector {
         }
         
         // Vérifier les motifs suspects
+        String lowerContent = content.toLowerCase();
         for (String pattern : SUSPICIOUS_PATTERNS) {
-            if (content.toLowerCase().contains(pattern.toLowerCase())) {
+            if (lowerContent.contains(pattern)) {
                 return true;
             }
         }
@@ -216,7 +509,28 @@ public class AnomalyDetector {
     }
 
     private Alert createAlert(AlertType type, Severity severity, String message, Map<String, String> packet) {
-        return new Alert(type, severity, message, new HashMap<>(packet));
+        return new Alert(type, severity, message, packet);
+    }
+
+    /**
+     * Packet fields attached to an alert: a copy of the caller's map, or the record
+     * converted back to map form. Only built when an alert is raised.
+     */
+    static Map<String, String> packetData(PacketRecord packet, Map<String, String> source) {
+        return source != null ? new HashMap<>(source) : packet.toMap();
+    }
+
+    private static String ipString(long address) {
+        return address < 0 ? null : PacketRecord.formatIpv4((int) address);
+    }
+
+    /** Per-source table occupancy, evictions and expirations, flood and handshake counters. */
+    public synchronized Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>(sources.getStatistics());
+        stats.put("recentAttackPackets", floodSources.getTotal());
+        stats.put("floodAlerts", floodAlerts);
+        stats.putAll(synFloods.getStatistics());
+        return stats;
     }
 
     public Alert getLastAnomaly() {
@@ -0,0 +1,540 @@
+package com.example.detection;
+
+import com.example.util.PacketRecord;
+import com.example.util.PcrePattern;
+import com.example.util.Rule;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Immutable, pre-parsed form of a {@link Rule}. Every string field the engine
+ * used to parse per packet (ports, networks, hex content, PCRE) is resolved
+ * once here, so matching only compares primitives.
+ */
+public final class CompiledRule {
+
+    private static final Map<String, Integer> SERVICE_PORTS;
+    static {
+        Map<String, Integer> ports = new HashMap<>();
+        ports.put("http", 80);
+        ports.put("https", 443);
+        ports.put("ftp", 21);
+        ports.put("ssh", 22);
+        ports.put("telnet", 23);
+        ports.put("smtp", 25);
+        ports.put("dns", 53);
+        SERVICE_PORTS = Collections.unmodifiableMap(ports);
+    }
+
+    /** Marker for packet fields that are missing or not numeric. */
+    public static final int ABSENT = -1;
+
+    private final Rule rule;
+    private final int ordinal;
+    private final String protocol;
+    private final boolean icmp;
+    private final NetSpec sourceNet;
+    private final NetSpec destinationNet;
+    private final PortSpec sourcePort;
+    private final PortSpec destinationPort;
+    private final boolean hasIcmpId;
+    private final boolean hasIcmpType;
+    private final boolean hasIcmpCode;
+    private final int icmpId;
+    private final int icmpType;
+    private final int icmpCode;
+    private final String content;
+    private final byte[] contentBytes;
+    private final PcrePattern pcre;
+    private final int flowMask;
+    private final int flowValue;
+    private final FlowbitSpec flowbits;
+    private final boolean unmatchable;
+
+    private CompiledRule(Rule rule, int ordinal, String homeNet, String externalNet) {
+        this.rule = rule;
+        this.ordinal = ordinal;
+        this.protocol = rule.getProtocol();
+        this.icmp = "ICMP".equalsIgnoreCase(protocol);
+
+        Map<String, String> vars = new HashMap<>();
+        vars.put("HOME_NET", homeNet);
+        vars.put("EXTERNAL_NET", externalNet);
+        this.sourceNet = NetSpec.compile(rule.getSourceIp(), vars);
+        this.destinationNet = NetSpec.compile(rule.getDestinationIp(), vars);
+        this.sourcePort = PortSpec.compile(rule.getSourcePort());
+        this.destinationPort = PortSpec.compile(rule.getDestinationPort());
+
+        Map<String, String> options = rule.getOptions();
+        boolean invalid = false;
+
+        String id = icmp ? options.get("icmp_id") : null;
+        String type = icmp ? options.get("itype") : null;
+        String code = icmp ? options.get("icode") : null;
+        this.hasIcmpId = id != null;
+        this.hasIcmpType = type != null;
+        this.hasIcmpCode = code != null;
+        this.icmpId = parseNumber(id);
+        this.icmpType = parseNumber(type);
+        this.icmpCode = parseNumber(code);
+        invalid |= hasIcmpId && icmpId == ABSENT;
+        invalid |= hasIcmpType && icmpType == ABSENT;
+        invalid |= hasIcmpCode && icmpCode == ABSENT;
+
+        String rawContent = options.get("content");
+        if (rawContent != null) {
+            this.contentBytes = decodeContent(rawContent);
+            this.content = new String(contentBytes, StandardCharsets.ISO_8859_1);
+        } else {
+            this.contentBytes = null;
+            this.content = null;
+        }
+
+        // flow: keywords become a mask/value test on the record's tracker flags
+        int mask = 0;
+        int value = 0;
+        String flow = options.get("flow");
+        if (flow != null) {
+            for (String option : flow.split(",")) {
+                switch (option.trim()) {
+                    case "established":
+                        mask |= PacketRecord.FLOW_ESTABLISHED;
+                        value |= PacketRecord.FLOW_ESTABLISHED;
+                        break;
+                    case "not_established":
+                        mask |= PacketRecord.FLOW_ESTABLISHED;
+                        break;
+                    case "to_server":
+                    case "from_client":
+                        mask |= PacketRecord.FLOW_TO_SERVER;
+                        value |= PacketRecord.FLOW_TO_SERVER;
+                        break;
+                    case "to_client":
+                    case "from_server":
+                        mask |= PacketRecord.FLOW_TO_CLIENT;
+                        value |= PacketRecord.FLOW_TO_CLIENT;
+                        break;
+                    default:
+                        break; // stateless, no_stream, ...
+                }
+            }
+        }
+        this.flowMask = mask;
+        this.flowValue = value;
+        this.flowbits = FlowbitSpec.compile(options.get("flowbits"));
+
+        // Shares the pattern the rule compiled at load; an invalid one was already logged
+        this.pcre = rule.getPcrePattern();
+        invalid |= options.get("pcre") != null && pcre == null;
+        this.unmatchable = invalid;
+    }
+
+    public static CompiledRule compile(Rule rule, int ordinal, String homeNet, String externalNet) {
+        return new CompiledRule(rule, ordinal, homeNet, externalNet);
+    }
+
+    /**
+     * Protocol, address, port and ICMP checks. Arguments come from a packet that
+     * has been decoded once; nothing is parsed or allocated here.
+     */
+    public boolean matchesHeader(String packetProtocol, long srcIp, long dstIp, int srcPort, int dstPort,
+                                 int packetIcmpId, int packetIcmpType, int packetIcmpCode) {
+        if (unmatchable || !matchesProtocol(packetProtocol)) return false;
+        if (!sourceNet.matches(srcIp) || !destinationNet.matches(dstIp)) return false;
+        if (!sourcePort.matches(srcPort) || !destinationPort.matches(dstPort)) return false;
+        if (icmp) {
+            if (hasIcmpId && icmpId != packetIcmpId) return false;
+            if (hasIcmpType && icmpType != packetIcmpType) return false;
+            if (hasIcmpCode && icmpCode != packetIcmpCode) return false;
+        }
+        return true;
+    }
+
+    /**
+     * flow: option check against {@link PacketRecord#getFlowFlags()}. Packets no
+     * tracker has seen pass, as they did before flows were tracked.
+     */
+    public boolean matchesFlow(int flowFlags) {
+        if (flowMask == 0 || (flowFlags & PacketRecord.FLOW_TRACKED) == 0) return true;
+        return (flowFlags & flowMask) == flowValue;
+    }
+
+    /**
+     * Content and PCRE checks against the packet's text fields.
+     */
+    public boolean matchesPayload(String data, String payload) {
+        if (content != null) {
+            if (data == null && payload == null) return false;
+            boolean contentMatched = (data != null && data.contains(content))
+                || (payload != null && payload.contains(content));
+            if (!contentMatched) return false;
+        }
+        if (pcre != null) {
+            return pcre.matches(data, pcreStart(data), payload, pcreStart(payload));
+        }
+        return true;
+    }
+
+    /**
+     * Start offset for the PCRE search. With the R modifier the search continues
+     * after the content match; otherwise it covers the whole field.
+     */
+    private int pcreStart(String text) {
+        if (!pcre.isRelative() || content == null || text == null) return 0;
+        int at = text.indexOf(content);
+        return at < 0 ? 0 : at + content.length();
+    }
+
+    private boolean matchesProtocol(String packetProtocol) {
+        if (protocol == null) return false;
+
+        // Handle protocol aliases
+        if (protocol.equalsIgnoreCase("tcp") &&
+            (packetProtocol.equalsIgnoreCase("http") || packetProtocol.equalsIgnoreCase("https"))) {
+            return true;
+        }
+        return protocol.equalsIgnoreCase(packetProtocol);
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * True when the rule has no content, PCRE or flowbits, so neither the payload
+     * nor earlier packets of the flow can change its answer.
+     */
+    public boolean isHeaderOnly() {
+        return content == null && pcre == null && flowbits == null && !unmatchable;
+    }
+
+    /** Compiled flowbits options, or null when the rule has none. */
+    FlowbitSpec getFlowbits() {
+        return flowbits;
+    }
+
+    /** True when a match must not raise an alert (flowbits:noalert). */
+    public boolean isNoAlert() {
+        return flowbits != null && flowbits.isNoAlert();
+    }
+
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    /** Decoded content (one char per byte), or null when the rule has none. */
+    public String getContent() {
+        return content;
+    }
+
+    public byte[] getContentBytes() {
+        return contentBytes;
+    }
+
+    public PcrePattern getPcre() {
+        return pcre;
+    }
+
+    NetSpec getSourceNet() {
+        return sourceNet;
+    }
+
+    NetSpec getDestinationNet() {
+        return destinationNet;
+    }
+
+    PortSpec getSourcePort() {
+        return sourcePort;
+    }
+
+    PortSpec getDestinationPort() {
+        return destinationPort;
+    }
+
+    private static int parseNumber(String value) {
+        if (value == null) return ABSENT;
+        try {
+            int number = Integer.parseInt(value.trim());
+            return number >= 0 ? number : ABSENT;
+        } catch (NumberFormatException e) {
+            return ABSENT;
+        }
+    }
+
+    /**
+     * Decodes Snort content syntax: plain text with |xx xx| hex sections.
+     */
+    static byte[] decodeContent(String content) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream(content.length());
+        boolean hex = false;
+        int pending = -1;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '|') {
+                hex = !hex;
+                pending = -1;
+            } else if (hex) {
+                int digit = Character.digit(c, 16);
+                if (digit < 0) continue; // spaces between hex bytes
+                if (pending < 0) {
+                    pending = digit;
+                } else {
+                    out.write((pending << 4) | digit);
+                    pending = -1;
+                }
+            } else {
+                out.write(c & 0xFF);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses a dotted IPv4 address into an unsigned 32-bit value, or returns -1.
+     */
+    public static long parseIpv4(String ip) {
+        return PacketRecord.parseIpv4(ip);
+    }
+
+    /**
+     * Parses a packet port such as "443" or "443 (https)", or returns {@link #ABSENT}.
+     */
+    public static int parsePort(String port) {
+        return PacketRecord.parsePort(port);
+    }
+
+    /**
+     * Parses a numeric packet field (ICMP id/type/code), or returns {@link #ABSENT}.
+     */
+    public static int parseField(String value) {
+        return parseNumber(value);
+    }
+
+    /**
+     * Set of ports as sorted include/exclude ranges. An empty include list means
+     * "every port"; {@link #NONE} matches nothing.
+     */
+    static final class PortSpec {
+        static final PortSpec ANY = new PortSpec(new int[0], new int[0], new int[0], new int[0], true);
+        static final PortSpec NONE = new PortSpec(new int[0], new int[0], new int[0], new int[0], false);
+
+        private final int[] includeLo;
+        private final int[] includeHi;
+        private final int[] excludeLo;
+        private final int[] excludeHi;
+        private final boolean matchesAny;
+
+        private PortSpec(int[] includeLo, int[] includeHi, int[] excludeLo, int[] excludeHi, boolean matchesAny) {
+            this.includeLo = includeLo;
+            this.includeHi = includeHi;
+            this.excludeLo = excludeLo;
+            this.excludeHi = excludeHi;
+            this.matchesAny = matchesAny;
+        }
+
+        static PortSpec compile(String spec) {
+            if (spec == null || spec.equals("any")) return ANY;
+            List<int[]> include = new ArrayList<>();
+            List<int[]> exclude = new ArrayList<>();
+            if (!collect(spec.trim(), false, include, exclude)) {
+                return NONE;
+            }
+            if (include.isEmpty() && exclude.isEmpty()) return NONE;
+            if (include.isEmpty()) include.add(new int[] {0, 65535});
+            return new PortSpec(column(include, 0), column(include, 1),
+                                column(exclude, 0), column(exclude, 1), false);
+        }
+
+        private static boolean collect(String spec, boolean negated, List<int[]> include, List<int[]> exclude) {
+            if (spec.startsWith("!")) {
+                return collect(spec.substring(1).trim(), !negated, include, exclude);
+            }
+            if (spec.startsWith("[") && spec.endsWith("]")) {
+                boolean any = false;
+                for (String item : spec.substring(1, spec.length() - 1).split(",")) {
+                    any |= collect(item.trim(), negated, include, exclude);
+                }
+                return any;
+            }
+            int[] range = parseRange(spec);
+            if (range == null) {
+                return false;
+            }
+            (negated ? exclude : include).add(range);
+            return true;
+        }
+
+        private static int[] parseRange(String spec) {
+            if (spec.equals("any")) return new int[] {0, 65535};
+            Integer service = SERVICE_PORTS.get(spec.toLowerCase());
+            if (service != null) return new int[] {service, service};
+            try {
+                int colon = spec.indexOf(':');
+                if (colon < 0) {
+                    int port = Integer.parseInt(spec);
+                    return new int[] {port, port};
+                }
+                String lo = spec.substring(0, colon).trim();
+                String hi = spec.substring(colon + 1).trim();
+                return new int[] {
+                    lo.isEmpty() ? 0 : Integer.parseInt(lo),
+                    hi.isEmpty() ? 65535 : Integer.parseInt(hi)
+                };
+            } catch (NumberFormatException e) {
+                return null; // unresolved variable or malformed port
+            }
+        }
+
+        boolean matches(int port) {
+            if (matchesAny) return true;
+            if (port == ABSENT) return false;
+            boolean included = false;
+            for (int i = 0; i < includeLo.length; i++) {
+                if (port >= includeLo[i] && port <= includeHi[i]) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) return false;
+            for (int i = 0; i < excludeLo.length; i++) {
+                if (port >= excludeLo[i] && port <= excludeHi[i]) return false;
+            }
+            return true;
+        }
+
+        boolean isAny() {
+            return matchesAny;
+        }
+
+        /**
+         * Adds every port at which {@link #matches} can change its answer.
+         */
+        void addBoundaries(Collection<Integer> boundaries) {
+            for (int i = 0; i < includeLo.length; i++) {
+                boundaries.add(includeLo[i]);
+                boundaries.add(includeHi[i] + 1);
+            }
+            for (int i = 0; i < excludeLo.length; i++) {
+                boundaries.add(excludeLo[i]);
+                boundaries.add(excludeHi[i] + 1);
+            }
+        }
+    }
+
+    /**
+     * Set of IPv4 networks as include/exclude network/mask pairs.
+     */
+    static final class NetSpec {
+        static final NetSpec ANY = new NetSpec(new int[0], new int[0], new int[0], new int[0], true);
+        static final NetSpec NONE = new NetSpec(new int[0], new int[0], new int[0], new int[0], false);
+
+        private final int[] includeNet;
+        private final int[] includeMask;
+        private final int[] excludeNet;
+        private final int[] excludeMask;
+        private final boolean matchesAny;
+
+        private NetSpec(int[] includeNet, int[] includeMask, int[] excludeNet, int[] excludeMask, boolean matchesAny) {
+            this.includeNet = includeNet;
+            this.includeMask = includeMask;
+            this.excludeNet = excludeNet;
+            this.excludeMask = excludeMask;
+            this.matchesAny = matchesAny;
+        }
+
+        static NetSpec compile(String spec, Map<String, String> vars) {
+            if (spec == null || spec.equals("any")) return ANY;
+            List<int[]> include = new ArrayList<>();
+            List<int[]> exclude = new ArrayList<>();
+            if (!collect(spec.trim(), false, vars, 0, include, exclude)) {
+                return NONE;
+            }
+            if (include.isEmpty() && exclude.isEmpty()) return NONE;
+            if (include.isEmpty()) include.add(new int[] {0, 0});
+            return new NetSpec(column(include, 0), column(include, 1),
+                               column(exclude, 0), column(exclude, 1), false);
+        }
+
+        private static boolean collect(String spec, boolean negated, Map<String, String> vars, int depth,
+                                       List<int[]> include, List<int[]> exclude) {
+            if (depth > 8) return false; // self-referencing variables
+            if (spec.startsWith("!")) {
+                return collect(spec.substring(1).trim(), !negated, vars, depth, include, exclude);
+            }
+            if (spec.startsWith("[") && spec.endsWith("]")) {
+                boolean any = false;
+                for (String item : spec.substring(1, spec.length() - 1).split(",")) {
+                    any |= collect(item.trim(), negated, vars, depth, include, exclude);
+                }
+                return any;
+            }
+            if (spec.startsWith("$")) {
+                String value = vars.get(spec.substring(1));
+                return value != null && collect(value.trim(), negated, vars, depth + 1, include, exclude);
+            }
+            if (spec.equals("any")) {
+                (negated ? exclude : include).add(new int[] {0, 0});
+                return true;
+            }
+            int slash = spec.indexOf('/');
+            long address = parseIpv4(slash < 0 ? spec : spec.substring(0, slash));
+            if (address < 0) return false;
+            int prefix;
+            try {
+                prefix = slash < 0 ? 32 : Integer.parseInt(spec.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (prefix < 0 || prefix > 32) return false;
+            int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+            (negated ? exclude : include).add(new int[] {(int) address & mask, mask});
+            return true;
+        }
+
+        int[] getIncludeNets() {
+            return includeNet;
+        }
+
+        int[] getIncludeMasks() {
+            return includeMask;
+        }
+
+        int[] getExcludeNets() {
+            return excludeNet;
+        }
+
+        int[] getExcludeMasks() {
+            return excludeMask;
+        }
+
+        boolean matches(long address) {
+            if (matchesAny) return true;
+            if (address < 0) return false;
+            int ip = (int) address;
+            boolean included = false;
+            for (int i = 0; i < includeNet.length; i++) {
+                if ((ip & includeMask[i]) == includeNet[i]) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) return false;
+            for (int i = 0; i < excludeNet.length; i++) {
+                if ((ip & excludeMask[i]) == excludeNet[i]) return false;
+            }
+            return true;
+        }
+
+        boolean isAny() {
+            return matchesAny;
+        }
+    }
+
+    private static int[] column(List<int[]> rows, int index) {
+        int[] values = new int[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i)[index];
+        }
+        return values;
+    }
+}
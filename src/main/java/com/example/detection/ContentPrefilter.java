@@ -0,0 +1,177 @@
+package com.example.detection;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton built from the content anchor of every rule.
+ * A single pass over the packet text marks the ordinals of all rules whose
+ * anchor occurs in it, so full evaluation only runs on those rules.
+ */
+public class ContentPrefilter {
+    private static final int MAX_INDEXED_CHAR = 0xFF;
+
+    private final int[] charClass;      // char (0..255) -> input class, 0 = not in any pattern
+    private final int classCount;
+    private final int[] delta;          // state * classCount + class -> next state
+    private final int[][] outputs;      // state -> rule ordinals ending here (fail chain merged)
+    private final boolean[] anchored;   // ordinal -> rule is gated by the automaton
+    private final int patternCount;
+
+    public ContentPrefilter(List<CompiledRule> rules) {
+        this.anchored = new boolean[rules.size()];
+
+        // Group rule ordinals by anchor string; identical anchors share one pattern
+        Map<String, List<Integer>> patterns = new LinkedHashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            String anchor = anchorOf(rules.get(i));
+            if (anchor != null) {
+                patterns.computeIfAbsent(anchor, k -> new ArrayList<>()).add(i);
+                anchored[i] = true;
+            }
+        }
+        this.patternCount = patterns.size();
+
+        // Compress the alphabet to the characters that actually occur in patterns
+        this.charClass = new int[MAX_INDEXED_CHAR + 1];
+        int classes = 1;
+        for (String pattern : patterns.keySet()) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (charClass[c] == 0) {
+                    charClass[c] = classes++;
+                }
+            }
+        }
+        this.classCount = classes;
+
+        // Build the trie
+        List<int[]> gotoRows = new ArrayList<>();
+        List<List<Integer>> out = new ArrayList<>();
+        gotoRows.add(newRow());
+        out.add(null);
+        for (Map.Entry<String, List<Integer>> entry : patterns.entrySet()) {
+            String pattern = entry.getKey();
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int cls = charClass[pattern.charAt(i)];
+                int next = gotoRows.get(state)[cls];
+                if (next < 0) {
+                    next = gotoRows.size();
+                    gotoRows.add(newRow());
+                    out.add(null);
+                    gotoRows.get(state)[cls] = next;
+                }
+                state = next;
+            }
+            if (out.get(state) == null) {
+                out.set(state, new ArrayList<>());
+            }
+            out.get(state).addAll(entry.getValue());
+        }
+
+        // Breadth-first pass: compute failure links and turn the trie into a DFA
+        int states = gotoRows.size();
+        this.delta = new int[states * classCount];
+        int[] fail = new int[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        int[] root = gotoRows.get(0);
+        for (int cls = 0; cls < classCount; cls++) {
+            int next = root[cls];
+            if (next < 0) {
+                delta[cls] = 0;
+            } else {
+                delta[cls] = next;
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            List<Integer> inherited = out.get(fail[state]);
+            if (inherited != null) {
+                if (out.get(state) == null) {
+                    out.set(state, new ArrayList<>());
+                }
+                out.get(state).addAll(inherited);
+            }
+            int[] row = gotoRows.get(state);
+            for (int cls = 0; cls < classCount; cls++) {
+                int next = row[cls];
+                if (next < 0) {
+                    delta[state * classCount + cls] = delta[fail[state] * classCount + cls];
+                } else {
+                    delta[state * classCount + cls] = next;
+                    fail[next] = delta[fail[state] * classCount + cls];
+                    queue.add(next);
+                }
+            }
+        }
+
+        this.outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> ordinals = out.get(s);
+            if (ordinals != null) {
+                outputs[s] = ordinals.stream().distinct().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    /**
+     * Returns the literal the engine requires in the payload, or null when the
+     * rule cannot be gated (no content, or characters outside the indexed range).
+     */
+    private static String anchorOf(CompiledRule rule) {
+        String content = rule.getContent();
+        if (content == null || content.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < content.length(); i++) {
+            if (content.charAt(i) > MAX_INDEXED_CHAR) {
+                return null;
+            }
+        }
+        return content;
+    }
+
+    private int[] newRow() {
+        int[] row = new int[classCount];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    /**
+     * Scans the text once and sets the bit of every rule whose anchor occurs in it.
+     */
+    public void scan(String text, long[] hits) {
+        if (text == null || patternCount == 0) {
+            return;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int cls = c <= MAX_INDEXED_CHAR ? charClass[c] : 0;
+            state = delta[state * classCount + cls];
+            int[] matched = outputs[state];
+            if (matched != null) {
+                for (int ordinal : matched) {
+                    hits[ordinal >>> 6] |= 1L << ordinal;
+                }
+            }
+        }
+    }
+
+    /**
+     * True when the rule can only match if its anchor was reported by {@link #scan}.
+     */
+    public boolean isAnchored(int ordinal) {
+        return anchored[ordinal];
+    }
+
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    public int getStateCount() {
+        return outputs.length;
+    }
+}
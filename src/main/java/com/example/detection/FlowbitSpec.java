@@ -0,0 +1,182 @@
+package com.example.detection;
+
+import com.example.flow.FlowTable;
+import com.example.flow.Flowbits;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled flowbits options of one rule. Checks (isset, isnotset) gate the
+ * rule; actions (set, unset, toggle, reset) are applied to the packet's flow
+ * when the whole rule matches; noalert keeps a matching rule out of the alerts.
+ *
+ * Names are interned by {@link Flowbits}. "a|b" in a check means any of the
+ * bits, "a&b" all of them; in an action both forms apply to every name.
+ * Packets that belong to no tracked flow have no bits: isset fails, isnotset
+ * passes and actions are dropped.
+ */
+final class FlowbitSpec {
+    private static final int[] NO_BITS = new int[0];
+
+    private final int[][] checks;
+    private final boolean[] negated;
+    private final boolean[] any;
+    private final int[] set;
+    private final int[] unset;
+    private final int[] toggle;
+    private final boolean reset;
+    private final boolean noAlert;
+
+    private FlowbitSpec(List<int[]> checks, List<Boolean> negated, List<Boolean> any,
+                        List<Integer> set, List<Integer> unset, List<Integer> toggle,
+                        boolean reset, boolean noAlert) {
+        this.checks = checks.toArray(new int[0][]);
+        this.negated = new boolean[checks.size()];
+        this.any = new boolean[checks.size()];
+        for (int i = 0; i < checks.size(); i++) {
+            this.negated[i] = negated.get(i);
+            this.any[i] = any.get(i);
+        }
+        this.set = toArray(set);
+        this.unset = toArray(unset);
+        this.toggle = toArray(toggle);
+        this.reset = reset;
+        this.noAlert = noAlert;
+    }
+
+    /**
+     * Parses the rule's "flowbits" option: one clause per flowbits keyword,
+     * separated by ';' (for instance "set,file.zip;noalert").
+     *
+     * @return null when there is no option or it has no recognised clause
+     */
+    static FlowbitSpec compile(String option) {
+        if (option == null) return null;
+        List<int[]> checks = new ArrayList<>();
+        List<Boolean> negated = new ArrayList<>();
+        List<Boolean> any = new ArrayList<>();
+        List<Integer> set = new ArrayList<>();
+        List<Integer> unset = new ArrayList<>();
+        List<Integer> toggle = new ArrayList<>();
+        boolean reset = false;
+        boolean noAlert = false;
+        boolean recognised = false;
+
+        for (String clause : option.split(";")) {
+            String[] parts = clause.trim().split(",");
+            String keyword = parts[0].trim().toLowerCase();
+            String names = parts.length > 1 ? parts[1].trim() : "";
+            switch (keyword) {
+                case "noalert":
+                    noAlert = true;
+                    break;
+                case "reset":
+                    reset = true;
+                    break;
+                case "isset":
+                case "isnotset":
+                    if (names.isEmpty()) continue;
+                    checks.add(intern(names));
+                    negated.add(keyword.equals("isnotset"));
+                    any.add(names.indexOf('|') >= 0);
+                    break;
+                case "set":
+                case "unset":
+                case "toggle":
+                    if (names.isEmpty()) continue;
+                    List<Integer> target = keyword.equals("set") ? set : keyword.equals("unset") ? unset : toggle;
+                    for (int bit : intern(names)) {
+                        target.add(bit);
+                    }
+                    break;
+                default:
+                    continue; // unknown keyword
+            }
+            recognised = true;
+        }
+        return recognised ? new FlowbitSpec(checks, negated, any, set, unset, toggle, reset, noAlert) : null;
+    }
+
+    private static int[] intern(String names) {
+        String[] split = names.split("[|&]");
+        int[] bits = new int[split.length];
+        for (int i = 0; i < split.length; i++) {
+            bits[i] = Flowbits.intern(split[i].trim());
+        }
+        return bits;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        if (values.isEmpty()) return NO_BITS;
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    /** True when the rule needs some bit set, so flows without bits can skip it. */
+    boolean requiresSetBit() {
+        for (boolean n : negated) {
+            if (!n) return true;
+        }
+        return false;
+    }
+
+    /** True when a match changes flow state. */
+    boolean writes() {
+        return set.length > 0 || unset.length > 0 || toggle.length > 0 || reset;
+    }
+
+    boolean isNoAlert() {
+        return noAlert;
+    }
+
+    /**
+     * @param flows  table the packet's flow lives in, or null
+     * @param flowId the packet's flow, or a negative value when untracked
+     */
+    boolean allows(FlowTable flows, int flowId) {
+        boolean tracked = flows != null && flowId >= 0;
+        for (int i = 0; i < checks.length; i++) {
+            boolean result;
+            if (!tracked) {
+                result = false;
+            } else if (any[i]) {
+                result = false;
+                for (int bit : checks[i]) {
+                    if (flows.isFlowbitSet(flowId, bit)) {
+                        result = true;
+                        break;
+                    }
+                }
+            } else {
+                result = true;
+                for (int bit : checks[i]) {
+                    if (!flows.isFlowbitSet(flowId, bit)) {
+                        result = false;
+                        break;
+                    }
+                }
+            }
+            if (result == negated[i]) return false;
+        }
+        return true;
+    }
+
+    void apply(FlowTable flows, int flowId) {
+        if (flows == null || flowId < 0) return;
+        if (reset) {
+            flows.clearFlowbits(flowId);
+        }
+        for (int bit : set) {
+            flows.setFlowbit(flowId, bit);
+        }
+        for (int bit : unset) {
+            flows.clearFlowbit(flowId, bit);
+        }
+        for (int bit : toggle) {
+            flows.toggleFlowbit(flowId, bit);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.detection;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch with a small top-K table, for finding the keys (addresses,
+ * address and port pairs) that carry a large share of the traffic in constant
+ * memory, whatever the number of distinct keys.
+ *
+ * Updates are conservative: only the counters at the current minimum are
+ * raised, which keeps the overestimate of light keys low. The caller decays the
+ * sketch by halving every counter at a fixed interval, so counts follow recent
+ * traffic. The top-K table holds the heaviest keys seen with their latest
+ * estimates; a key only needs scanning for when its estimate beats the
+ * lightest entry.
+ *
+ * Not thread-safe.
+ */
+public final class HeavyHitterSketch {
+    private final int depth;
+    private final int widthMask;
+    private final int[] counters;
+    private long total;
+
+    private final long[] topKeys;
+    private final long[] topCounts;
+    private final long[] topAlerted;
+    private int topSize;
+    private long topMin;
+
+    /**
+     * @param depth number of hash rows
+     * @param width counters per row, rounded up to a power of two
+     * @param topK  heaviest keys kept
+     */
+    public HeavyHitterSketch(int depth, int width, int topK) {
+        if (depth <= 0 || width <= 0 || topK <= 0) {
+            throw new IllegalArgumentException("Invalid sketch: " + depth + "x" + width + ", top " + topK);
+        }
+        int size = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.depth = depth;
+        this.widthMask = size - 1;
+        this.counters = new int[depth * size];
+        this.topKeys = new long[topK];
+        this.topCounts = new long[topK];
+        this.topAlerted = new long[topK];
+    }
+
+    /**
+     * Counts one occurrence of {@code key}.
+     * @return the key's estimated count, never below the true count
+     */
+    public long add(long key) {
+        total++;
+        long hash = HyperLogLogArray.hash(key, 0x636D73L);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int at = row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+            min = Math.min(min, counters[at]);
+        }
+        int next = min == Integer.MAX_VALUE ? min : min + 1;
+        for (int row = 0; row < depth; row++) {
+            int at = row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+            if (counters[at] < next) {
+                counters[at] = next;
+            }
+        }
+        if (topSize < topKeys.length || next > topMin) {
+            offer(key, next);
+        }
+        return next;
+    }
+
+    private void offer(long key, long estimate) {
+        for (int i = 0; i < topSize; i++) {
+            if (topKeys[i] == key) {
+                topCounts[i] = estimate;
+                updateMin();
+                return;
+            }
+        }
+        int slot;
+        if (topSize < topKeys.length) {
+            slot = topSize++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < topSize; i++) {
+                if (topCounts[i] < topCounts[slot]) slot = i;
+            }
+        }
+        topKeys[slot] = key;
+        topCounts[slot] = estimate;
+        topAlerted[slot] = Long.MIN_VALUE;
+        updateMin();
+    }
+
+    private void updateMin() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < topSize; i++) {
+            min = Math.min(min, topCounts[i]);
+        }
+        topMin = topSize < topKeys.length ? 0 : min;
+    }
+
+    /** Divides every count by 2^{@code halvings}, so older traffic weighs less. */
+    public void decay(int halvings) {
+        if (halvings <= 0) return;
+        if (halvings >= 31) {
+            Arrays.fill(counters, 0);
+            Arrays.fill(topCounts, 0, topSize, 0);
+            total = 0;
+            topMin = 0;
+            return;
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= halvings;
+        }
+        for (int i = 0; i < topSize; i++) {
+            topCounts[i] >>>= halvings;
+        }
+        total >>>= halvings;
+        updateMin();
+    }
+
+    /** Decayed count of every key together. */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Records an alert for {@code key} at {@code now} unless one was recorded
+     * less than {@code interval} earlier.
+     * @return true if the caller should raise the alert; false also for keys not in the top-K
+     */
+    public boolean claimAlert(long key, long now, long interval) {
+        for (int i = 0; i < topSize; i++) {
+            if (topKeys[i] == key) {
+                if (topAlerted[i] != Long.MIN_VALUE && now - topAlerted[i] < interval) return false;
+                topAlerted[i] = now;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Index of {@code key} in the top-K table, or -1 when it is not one of the heaviest keys. */
+    public int indexOf(long key) {
+        for (int i = 0; i < topSize; i++) {
+            if (topKeys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    public int getTopSize() {
+        return topSize;
+    }
+
+    public long getTopKey(int i) {
+        return topKeys[i];
+    }
+
+    public long getTopCount(int i) {
+        return topCounts[i];
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.detection;
+
+import java.util.Arrays;
+
+/**
+ * A fixed number of HyperLogLog sketches in one flat register array, for
+ * estimating per-key distinct counts (ports, hosts) in constant memory: with
+ * precision p each sketch is 2^p one-byte registers and the standard error is
+ * about 1.04 / sqrt(2^p), 6.5% for p = 8.
+ *
+ * Each sketch also keeps the sum of 2^-register and its count of empty
+ * registers up to date, so {@link #estimate} is O(1) instead of a pass over the
+ * registers. Callers add 64-bit hashes; {@link #hash(long, long)} mixes a value
+ * with a seed so the sketches of different dimensions stay independent.
+ *
+ * Not thread-safe.
+ */
+public final class HyperLogLogArray {
+    private static final double[] INVERSE_POWERS = new double[66];
+
+    static {
+        for (int i = 0; i < INVERSE_POWERS.length; i++) {
+            INVERSE_POWERS[i] = Math.scalb(1.0, -i);
+        }
+    }
+
+    private final int precision;
+    private final int registers;
+    private final double alphaMM;
+    private final byte[] values;
+    private final double[] inverseSum;
+    private final int[] zeros;
+
+    /**
+     * @param sketches  number of sketches, 0 .. sketches-1
+     * @param precision log2 of the registers per sketch, 4 to 16
+     */
+    public HyperLogLogArray(int sketches, int precision) {
+        if (sketches <= 0 || precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Invalid HyperLogLog array: " + sketches + " sketches, precision " + precision);
+        }
+        this.precision = precision;
+        this.registers = 1 << precision;
+        double alpha = registers == 16 ? 0.673 : registers == 32 ? 0.697 : registers == 64 ? 0.709
+            : 0.7213 / (1 + 1.079 / registers);
+        this.alphaMM = alpha * registers * registers;
+        this.values = new byte[sketches * registers];
+        this.inverseSum = new double[sketches];
+        this.zeros = new int[sketches];
+        Arrays.fill(inverseSum, registers);
+        Arrays.fill(zeros, registers);
+    }
+
+    /**
+     * Adds a 64-bit hash to {@code sketch}.
+     * @return true if a register changed, i.e. the estimate may have grown
+     */
+    public boolean add(int sketch, long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // Rank of the first set bit after the index bits, capped by the bits left
+        int rank = Math.min(Long.numberOfLeadingZeros(hash << precision), 64 - precision) + 1;
+        int at = sketch * registers + index;
+        int old = values[at];
+        if (rank <= old) return false;
+        values[at] = (byte) rank;
+        inverseSum[sketch] += INVERSE_POWERS[rank] - INVERSE_POWERS[old];
+        if (old == 0) {
+            zeros[sketch]--;
+        }
+        return true;
+    }
+
+    /** Estimated number of distinct hashes added to {@code sketch} since it was cleared. */
+    public double estimate(int sketch) {
+        double raw = alphaMM / inverseSum[sketch];
+        int empty = zeros[sketch];
+        if (raw <= 2.5 * registers && empty > 0) {
+            // Linear counting is more accurate while many registers are empty
+            return registers * Math.log((double) registers / empty);
+        }
+        return raw;
+    }
+
+    public void clear(int sketch) {
+        Arrays.fill(values, sketch * registers, (sketch + 1) * registers, (byte) 0);
+        inverseSum[sketch] = registers;
+        zeros[sketch] = registers;
+    }
+
+    public int getBytesPerSketch() {
+        return registers;
+    }
+
+    /** fmix64 from MurmurHash3 over {@code value} mixed with {@code seed}. */
+    public static long hash(long value, long seed) {
+        long h = (value + seed) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
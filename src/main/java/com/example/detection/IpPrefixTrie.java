@@ -0,0 +1,132 @@
+package com.example.detection;
+
+import java.util.*;
+
+/**
+ * Binary radix trie over the source or destination networks of all rules.
+ * Every prefix that appears in a rule (after $HOME_NET/$EXTERNAL_NET expansion)
+ * is a marked node. Each marked node stores the final candidate bitset for
+ * addresses whose longest matching prefix ends there. That bitset combines the
+ * include and exclude (negated) prefixes of all its ancestors. A lookup walks
+ * at most 32 bits and returns a shared bitset without allocating.
+ */
+class IpPrefixTrie {
+    private static final int ROOT = 0;
+
+    private final int[] zero;
+    private final int[] one;
+    private final long[][] results;   // non-null only on marked nodes
+    private final long[] unmatched;   // for packets without a valid address
+
+    IpPrefixTrie(CompiledRule[] rules, boolean source) {
+        int words = (rules.length + 63) >>> 6;
+        List<int[]> children = new ArrayList<>();
+        List<List<Integer>> includes = new ArrayList<>();
+        List<List<Integer>> excludes = new ArrayList<>();
+        children.add(new int[] {-1, -1});
+        includes.add(null);
+        excludes.add(null);
+
+        this.unmatched = new long[words];
+        for (CompiledRule rule : rules) {
+            CompiledRule.NetSpec spec = source ? rule.getSourceNet() : rule.getDestinationNet();
+            int ordinal = rule.getOrdinal();
+            if (spec.isAny()) {
+                unmatched[ordinal >>> 6] |= 1L << ordinal;
+                continue;
+            }
+            int[] nets = spec.getIncludeNets();
+            int[] masks = spec.getIncludeMasks();
+            for (int i = 0; i < nets.length; i++) {
+                mark(children, includes, excludes, nets[i], masks[i], includes).add(ordinal);
+            }
+            nets = spec.getExcludeNets();
+            masks = spec.getExcludeMasks();
+            for (int i = 0; i < nets.length; i++) {
+                mark(children, includes, excludes, nets[i], masks[i], excludes).add(ordinal);
+            }
+        }
+
+        int nodes = children.size();
+        this.zero = new int[nodes];
+        this.one = new int[nodes];
+        for (int n = 0; n < nodes; n++) {
+            zero[n] = children.get(n)[0];
+            one[n] = children.get(n)[1];
+        }
+
+        // Push include/exclude sets down to every marked node
+        this.results = new long[nodes][];
+        pushDown(ROOT, new long[words], new long[words], includes, excludes);
+    }
+
+    private void pushDown(int node, long[] include, long[] exclude,
+                          List<List<Integer>> includes, List<List<Integer>> excludes) {
+        if (node == ROOT || includes.get(node) != null || excludes.get(node) != null) {
+            include = withBits(include, includes.get(node));
+            exclude = withBits(exclude, excludes.get(node));
+            long[] result = new long[include.length];
+            for (int w = 0; w < result.length; w++) {
+                result[w] = unmatched[w] | (include[w] & ~exclude[w]);
+            }
+            results[node] = result;
+        }
+        if (zero[node] >= 0) pushDown(zero[node], include, exclude, includes, excludes);
+        if (one[node] >= 0) pushDown(one[node], include, exclude, includes, excludes);
+    }
+
+    private static List<Integer> mark(List<int[]> children, List<List<Integer>> includes,
+                                      List<List<Integer>> excludes, int net, int mask,
+                                      List<List<Integer>> target) {
+        int prefix = Integer.bitCount(mask);
+        int node = ROOT;
+        for (int depth = 0; depth < prefix; depth++) {
+            int bit = (net >>> (31 - depth)) & 1;
+            int next = children.get(node)[bit];
+            if (next < 0) {
+                next = children.size();
+                children.add(new int[] {-1, -1});
+                includes.add(null);
+                excludes.add(null);
+                children.get(node)[bit] = next;
+            }
+            node = next;
+        }
+        if (target.get(node) == null) {
+            target.set(node, new ArrayList<>());
+        }
+        return target.get(node);
+    }
+
+    private static long[] withBits(long[] bits, List<Integer> ordinals) {
+        if (ordinals == null) return bits;
+        long[] copy = bits.clone();
+        for (int ordinal : ordinals) {
+            copy[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the bitset of rules whose network spec accepts the address. The
+     * array is shared and must not be modified.
+     *
+     * @param address unsigned IPv4 address, or a negative value when unknown
+     */
+    long[] lookup(long address) {
+        if (address < 0) return unmatched;
+        int ip = (int) address;
+        int node = ROOT;
+        long[] best = results[ROOT];
+        for (int depth = 0; depth < 32; depth++) {
+            node = ((ip >>> (31 - depth)) & 1) == 0 ? zero[node] : one[node];
+            if (node < 0) break;
+            if (results[node] != null) best = results[node];
+        }
+        return best;
+    }
+
+    int getNodeCount() {
+        return zero.length;
+    }
+}
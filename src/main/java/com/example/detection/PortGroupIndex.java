@@ -0,0 +1,91 @@
+package com.example.detection;
+
+import java.util.*;
+
+/**
+ * Snort-style port groups for one direction (source or destination port).
+ * The port space is cut into segments at every range boundary of every rule.
+ * Membership is constant inside a segment, so each segment maps to one group:
+ * a bitset over rule ordinals of every rule whose port spec accepts those
+ * ports. Rules with "any" are set in every group. Segments with identical
+ * members share one group, and a lookup is a single array access.
+ */
+class PortGroupIndex {
+    private static final int PORTS = 65536;
+
+    private final int[] groupOf = new int[PORTS];
+    private final List<long[]> groups = new ArrayList<>();
+    private final List<Integer> groupSizes = new ArrayList<>();
+    private final long[] anyPort;
+
+    PortGroupIndex(CompiledRule[] rules, boolean destination) {
+        int words = (rules.length + 63) >>> 6;
+        this.anyPort = new long[words];
+        List<CompiledRule> specific = new ArrayList<>();
+        TreeSet<Integer> boundaries = new TreeSet<>();
+        boundaries.add(0);
+        for (CompiledRule rule : rules) {
+            CompiledRule.PortSpec spec = portSpec(rule, destination);
+            if (spec.isAny()) {
+                anyPort[rule.getOrdinal() >>> 6] |= 1L << rule.getOrdinal();
+            } else {
+                specific.add(rule);
+                spec.addBoundaries(boundaries);
+            }
+        }
+
+        Map<List<Integer>, Integer> interned = new HashMap<>();
+        Iterator<Integer> it = boundaries.iterator();
+        int start = it.next();
+        while (start < PORTS) {
+            int end = it.hasNext() ? Math.min(it.next(), PORTS) : PORTS;
+            List<Integer> members = new ArrayList<>();
+            for (CompiledRule rule : specific) {
+                if (portSpec(rule, destination).matches(start)) {
+                    members.add(rule.getOrdinal());
+                }
+            }
+            Integer id = interned.get(members);
+            if (id == null) {
+                long[] bits = anyPort.clone();
+                for (int ordinal : members) {
+                    bits[ordinal >>> 6] |= 1L << ordinal;
+                }
+                id = groups.size();
+                groups.add(bits);
+                groupSizes.add(members.size());
+                interned.put(members, id);
+            }
+            Arrays.fill(groupOf, start, end, id);
+            start = end;
+        }
+    }
+
+    private static CompiledRule.PortSpec portSpec(CompiledRule rule, boolean destination) {
+        return destination ? rule.getDestinationPort() : rule.getSourcePort();
+    }
+
+    /**
+     * Returns the shared bitset of rules whose port spec accepts the port.
+     * Packets without a port only see rules with "any".
+     */
+    long[] lookup(int port) {
+        return port == CompiledRule.ABSENT ? anyPort : groups.get(groupOf[port]);
+    }
+
+    Map<String, Integer> getStatistics() {
+        Map<String, Integer> stats = new LinkedHashMap<>();
+        int anyRules = 0;
+        for (long word : anyPort) {
+            anyRules += Long.bitCount(word);
+        }
+        int max = 0;
+        for (int size : groupSizes) {
+            max = Math.max(max, size);
+        }
+        stats.put("groups", groups.size());
+        stats.put("anyPortRules", anyRules);
+        stats.put("maxGroupSize", max + anyRules);
+        return stats;
+    }
+}
@@ -1,37 +1,29 @@
 package com.example.detection;
 
+import com.example.flow.FlowTable;
+import com.example.flow.FlowVerdictCache;
+import com.example.util.PacketRecord;
 import com.example.util.Rule;
 import com.example.util.RuleLoader;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 public class RuleEngine {
     private static final Logger LOGGER = Logger.getLogger(RuleEngine.class.getName());
     private final List<Rule> rules;
-    private final Map<String, List<Rule>> protocolRules;
+    private volatile RuleIndex index;
+    private static final int RANK_PASS_SHIFT = 30;
+    private static final int RANK_ORDINAL_MASK = (1 << RANK_PASS_SHIFT) - 1;
+    private static final ThreadLocal<PacketRecord> ADAPTER_RECORD = ThreadLocal.withInitial(PacketRecord::new);
+    private volatile boolean contentPrefilterEnabled = true;
+    private volatile boolean portGroupsEnabled = true;
+    private volatile boolean addressIndexEnabled = true;
     private final RuleLoader ruleLoader;
     private String homeNet;
     private String externalNet;
-    private final Pattern portRangePattern;
-    private final Pattern ipCidrPattern;
-    
-    private static final Map<String, Integer> SERVICE_PORTS;
-    static {
-        Map<String, Integer> ports = new HashMap<>();
-        ports.put("http", 80);
-        ports.put("https", 443);
-        ports.put("ftp", 21);
-        ports.put("ssh", 22);
-        ports.put("telnet", 23);
-        ports.put("smtp", 25);
-        ports.put("dns", 53);
-        SERVICE_PORTS = Collections.unmodifiableMap(ports);
-    }
+
+    private FlowTable flowTable;
 
     private Rule lastMatchedRule;
     private Alert lastAlert;
@@ -39,20 +31,60 @@ public class RuleEngine {
     public RuleEngine() {
         this.ruleLoader = new RuleLoader();
         this.rules = new ArrayList<>();
-        this.protocolRules = new HashMap<>();
         this.homeNet = "192.168.0.0/16"; // Default home network
         this.externalNet = "0.0.0.0/0";   // Default external network
-        this.portRangePattern = Pattern.compile("(\\d+)(?::(\\d+))?");
-        this.ipCidrPattern = Pattern.compile("(\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3})(?:/(\\d{1,2}))?");
         loadRules();
     }
 
-    public void setHomeNet(String homeNet) {
+    public synchronized void setHomeNet(String homeNet) {
         this.homeNet = homeNet;
+        index = null;
     }
 
-    public void setExternalNet(String externalNet) {
+    public synchronized void setExternalNet(String externalNet) {
         this.externalNet = externalNet;
+        index = null;
+    }
+
+    /**
+     * Enables or disables the multi-pattern content prefilter. Matching results are the
+     * same either way; disabling it is only useful to measure its effect.
+     */
+    public void setContentPrefilterEnabled(boolean enabled) {
+        this.contentPrefilterEnabled = enabled;
+    }
+
+    /**
+     * Enables or disables per-port rule groups. When disabled every rule of the
+     * packet's protocol is evaluated, as with a flat per-protocol list.
+     */
+    public void setPortGroupsEnabled(boolean enabled) {
+        this.portGroupsEnabled = enabled;
+    }
+
+    /**
+     * Enables or disables the source/destination prefix tries that discard rules
+     * whose networks cannot contain the packet's addresses.
+     */
+    public void setAddressIndexEnabled(boolean enabled) {
+        this.addressIndexEnabled = enabled;
+    }
+
+    /**
+     * Connection tracker whose flows hold the flowbits of the packets this engine
+     * sees; it must be the table that stamped the records' flow ids. Without one,
+     * every packet is treated as flowless for flowbits. Like the table itself, the
+     * flowbit state is meant for a single thread.
+     */
+    public void setFlowTable(FlowTable flowTable) {
+        this.flowTable = flowTable;
+    }
+
+    /**
+     * Returns the size of the port groups built for each protocol bucket.
+     */
+    public Map<String, Map<String, Integer>> getPortGroupStatistics() {
+        return currentIndex().getPortGroupStatistics();
     }
 
     private void loadRules() {
@@ -61,206 +93,149 @@ public class RuleEngine {
             rules.addAll(loadedRules);
             
             LOGGER.info("Loaded " + loadedRules.size() + " rules successfully");
-
-            // Index rules by protocol for faster matching
-            for (Rule rule : loadedRules) {
-                String protocol = rule.getProtocol();
-                protocolRules.computeIfAbsent(protocol, k -> new ArrayList<>()).add(rule);
-            }
-            
+            index = null;
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error loading rules", e);
         }
     }
 
     public List<Rule> getMatchingRules(Map<String, String> packet) {
-            if (packet == null || packet.isEmpty()) {
-                return Collections.emptyList();
-            }
+        if (packet == null || packet.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return getMatchingRules(PacketRecord.fromMap(packet, ADAPTER_RECORD.get()));
+    }
+
+    public List<Rule> getMatchingRules(PacketRecord packet) {
+        if (packet == null) {
+            return Collections.emptyList();
+        }
 
         try {
             List<Rule> matches = new ArrayList<>();
-            String protocol = packet.getOrDefault("protocol", "UNKNOWN").toUpperCase();
-            
-            List<Rule> candidateRules = new ArrayList<>();
-            candidateRules.addAll(protocolRules.getOrDefault(protocol, Collections.emptyList()));
-            candidateRules.addAll(protocolRules.getOrDefault("any", Collections.emptyList()));
-            
-            for (Rule rule : candidateRules) {
-                if (matches(packet, rule)) {
-                    matches.add(rule);
-                }
-            }
-            
+            scan(currentIndex(), packet, null, matches, true);
             return matches;
         } catch (Exception e) {
             return Collections.emptyList();
         }
     }
 
-    private boolean matches(Map<String, String> packet, Rule rule) {
-        if (packet == null || rule == null) return false;
+    /**
+     * Evaluates the packet against the rules in engine order: the packet's own
+     * protocol first, then "any", each in rule order. Matching rules with flowbit
+     * actions update the packet's flow, and noalert rules are never reported.
+     *
+     * @param subset        when not null, only these rules are evaluated
+     * @param matches       receives every matching rule; when null only the first is
+     *                      wanted and, past it, only rules that write flowbits are evaluated
+     * @param applyFlowbits false to leave the flow's bits alone, for data that was
+     *                      already scanned (a reassembled stream window)
+     * @return rank of the first match ({@code pass << RANK_PASS_SHIFT | ordinal}), or -1
+     */
+    private int scan(RuleIndex idx, PacketRecord packet, long[] subset, List<Rule> matches,
+                     boolean applyFlowbits) {
+        // Header fields are already primitives; compiled rules only compare them
+        String packetProtocol = packet.getProtocolName();
+        long srcIp = packet.getSrcIp();
+        long dstIp = packet.getDstIp();
+        int srcPort = packet.getSrcPort();
+        int dstPort = packet.getDstPort();
+        int icmpId = packet.getIcmpId();
+        int icmpType = packet.getIcmpType();
+        int icmpCode = packet.getIcmpCode();
+        int flowFlags = packet.getFlowFlags();
+        FlowTable flows = flowTable;
+        int flowId = flows != null ? packet.getFlowId() : PacketRecord.ABSENT;
+        // isset rules are dropped wholesale when the flow has no bits at all
+        boolean flowbitsSet = flowId >= 0 && flows.hasFlowbits(flowId);
+        long[] gated = idx.getFlowbitGatedBits();
+        long[] writers = idx.getFlowbitWriterBits();
 
-        try {
-            if (!matchesProtocol(packet, rule)) return false;
-            if (!matchesIpAddresses(packet, rule)) return false;
-            if (!matchesPorts(packet, rule)) return false;
-
-            // Vérifier les paramètres ICMP spécifiques
-            if (rule.getProtocol().equalsIgnoreCase("ICMP")) {
-                String icmpId = rule.getOptions().get("icmp_id");
-                String icmpType = rule.getOptions().get("itype");
-                String icmpCode = rule.getOptions().get("icode");
-
-                if (icmpId != null && !icmpId.equals(packet.get("icmp_id"))) {
-                    return false;
-                }
-                if (icmpType != null && !icmpType.equals(packet.get("itype"))) {
-                    return false;
-                }
-                if (icmpCode != null && !icmpCode.equals(packet.get("icode"))) {
-                    return false;
-                }
+        // AND the port and address dimensions into one candidate bitset
+        long[] candidates = idx.selectCandidates(srcPort, dstPort, srcIp, dstIp,
+                                                 portGroupsEnabled, addressIndexEnabled);
+        if (subset != null) {
+            for (int w = 0; w < candidates.length; w++) {
+                candidates[w] &= subset[w];
             }
+        }
+        long[] ownProtocol = idx.getProtocolBits(packetProtocol.toUpperCase());
+        long[] anyProtocol = idx.getProtocolBits("any");
+        if (!RuleIndex.intersects(candidates, ownProtocol) && !RuleIndex.intersects(candidates, anyProtocol)) {
+            return -1;
+        }
 
-            String content = rule.getOptions().get("content");
-            if (content != null) {
-                String data = packet.get("data");
-                String payload = packet.get("payload");
-                
-                if (data == null && payload == null) return false;
+        // One automaton pass over the payload replaces a substring scan per rule;
+        // header-only rules have no content, so they do not need it
+        String data = packet.getPayloadText();
+        boolean prefilter = contentPrefilterEnabled && subset != idx.getHeaderOnlyBits();
+        long[] contentHits = prefilter ? idx.scanContent(data, null) : null;
 
-                boolean contentMatched = false;
-                if (data != null && data.contains(content)) {
-                    contentMatched = true;
+        int first = -1;
+        for (int pass = 0; pass < 2; pass++) {
+            long[] protocolBits = pass == 0 ? ownProtocol : anyProtocol;
+            for (int w = 0; w < candidates.length; w++) {
+                long word = candidates[w] & protocolBits[w];
+                if (contentHits != null) {
+                    word &= contentHits[w];
                 }
-                if (payload != null && payload.contains(content)) {
-                    contentMatched = true;
+                if (!flowbitsSet) {
+                    word &= ~gated[w];
                 }
-
-                if (!contentMatched) return false;
-            }
-
-            return true;
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error matching rule", e);
-            return false;
-        }
-    }
-    
-    private boolean matchesProtocol(Map<String, String> packet, Rule rule) {
-        String ruleProtocol = rule.getProtocol();
-        String packetProtocol = packet.getOrDefault("protocol", "UNKNOWN");
-        
-        if (ruleProtocol == null) return false;
-        
-        // Handle protocol aliases
-        if (ruleProtocol.equalsIgnoreCase("tcp") && 
-            (packetProtocol.equalsIgnoreCase("http") || 
-             packetProtocol.equalsIgnoreCase("https"))) {
-            return true;
-        }
-        
-        return ruleProtocol.equalsIgnoreCase(packetProtocol);
-    }
-
-    private boolean matchesIpAddresses(Map<String, String> packet, Rule rule) {
-        return matchesIp(packet.getOrDefault("srcIP", "0.0.0.0"), rule.getSourceIp()) &&
-               matchesIp(packet.getOrDefault("destIP", "0.0.0.0"), rule.getDestinationIp());
-    }
-    
-    private boolean matchesIp(String packetIp, String ruleIp) {
-        if (ruleIp == null || ruleIp.equals("any")) return true;
-        
-        try {
-            if (ruleIp.equals("$HOME_NET")) {
-                return isInNetwork(packetIp, homeNet);
-            } else if (ruleIp.equals("$EXTERNAL_NET")) {
-                return isInNetwork(packetIp, externalNet);
-            }
-            
-            // Handle CIDR notation
-            Matcher matcher = ipCidrPattern.matcher(ruleIp);
-            if (matcher.matches()) {
-                String ip = matcher.group(1);
-                String cidr = matcher.group(2);
-                return isInNetwork(packetIp, ip + (cidr != null ? "/" + cidr : "/32"));
-            }
-            
-            return ruleIp.equals(packetIp);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error matching IP: " + packetIp + " against " + ruleIp, e);
-            return false;
-        }
-    }
-    
-    private boolean matchesPorts(Map<String, String> packet, Rule rule) {
-        return matchesPort(packet.getOrDefault("srcPort", "0"), rule.getSourcePort()) &&
-               matchesPort(packet.getOrDefault("destPort", "0"), rule.getDestinationPort());
-    }
-    
-    private boolean matchesPort(String packetPort, String rulePort) {
-        if (rulePort == null || rulePort.equals("any")) return true;
-        
-        try {
-            // Nettoyer le port d'entrée (enlever les parenthèses et texte)
-            String cleanPacketPort = packetPort.replaceAll("\\s*\\([^)]*\\)", "").trim();
-            int port = Integer.parseInt(cleanPacketPort);
-            
-            // Handle service names
-            if (SERVICE_PORTS.containsKey(rulePort.toLowerCase())) {
-                return port == SERVICE_PORTS.get(rulePort.toLowerCase());
-            }
-            
-            // Handle port ranges
-            Matcher matcher = portRangePattern.matcher(rulePort);
-            if (matcher.matches()) {
-                int start = Integer.parseInt(matcher.group(1));
-                String endStr = matcher.group(2);
-                if (endStr != null) {
-                    int end = Integer.parseInt(endStr);
-                    return port >= start && port <= end;
+                if (first >= 0 && matches == null) {
+                    word &= writers[w];
+                }
+                while (word != 0) {
+                    int ordinal = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    CompiledRule rule = idx.getCompiledRule(ordinal);
+                    FlowbitSpec flowbits = rule.getFlowbits();
+                    if ((flowbits == null || flowbits.allows(flows, flowId))
+                            && rule.matchesHeader(packetProtocol, srcIp, dstIp, srcPort, dstPort, icmpId, icmpType, icmpCode)
+                            && rule.matchesFlow(flowFlags)
+                            && rule.matchesPayload(data, null)) {
+                        if (flowbits != null) {
+                            if (applyFlowbits) {
+                                flowbits.apply(flows, flowId);
+                            }
+                            if (flowbits.isNoAlert()) continue;
+                        }
+                        if (first < 0) {
+                            first = (pass << RANK_PASS_SHIFT) | ordinal;
+                        }
+                        if (matches != null) {
+                            matches.add(rule.getRule());
+                        } else if (!applyFlowbits || !idx.hasFlowbitWriters()) {
+                            return first;
+                        } else {
+                            word &= writers[w];
+                        }
+                    }
                 }
-                return port == start;
             }
-            
-            // Try direct port number comparison
-            return port == Integer.parseInt(rulePort);
-        } catch (Exception e) {
-        return false;
         }
+        return first;
     }
 
-    private boolean matchesFlow(Map<String, String> packet, Rule rule) {
-        String flow = rule.getOptions().get("flow");
-        if (flow == null) return true;
-        
-        try {
-            String[] flowOptions = flow.split(",");
-            for (String option : flowOptions) {
-                option = option.trim();
-                switch (option) {
-                    case "established":
-                        if (!isEstablishedConnection(packet)) return false;
-                        break;
-                    case "to_server":
-                        if (!isToServer(packet)) return false;
-                        break;
-                    case "to_client":
-                        if (!isToClient(packet)) return false;
-                        break;
-                    case "stateless":
-                        // No state checking needed
-                        break;
+    private RuleIndex currentIndex() {
+        RuleIndex idx = index;
+        if (idx == null) {
+            synchronized (this) {
+                idx = index;
+                if (idx == null) {
+                    idx = new RuleIndex(rules, homeNet, externalNet);
+                    index = idx;
+                    LOGGER.fine("Content prefilter built: " + idx.getPrefilter().getPatternCount()
+                        + " patterns, " + idx.getPrefilter().getStateCount() + " states");
+                    LOGGER.fine("Port groups built: " + idx.getPortGroupStatistics());
+                    LOGGER.fine("Address tries built: " + idx.getSourceTrieNodes() + " source nodes, "
+                        + idx.getDestinationTrieNodes() + " destination nodes");
                 }
             }
-            return true;
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error matching flow", e);
-            return false;
         }
+        return idx;
     }
-    
+
     private boolean matchesContent(Map<String, String> packet, Rule rule) {
         String content = rule.getOptions().get("content");
         if (content == null) return true;
@@ -310,57 +285,6 @@ public class RuleEngine {
         }
     }
 
-    private boolean isInNetwork(String ip, String network) {
-        try {
-            String[] parts = network.split("/");
-            byte[] addr = InetAddress.getByName(ip).getAddress();
-            byte[] subnet = InetAddress.getByName(parts[0]).getAddress();
-            int cidr = parts.length > 1 ? Integer.parseInt(parts[1]) : 32;
-            
-            int mask = -1 << (32 - cidr);
-            
-            int ipInt = ((addr[0] & 0xFF) << 24) |
-                       ((addr[1] & 0xFF) << 16) |
-                       ((addr[2] & 0xFF) << 8)  |
-                       ((addr[3] & 0xFF));
-                       
-            int subnetInt = ((subnet[0] & 0xFF) << 24) |
-                          ((subnet[1] & 0xFF) << 16) |
-                          ((subnet[2] & 0xFF) << 8)  |
-                          ((subnet[3] & 0xFF));
-                          
-            return (ipInt & mask) == (subnetInt & mask);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error checking network membership", e);
-            return false;
-        }
-    }
-
-    private boolean isEstablishedConnection(Map<String, String> packet) {
-        String flags = packet.getOrDefault("tcpFlags", "");
-        return flags.contains("A") && (flags.contains("S") || flags.contains("F"));
-    }
-
-    private boolean isToServer(Map<String, String> packet) {
-        String destPort = packet.getOrDefault("destPort", "0");
-        try {
-            int port = Integer.parseInt(destPort);
-            return port < 1024;
-        } catch (NumberFormatException e) {
-            return false;
-        }
-    }
-
-    private boolean isToClient(Map<String, String> packet) {
-        String srcPort = packet.getOrDefault("srcPort", "0");
-        try {
-            int port = Integer.parseInt(srcPort);
-            return port < 1024;
-        } catch (NumberFormatException e) {
-            return false;
-        }
-    }
-
     private String hexToString(String hex) {
         try {
             StringBuilder sb = new StringBuilder();
@@ -375,24 +299,19 @@ public class RuleEngine {
         }
     }
 
-    public void addRule(Rule rule) {
+    public synchronized void addRule(Rule rule) {
         if (rule != null) {
-            String protocol = rule.getProtocol();
-            protocolRules.computeIfAbsent(protocol, k -> new ArrayList<>()).add(rule);
             rules.add(rule);
+            index = null;
         }
     }
 
-    public void setRules(List<Rule> newRules) {
+    public synchronized void setRules(List<Rule> newRules) {
         rules.clear();
-        protocolRules.clear();
         if (newRules != null) {
             rules.addAll(newRules);
-            for (Rule rule : newRules) {
-                String protocol = rule.getProtocol();
-                protocolRules.computeIfAbsent(protocol, k -> new ArrayList<>()).add(rule);
-            }
         }
+        index = null;
     }
 
     public List<Rule> getRules() {
@@ -402,16 +321,86 @@ public class RuleEngine {
     public boolean matches(Map<String, String> packet) {
         List<Rule> matches = getMatchingRules(packet);
         if (!matches.isEmpty()) {
-            lastMatchedRule = matches.get(0);
-            lastAlert = new Alert(AlertType.RULE_MATCH, 
-                                Severity.valueOf(lastMatchedRule.getOptions().getOrDefault("severity", "MEDIUM")),
-                                lastMatchedRule.getOptions().get("msg"));
-            lastAlert.setPacketData(packet);
+            recordMatch(matches.get(0), packet);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean matches(PacketRecord packet) {
+        List<Rule> matches = getMatchingRules(packet);
+        if (!matches.isEmpty()) {
+            recordMatch(matches.get(0), packet.toMap());
             return true;
         }
         return false;
     }
 
+    /**
+     * Same answer as {@link #matches(PacketRecord)}, reusing the verdict of the
+     * header-only rules cached for the packet's flow direction. Content and PCRE
+     * rules are still evaluated on every packet.
+     */
+    public boolean matches(PacketRecord packet, FlowVerdictCache<?> cache) {
+        if (cache == null) {
+            return matches(packet);
+        }
+        if (packet == null) {
+            return false;
+        }
+        try {
+            RuleIndex idx = currentIndex();
+            int headerRank = cache.lookupRule(packet, idx.getGeneration());
+            if (headerRank == FlowVerdictCache.MISS) {
+                headerRank = scan(idx, packet, idx.getHeaderOnlyBits(), null, true);
+                cache.storeRule(packet, idx.getGeneration(), headerRank);
+            }
+            int payloadRank = scan(idx, packet, idx.getPayloadBits(), null, true);
+            int rank = headerRank < 0 ? payloadRank
+                : payloadRank < 0 ? headerRank : Math.min(headerRank, payloadRank);
+            if (rank < 0) {
+                return false;
+            }
+            recordMatch(idx.getRule(rank & RANK_ORDINAL_MASK), packet.toMap());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the content and PCRE rules against a reassembled stream window (see
+     * {@link com.example.flow.StreamReassembler}); header-only rules already ran
+     * on the packet itself. The match is recorded like {@link #matches(PacketRecord)}.
+     * Flowbit conditions are checked but their actions are not applied: the window
+     * repeats bytes earlier packets already matched, and the packet's own scan set
+     * or toggled the bits then.
+     */
+    public boolean matchesStream(PacketRecord window) {
+        if (window == null) {
+            return false;
+        }
+        try {
+            RuleIndex idx = currentIndex();
+            int rank = scan(idx, window, idx.getPayloadBits(), null, false);
+            if (rank < 0) {
+                return false;
+            }
+            recordMatch(idx.getRule(rank & RANK_ORDINAL_MASK), window.toMap());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void recordMatch(Rule rule, Map<String, String> packet) {
+        lastMatchedRule = rule;
+        lastAlert = new Alert(AlertType.RULE_MATCH, 
+                            Severity.valueOf(rule.getOptions().getOrDefault("severity", "MEDIUM")),
+                            rule.getOptions().get("msg"));
+        lastAlert.setPacketData(packet);
+    }
+
     public Rule getLastMatchedRule() {
         return lastMatchedRule;
     }
@@ -0,0 +1,152 @@
+package com.example.detection;
+
+import com.example.util.PacketParser;
+import com.example.util.PacketReader;
+import com.example.util.PacketReaderFactory;
+import com.example.util.PacketRecord;
+import com.example.util.Rule;
+import org.pcap4j.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays a capture through the RuleEngine with each candidate-selection
+ * strategy switched on and off. With every index disabled the engine only
+ * ANDs the protocol bitset, which is equivalent to the flat per-protocol
+ * loop. It checks that every variant produces the same matches as that scan
+ * and prints timings.
+ *
+ * Usage: RuleEngineBenchmark [pcap file] [iterations]
+ */
+public class RuleEngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String pcapFile = args.length > 0 ? args[0] : "test.pcapng";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<Map<String, String>> packets = loadPackets(pcapFile);
+        System.out.printf("Loaded %d packets from %s%n", packets.size(), pcapFile);
+        if (packets.isEmpty()) {
+            return;
+        }
+
+        RuleEngine engine = new RuleEngine();
+        System.out.printf("Rules: %d%n", engine.getRules().size());
+        engine.getPortGroupStatistics().forEach((direction, stats) ->
+            System.out.printf("Port groups %-11s %s%n", direction, stats));
+
+        // Reference results from the flat per-protocol list
+        configure(engine, false, false, false);
+        List<List<Rule>> expected = new ArrayList<>();
+        int matched = 0;
+        for (Map<String, String> packet : packets) {
+            List<Rule> result = engine.getMatchingRules(packet);
+            expected.add(result);
+            matched += result.size();
+        }
+        System.out.printf("Rule matches: %d%n", matched);
+
+        double baseline = time(engine, packets, iterations, false, false, false);
+        report("Flat protocol list", baseline, baseline, 0);
+        boolean[][] variants = {
+            {true, false, false}, {false, true, false}, {false, false, true}, {true, true, true}
+        };
+        String[] names = {"Content prefilter", "Port groups", "Address tries", "All indexes"};
+        for (int v = 0; v < variants.length; v++) {
+            configure(engine, variants[v][0], variants[v][1], variants[v][2]);
+            int mismatches = 0;
+            for (int i = 0; i < packets.size(); i++) {
+                if (!engine.getMatchingRules(packets.get(i)).equals(expected.get(i))) {
+                    mismatches++;
+                }
+            }
+            double rate = time(engine, packets, iterations, variants[v][0], variants[v][1], variants[v][2]);
+            report(names[v], rate, baseline, mismatches);
+        }
+
+        // Same packets decoded once into records, so no map is parsed per lookup
+        List<PacketRecord> records = new ArrayList<>();
+        for (Map<String, String> packet : packets) {
+            records.add(PacketRecord.fromMap(packet, new PacketRecord()));
+        }
+        configure(engine, true, true, true);
+        int mismatches = 0;
+        for (int i = 0; i < records.size(); i++) {
+            if (!engine.getMatchingRules(records.get(i)).equals(expected.get(i))) {
+                mismatches++;
+            }
+        }
+        report("All indexes, records", timeRecords(engine, records, iterations), baseline, mismatches);
+    }
+
+    private static void configure(RuleEngine engine, boolean prefilter, boolean portGroups,
+                                  boolean addressIndex) {
+        engine.setContentPrefilterEnabled(prefilter);
+        engine.setPortGroupsEnabled(portGroups);
+        engine.setAddressIndexEnabled(addressIndex);
+    }
+
+    private static void report(String name, double rate, double baseline, int mismatches) {
+        System.out.printf("%-20s %12.1f packets/s  %6.2fx  mismatches: %d%n",
+            name, rate, rate / baseline, mismatches);
+    }
+
+    private static List<Map<String, String>> loadPackets(String pcapFile) throws Exception {
+        List<Map<String, String>> packets = new ArrayList<>();
+        PacketReader reader = PacketReaderFactory.createPacketReader("offline", pcapFile);
+        try {
+            Packet packet;
+            while ((packet = reader.getNextPacket()) != null) {
+                Map<String, String> packetData = PacketParser.parsePacket(packet.toString());
+                if (packetData != null) {
+                    packets.add(packetData);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return packets;
+    }
+
+    private static double timeRecords(RuleEngine engine, List<PacketRecord> records, int iterations) {
+        for (PacketRecord record : records) {
+            engine.getMatchingRules(record);
+        }
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (PacketRecord record : records) {
+                sink += engine.getMatchingRules(record).size();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink < 0) {
+            System.out.println(sink);
+        }
+        return (double) records.size() * iterations / (elapsed / 1e9);
+    }
+
+    private static double time(RuleEngine engine, List<Map<String, String>> packets,
+                               int iterations, boolean prefilter, boolean portGroups,
+                               boolean addressIndex) {
+        configure(engine, prefilter, portGroups, addressIndex);
+        // Warm-up pass so both variants run JIT-compiled code
+        for (Map<String, String> packet : packets) {
+            engine.getMatchingRules(packet);
+        }
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            for (Map<String, String> packet : packets) {
+                sink += engine.getMatchingRules(packet).size();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink < 0) {
+            System.out.println(sink);
+        }
+        return (double) packets.size() * iterations / (elapsed / 1e9);
+    }
+}
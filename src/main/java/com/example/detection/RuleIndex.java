@@ -0,0 +1,218 @@
+package com.example.detection;
+
+import com.example.util.Rule;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable lookup structures built once from the engine's rule list.
+ * Rules are identified by their ordinal, i.e. their position in {@link #getRules()}.
+ * A new index is built whenever the rule set changes, so readers never see a
+ * partially updated view.
+ *
+ * Every header dimension (protocol, source/destination port, source/destination
+ * network) answers with a {@code long[]} bitset over rule ordinals, so candidate
+ * selection is a word-wise AND instead of a loop over rules.
+ */
+class RuleIndex {
+    private static final AtomicInteger GENERATIONS = new AtomicInteger();
+
+    private final int generation = GENERATIONS.incrementAndGet();
+    private final List<Rule> rules;
+    private final CompiledRule[] compiled;
+    private final int words;
+    private final Map<String, long[]> protocolBits;
+    private final long[] noRules;
+    private final long[] allRules;
+    private final PortGroupIndex sourcePorts;
+    private final PortGroupIndex destinationPorts;
+    private final IpPrefixTrie sourceNets;
+    private final IpPrefixTrie destinationNets;
+    private final ContentPrefilter prefilter;
+    private final long[] unanchored;
+    private final long[] headerOnly;
+    private final long[] payloadRules;
+    private final long[] flowbitGated;
+    private final long[] flowbitWriters;
+    private final boolean hasFlowbitWriters;
+    private final ThreadLocal<long[]> contentHits;
+    private final ThreadLocal<long[]> candidates;
+
+    RuleIndex(List<Rule> rules, String homeNet, String externalNet) {
+        this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+        this.words = (this.rules.size() + 63) >>> 6;
+
+        // Resolve ports, networks, content and PCRE once instead of per packet
+        this.compiled = new CompiledRule[this.rules.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = CompiledRule.compile(this.rules.get(i), i, homeNet, externalNet);
+        }
+
+        // Index rules by protocol for faster matching
+        Map<String, long[]> byProtocol = new HashMap<>();
+        this.noRules = new long[words];
+        this.allRules = new long[words];
+        for (int i = 0; i < compiled.length; i++) {
+            byProtocol.computeIfAbsent(this.rules.get(i).getProtocol(), k -> new long[words])[i >>> 6] |= 1L << i;
+            allRules[i >>> 6] |= 1L << i;
+        }
+        // HTTP and HTTPS packets are TCP, so they also see the TCP rules (see CompiledRule.matchesProtocol)
+        long[] tcpBits = byProtocol.get("TCP");
+        if (tcpBits != null) {
+            for (String alias : new String[] {"HTTP", "HTTPS"}) {
+                long[] merged = byProtocol.getOrDefault(alias, noRules).clone();
+                for (int w = 0; w < words; w++) {
+                    merged[w] |= tcpBits[w];
+                }
+                byProtocol.put(alias, merged);
+            }
+        }
+        this.protocolBits = byProtocol;
+
+        // Port groups and network prefix tries, one per direction
+        this.sourcePorts = new PortGroupIndex(compiled, false);
+        this.destinationPorts = new PortGroupIndex(compiled, true);
+        this.sourceNets = new IpPrefixTrie(compiled, true);
+        this.destinationNets = new IpPrefixTrie(compiled, false);
+
+        this.prefilter = new ContentPrefilter(Arrays.asList(compiled));
+        this.unanchored = new long[words];
+        for (int i = 0; i < compiled.length; i++) {
+            if (!prefilter.isAnchored(i)) {
+                unanchored[i >>> 6] |= 1L << i;
+            }
+        }
+        // Rules without content or PCRE give the same answer for every packet of a flow direction
+        this.headerOnly = new long[words];
+        this.payloadRules = new long[words];
+        for (int i = 0; i < compiled.length; i++) {
+            (compiled[i].isHeaderOnly() ? headerOnly : payloadRules)[i >>> 6] |= 1L << i;
+        }
+        // Flowbit checks and actions, so candidate selection can drop or keep them wholesale
+        this.flowbitGated = new long[words];
+        this.flowbitWriters = new long[words];
+        boolean writers = false;
+        for (int i = 0; i < compiled.length; i++) {
+            FlowbitSpec spec = compiled[i].getFlowbits();
+            if (spec == null) continue;
+            if (spec.requiresSetBit()) flowbitGated[i >>> 6] |= 1L << i;
+            if (spec.writes()) {
+                flowbitWriters[i >>> 6] |= 1L << i;
+                writers = true;
+            }
+        }
+        this.hasFlowbitWriters = writers;
+        this.contentHits = ThreadLocal.withInitial(() -> new long[words]);
+        this.candidates = ThreadLocal.withInitial(() -> new long[words]);
+    }
+
+    /** Distinct for every index built, so cached verdicts can tell which rule set produced them. */
+    int getGeneration() {
+        return generation;
+    }
+
+    /** Rules that only look at header fields. */
+    long[] getHeaderOnlyBits() {
+        return headerOnly;
+    }
+
+    /** Rules with a content or PCRE option. */
+    long[] getPayloadBits() {
+        return payloadRules;
+    }
+
+    /** Rules with an isset check, which cannot match on a flow without flowbits. */
+    long[] getFlowbitGatedBits() {
+        return flowbitGated;
+    }
+
+    /** Rules that set, unset, toggle or reset flowbits when they match. */
+    long[] getFlowbitWriterBits() {
+        return flowbitWriters;
+    }
+
+    boolean hasFlowbitWriters() {
+        return hasFlowbitWriters;
+    }
+
+    List<Rule> getRules() {
+        return rules;
+    }
+
+    Rule getRule(int ordinal) {
+        return rules.get(ordinal);
+    }
+
+    CompiledRule getCompiledRule(int ordinal) {
+        return compiled[ordinal];
+    }
+
+    /**
+     * Returns the shared bitset of rules declared for the protocol key. HTTP and
+     * HTTPS also include the TCP rules.
+     */
+    long[] getProtocolBits(String protocol) {
+        return protocolBits.getOrDefault(protocol, noRules);
+    }
+
+    /**
+     * ANDs the port and address dimensions for a packet into the calling thread's
+     * candidate bitset. A disabled dimension accepts every rule.
+     * The returned bitset is reused by the calling thread for its next packet.
+     */
+    long[] selectCandidates(int srcPort, int dstPort, long srcIp, long dstIp,
+                            boolean usePortGroups, boolean useAddressIndex) {
+        long[] out = candidates.get();
+        long[] sp = usePortGroups ? sourcePorts.lookup(srcPort) : allRules;
+        long[] dp = usePortGroups ? destinationPorts.lookup(dstPort) : allRules;
+        long[] si = useAddressIndex ? sourceNets.lookup(srcIp) : allRules;
+        long[] di = useAddressIndex ? destinationNets.lookup(dstIp) : allRules;
+        for (int w = 0; w < words; w++) {
+            out[w] = sp[w] & dp[w] & si[w] & di[w];
+        }
+        return out;
+    }
+
+    /**
+     * True when some rule is set in both bitsets.
+     */
+    static boolean intersects(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            if ((a[w] & b[w]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the content automaton over every text field the engine matches content against.
+     * The result has a bit for every rule that has no anchor or whose anchor was found,
+     * so it can be ANDed with the header candidates directly.
+     * The returned bitset is reused by the calling thread for its next packet.
+     */
+    long[] scanContent(String data, String payload) {
+        long[] hits = contentHits.get();
+        System.arraycopy(unanchored, 0, hits, 0, words);
+        prefilter.scan(data, hits);
+        prefilter.scan(payload, hits);
+        return hits;
+    }
+
+    int getSourceTrieNodes() {
+        return sourceNets.getNodeCount();
+    }
+
+    int getDestinationTrieNodes() {
+        return destinationNets.getNodeCount();
+    }
+
+    Map<String, Map<String, Integer>> getPortGroupStatistics() {
+        Map<String, Map<String, Integer>> stats = new LinkedHashMap<>();
+        stats.put("source", sourcePorts.getStatistics());
+        stats.put("destination", destinationPorts.getStatistics());
+        return stats;
+    }
+
+    ContentPrefilter getPrefilter() {
+        return prefilter;
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.detection;
+
+import java.util.Arrays;
+
+/**
+ * Event counts over a sliding time window for a fixed set of keys (typically
+ * the slots of a {@link SourceStateTable}). Each key has a ring of fixed-width
+ * buckets; adding an event clears the buckets that slid out of the window since
+ * the key was last touched and bumps the current one, and a running total
+ * gives the window's count without summing the ring.
+ *
+ * The window covers between {@code buckets - 1} and {@code buckets} bucket
+ * widths, so a burst straddling what used to be a reset boundary is still
+ * counted as one burst. All counts are primitives in flat arrays.
+ *
+ * Time is whatever the caller passes, in milliseconds, and must not go
+ * backwards for a key; a {@link com.example.util.CoarseClock} fits. Not thread-safe.
+ */
+public final class SlidingWindowCounter {
+    private final int buckets;
+    private final long bucketMillis;
+    private final int[] counts;
+    private final long[] head;
+    private final int[] total;
+
+    /**
+     * @param keys         number of keys, 0 .. keys-1
+     * @param windowMillis window length
+     * @param buckets      buckets per window; more buckets slide more smoothly
+     */
+    public SlidingWindowCounter(int keys, long windowMillis, int buckets) {
+        if (keys <= 0 || buckets <= 0 || windowMillis < buckets) {
+            throw new IllegalArgumentException("Invalid sliding window: " + keys + " keys, "
+                + windowMillis + " ms in " + buckets + " buckets");
+        }
+        this.buckets = buckets;
+        this.bucketMillis = windowMillis / buckets;
+        this.counts = new int[keys * buckets];
+        this.head = new long[keys];
+        this.total = new int[keys];
+    }
+
+    /**
+     * Adds {@code delta} events for {@code key} at {@code nowMillis}.
+     * @return the key's count over the window ending now
+     */
+    public int add(int key, long nowMillis, int delta) {
+        slide(key, nowMillis);
+        counts[key * buckets + (int) (head[key] % buckets)] += delta;
+        return total[key] += delta;
+    }
+
+    /** The key's count over the window ending at {@code nowMillis}. */
+    public int count(int key, long nowMillis) {
+        slide(key, nowMillis);
+        return total[key];
+    }
+
+    /** Forgets every event of {@code key}. */
+    public void reset(int key) {
+        Arrays.fill(counts, key * buckets, (key + 1) * buckets, 0);
+        head[key] = 0;
+        total[key] = 0;
+    }
+
+    public long getWindowMillis() {
+        return bucketMillis * buckets;
+    }
+
+    /** Clears the buckets between the key's last bucket and the current one. */
+    private void slide(int key, long nowMillis) {
+        long bucket = nowMillis / bucketMillis;
+        long last = head[key];
+        if (bucket <= last) return;
+        int base = key * buckets;
+        if (bucket - last >= buckets) {
+            Arrays.fill(counts, base, base + buckets, 0);
+            total[key] = 0;
+        } else {
+            for (long b = last + 1; b <= bucket; b++) {
+                int i = base + (int) (b % buckets);
+                total[key] -= counts[i];
+                counts[i] = 0;
+            }
+        }
+        head[key] = bucket;
+    }
+}
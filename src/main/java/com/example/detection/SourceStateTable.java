@@ -0,0 +1,204 @@
+package com.example.detection;
+
+import com.example.flow.TimerWheel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed-capacity map from IPv4 source address to a slot number, for the
+ * per-source state of {@link AnomalyDetector}. The owner keeps that state in
+ * arrays indexed by slot, so everything is allocated up front and a flood of
+ * spoofed sources recycles slots instead of growing maps.
+ *
+ * Sources idle past the idle timeout are expired by a {@link TimerWheel}. When
+ * every slot is taken, a CLOCK sweep evicts the first source that has not been
+ * seen again since the hand last passed it. A new source starts without its
+ * reference bit, so one-packet sources are the first to go and sources that
+ * keep sending survive a flood.
+ *
+ * Not thread-safe.
+ */
+final class SourceStateTable {
+
+    /** Told when a slot is handed to a new source, so its state starts from zero. */
+    interface Listener {
+        void reset(int slot);
+    }
+
+    private static final int WHEEL_BUCKETS = 64;
+    private static final long SECOND = 1_000_000_000L;
+
+    private final int capacity;
+    private final long idleNanos;
+    private final Listener listener;
+
+    // Slot + 1, linear probing; at least twice the capacity, so never full
+    private final int[] index;
+    private final int indexMask;
+
+    private final int[] keys;
+    private final long[] lastSeen;
+    private final boolean[] used;
+    private final boolean[] referenced;
+    private final int[] free;
+    private int freeCount;
+    private int hand;
+
+    private final TimerWheel wheel;
+    private final TimerWheel.Expiry expiry = this::onTimeout;
+
+    private long inserted;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param capacity  sources tracked at once
+     * @param idleNanos time without packets after which a source is forgotten
+     */
+    SourceStateTable(int capacity, long idleNanos, Listener listener) {
+        if (capacity <= 0 || idleNanos <= 0) {
+            throw new IllegalArgumentException("Invalid source table: " + capacity + " sources, idle " + idleNanos);
+        }
+        this.capacity = capacity;
+        this.idleNanos = idleNanos;
+        this.listener = listener;
+        int slots = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+        this.index = new int[slots];
+        this.indexMask = slots - 1;
+        this.keys = new int[capacity];
+        this.lastSeen = new long[capacity];
+        this.used = new boolean[capacity];
+        this.referenced = new boolean[capacity];
+        this.free = new int[capacity];
+        for (int slot = capacity - 1; slot >= 0; slot--) {
+            free[freeCount++] = slot;
+        }
+        this.wheel = new TimerWheel(capacity, WHEEL_BUCKETS, SECOND);
+    }
+
+    /**
+     * Slot of {@code source}, claimed (and reset through the listener) if the
+     * source is not tracked yet. Never fails: a full table evicts a source first.
+     */
+    int acquire(int source, long nowNanos) {
+        wheel.advance(nowNanos, expiry);
+        int hash = hash(source);
+        for (int i = hash & indexMask; ; i = (i + 1) & indexMask) {
+            int entry = index[i];
+            if (entry == 0) break;
+            int slot = entry - 1;
+            if (keys[slot] == source) {
+                referenced[slot] = true;
+                lastSeen[slot] = nowNanos;
+                return slot;
+            }
+        }
+
+        if (freeCount == 0) {
+            evict();
+        }
+        int slot = free[--freeCount];
+        keys[slot] = source;
+        lastSeen[slot] = nowNanos;
+        used[slot] = true;
+        referenced[slot] = false;
+        // The eviction may have shifted the probe run, so look for the hole again
+        int i = hash & indexMask;
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = slot + 1;
+        wheel.schedule(slot, nowNanos + idleNanos);
+        inserted++;
+        listener.reset(slot);
+        return slot;
+    }
+
+    /** Drops sources idle past the timeout as of {@code nowNanos}. */
+    void expire(long nowNanos) {
+        wheel.advance(nowNanos, expiry);
+    }
+
+    private void evict() {
+        // Two turns at most: the first clears every reference bit
+        while (true) {
+            int slot = hand;
+            hand = hand + 1 == capacity ? 0 : hand + 1;
+            if (!used[slot]) continue;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            evictions++;
+            wheel.cancel(slot);
+            release(slot);
+            return;
+        }
+    }
+
+    private long onTimeout(int slot, long now) {
+        long deadline = lastSeen[slot] + idleNanos;
+        if (deadline <= now) {
+            expirations++;
+            release(slot);
+        }
+        return deadline;
+    }
+
+    /** Frees the slot's index entry and the slot; the wheel is left to the caller. */
+    private void release(int slot) {
+        int i = hash(keys[slot]) & indexMask;
+        while (index[i] != slot + 1) {
+            i = (i + 1) & indexMask;
+        }
+        // Backward-shift deletion keeps probe sequences unbroken without tombstones
+        int hole = i;
+        for (int next = (hole + 1) & indexMask; index[next] != 0; next = (next + 1) & indexMask) {
+            int home = hash(keys[index[next] - 1]) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index[hole] = index[next];
+                hole = next;
+            }
+        }
+        index[hole] = 0;
+        used[slot] = false;
+        free[freeCount++] = slot;
+    }
+
+    private static int hash(int key) {
+        // fmix32 from MurmurHash3
+        int h = key * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    int size() {
+        return capacity - freeCount;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    long getExpirations() {
+        return expirations;
+    }
+
+    Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("sources", size());
+        stats.put("capacity", capacity);
+        stats.put("inserted", inserted);
+        stats.put("evictions", evictions);
+        stats.put("expirations", expirations);
+        return stats;
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.detection;
+
+import com.example.flow.TimerWheel;
+import com.example.util.PacketRecord;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TCP handshake anomalies from the packets' flag bits, in constant time and
+ * memory per packet:
+ * <ul>
+ * <li>SYN floods: half-open connections (SYN seen, no ACK from the client yet)
+ *     towards one destination;</li>
+ * <li>half-open scans: connection attempts from one source that are never
+ *     completed (the scanner answers the SYN-ACK with a RST);</li>
+ * <li>NULL, FIN and Xmas scans, and SYN+FIN: flag combinations no stack sends
+ *     on a live connection;</li>
+ * <li>RST storms: a burst of resets from one source.</li>
+ * </ul>
+ *
+ * Half-open connections live in a direct-mapped table keyed by the client
+ * and server endpoints; a colliding SYN displaces the older entry. Entries
+ * leave on the client's ACK, on a RST from either side, or when the timer
+ * wheel expires them. Per-address counts are kept in hashed buckets, so two
+ * addresses sharing a bucket add up: counts can only be overestimated.
+ * Alerts are limited to one per bucket and kind every 10s.
+ *
+ * Packets without TCP flags (map form, text parser) are ignored. Not thread-safe.
+ */
+final class SynFloodDetector {
+    static final int DEFAULT_SLOTS = 1 << 16;
+
+    /** Half-open connections to one destination that make a SYN flood; -Dids.synflood.threshold. */
+    private static final int SYN_FLOOD_THRESHOLD = Integer.getInteger("ids.synflood.threshold", 256);
+    /** Incomplete handshakes from one source within the window that make a half-open scan. */
+    private static final int HALF_OPEN_SCAN_THRESHOLD = 64;
+    /** Resets from one source within a second that make a RST storm. */
+    private static final int RST_STORM_THRESHOLD = 1000;
+    private static final long HALF_OPEN_TIMEOUT_NANOS = 10_000_000_000L;
+    private static final long SCAN_WINDOW_MS = 10_000;
+    private static final long RST_WINDOW_MS = 1000;
+    private static final long ALERT_INTERVAL_MS = 10_000;
+    private static final int BUCKETS = 4096;
+    private static final int WHEEL_BUCKETS = 64;
+    private static final long SECOND = 1_000_000_000L;
+
+    private static final int SYN = PacketRecord.TCP_SYN;
+    private static final int ACK = PacketRecord.TCP_ACK;
+    private static final int RST = PacketRecord.TCP_RST;
+    private static final int FIN = PacketRecord.TCP_FIN;
+    private static final int XMAS = PacketRecord.TCP_FIN | PacketRecord.TCP_PSH | PacketRecord.TCP_URG;
+
+    // Half-open table; keys are ip << 16 | port with bit 63 set, so an empty slot never matches
+    private final int mask;
+    private final long[] clientKey;
+    private final long[] serverKey;
+    private final long[] synTime;
+    private final TimerWheel wheel;
+    private final TimerWheel.Expiry expiry = this::onTimeout;
+
+    private final int[] halfOpenByTarget = new int[BUCKETS];
+    private final SlidingWindowCounter incompleteBySource = new SlidingWindowCounter(BUCKETS, SCAN_WINDOW_MS, 10);
+    private final SlidingWindowCounter resetsBySource = new SlidingWindowCounter(BUCKETS, RST_WINDOW_MS, 4);
+    private final long[] floodAlerted = new long[BUCKETS];
+    private final long[] scanAlerted = new long[BUCKETS];
+    private final long[] stealthAlerted = new long[BUCKETS];
+    private final long[] stormAlerted = new long[BUCKETS];
+
+    private long syns;
+    private long completed;
+    private long reset;
+    private long timedOut;
+    private long displaced;
+    private long stealthPackets;
+
+    SynFloodDetector(int slots) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.clientKey = new long[size];
+        this.serverKey = new long[size];
+        this.synTime = new long[size];
+        this.wheel = new TimerWheel(size, WHEEL_BUCKETS, SECOND);
+    }
+
+    /**
+     * @param nowMillis the detector's coarse clock
+     * @return an alert, or null
+     */
+    Alert inspect(PacketRecord packet, long nowMillis, Map<String, String> source) {
+        if (packet.getProtocol() != PacketRecord.PROTO_TCP || !packet.hasTcpFlags()) return null;
+        long srcIp = packet.getSrcIp();
+        long dstIp = packet.getDstIp();
+        int srcPort = packet.getSrcPort();
+        int dstPort = packet.getDstPort();
+        if (srcIp == PacketRecord.ABSENT || dstIp == PacketRecord.ABSENT
+                || srcPort == PacketRecord.ABSENT || dstPort == PacketRecord.ABSENT) {
+            return null;
+        }
+        long nowNanos = nowMillis * 1_000_000L;
+        wheel.advance(nowNanos, expiry);
+
+        int flags = packet.getTcpFlags();
+        long src = endpoint(srcIp, srcPort);
+        long dst = endpoint(dstIp, dstPort);
+        int sourceBucket = bucket(srcIp);
+
+        if ((flags & RST) != 0) {
+            // Either side aborting: the client's endpoints come first in the table
+            if (remove(src, dst) || remove(dst, src)) {
+                reset++;
+            }
+            int resets = resetsBySource.add(sourceBucket, nowMillis, 1);
+            if (resets >= RST_STORM_THRESHOLD && claim(stormAlerted, sourceBucket, nowMillis)) {
+                return alert(AlertType.DOS_ATTACK, Severity.HIGH,
+                    "RST storm from " + ip(srcIp) + " (" + resets + " resets/s)", packet, source);
+            }
+            return null;
+        }
+
+        if ((flags & (SYN | ACK)) == 0 || (flags & (SYN | FIN)) == (SYN | FIN)) {
+            // NULL, FIN, Xmas or SYN+FIN: never part of a real connection
+            stealthPackets++;
+            if (!claim(stealthAlerted, sourceBucket, nowMillis)) return null;
+            String kind = flags == 0 ? "NULL" : (flags & XMAS) == XMAS ? "Xmas"
+                : (flags & SYN) != 0 ? "SYN+FIN" : (flags & FIN) != 0 ? "FIN" : "Odd-flag";
+            return alert(AlertType.STEALTH_SCAN, Severity.HIGH,
+                kind + " scan from " + ip(srcIp) + " to " + ip(dstIp) + ":" + dstPort, packet, source);
+        }
+
+        if ((flags & (SYN | ACK)) == SYN) {
+            syns++;
+            int slot = slot(src, dst);
+            if (clientKey[slot] == src && serverKey[slot] == dst) {
+                // Retransmitted SYN
+                return null;
+            }
+            if (clientKey[slot] != 0) {
+                displaced++;
+                wheel.cancel(slot);
+                release(slot);
+            }
+            clientKey[slot] = src;
+            serverKey[slot] = dst;
+            synTime[slot] = nowNanos;
+            wheel.schedule(slot, nowNanos + HALF_OPEN_TIMEOUT_NANOS);
+            int targetBucket = bucket(dstIp);
+            int halfOpen = ++halfOpenByTarget[targetBucket];
+            int incomplete = incompleteBySource.add(sourceBucket, nowMillis, 1);
+            if (halfOpen >= SYN_FLOOD_THRESHOLD && claim(floodAlerted, targetBucket, nowMillis)) {
+                return alert(AlertType.DOS_ATTACK, Severity.CRITICAL,
+                    "SYN flood on " + ip(dstIp) + ":" + dstPort + " (" + halfOpen + " half-open)", packet, source);
+            }
+            if (incomplete >= HALF_OPEN_SCAN_THRESHOLD && claim(scanAlerted, sourceBucket, nowMillis)) {
+                return alert(AlertType.STEALTH_SCAN, Severity.HIGH,
+                    "Half-open scan from " + ip(srcIp) + " (" + incomplete + " incomplete handshakes)", packet, source);
+            }
+            return null;
+        }
+
+        if ((flags & (SYN | ACK)) == ACK && remove(src, dst)) {
+            // Handshake completed by the client
+            completed++;
+            incompleteBySource.add(sourceBucket, nowMillis, -1);
+        }
+        return null;
+    }
+
+    /** Removes the half-open entry of client {@code client} to {@code server}, if present. */
+    private boolean remove(long client, long server) {
+        int slot = slot(client, server);
+        if (clientKey[slot] != client || serverKey[slot] != server) return false;
+        wheel.cancel(slot);
+        release(slot);
+        return true;
+    }
+
+    private long onTimeout(int slot, long now) {
+        long deadline = synTime[slot] + HALF_OPEN_TIMEOUT_NANOS;
+        if (deadline <= now) {
+            timedOut++;
+            release(slot);
+        }
+        return deadline;
+    }
+
+    private void release(int slot) {
+        halfOpenByTarget[bucket((serverKey[slot] >>> 16) & 0xFFFFFFFFL)]--;
+        clientKey[slot] = 0;
+        serverKey[slot] = 0;
+    }
+
+    private static boolean claim(long[] alerted, int bucket, long now) {
+        if (alerted[bucket] != 0 && now - alerted[bucket] < ALERT_INTERVAL_MS) return false;
+        alerted[bucket] = now;
+        return true;
+    }
+
+    private static Alert alert(AlertType type, Severity severity, String message, PacketRecord packet,
+                               Map<String, String> source) {
+        return new Alert(type, severity, message, AnomalyDetector.packetData(packet, source));
+    }
+
+    private static long endpoint(long ip, int port) {
+        return (ip << 16) | port | (1L << 63);
+    }
+
+    private int slot(long client, long server) {
+        return (int) HyperLogLogArray.hash(client * 31 + server, 0x68616C66L) & mask;
+    }
+
+    private static int bucket(long ip) {
+        return (int) HyperLogLogArray.hash(ip, 0x62756B74L) & (BUCKETS - 1);
+    }
+
+    private static String ip(long address) {
+        return PacketRecord.formatIpv4((int) address);
+    }
+
+    Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("syns", syns);
+        stats.put("completed", completed);
+        stats.put("reset", reset);
+        stats.put("timedOut", timedOut);
+        stats.put("displaced", displaced);
+        stats.put("stealthPackets", stealthPackets);
+        return stats;
+    }
+}
@@ -2,16 +2,24 @@ package com.example.engine;
 import com.example.designpatterns.ProducerConsumer.ProducerConsumer;
 import com.example.designpatterns.StrategyPattern.ConsumerStrategy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import com.example.consumer.*;
 import com.example.producer.*;
+import com.example.concurrent.OverloadPolicy;
+import com.example.concurrent.PacketRing;
 import com.example.concurrent.PoolManager;
+import com.example.concurrent.WaitStrategy;
+import com.example.detection.AnomalyDetector;
+import com.example.logging.AlertLogger;
 import com.example.designpatterns.ObserverPattern.*;
 //applaying singleton
 public class EngineIds implements Subject {
     private static boolean engineFlagRunning = false;
     private static final EngineIds instance = new EngineIds();
     private ProducerConsumer producerConsumer;
+    private AlertLogger alertLogger;
     private List<Observer> observers = new ArrayList<>();
 
     private EngineIds() {}
@@ -33,13 +41,39 @@ public class EngineIds implements Subject {
 
     // }
     public void startEngine(String networkInterface) {
+        // One core is left to the capture thread
+        startEngine(networkInterface, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public void startEngine(String networkInterface, int workers) {
+        // Under load keep connection control packets and sample bulk payload
+        startEngine(networkInterface, workers, OverloadPolicy.SAMPLED);
+    }
+
+    /**
+     * Starts capture with {@code workers} detection consumers. Packets are sharded by
+     * flow, and each consumer owns its rule engine and flow table. The anomaly
+     * detector is shared, since its per-source and per-destination state spans flows.
+     * {@code overloadPolicy} decides what capture does when the consumers fall behind.
+     */
+    public void startEngine(String networkInterface, int workers, OverloadPolicy overloadPolicy) {
         engineFlagRunning = true;
         try {
-            producerConsumer = new ProducerConsumer(new Consumer(), new ProducerLive(networkInterface));
+            alertLogger = new AlertLogger();
+            List<ConsumerStrategy> consumers = new ArrayList<>();
+            AnomalyDetector anomalyDetector = new AnomalyDetector();
+            for (int i = 0; i < workers; i++) {
+                consumers.add(new Consumer(alertLogger, anomalyDetector));
+            }
+            producerConsumer = new ProducerConsumer(consumers, new ProducerLive(networkInterface, overloadPolicy),
+                                                    PacketRing.DEFAULT_CAPACITY, WaitStrategy.PARK);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        PoolManager.EngineIds().submit(() -> producerConsumer.runConsumer());
+        for (int i = 0; i < producerConsumer.getConsumerCount(); i++) {
+            int worker = i;
+            PoolManager.EngineIds().submit(() -> producerConsumer.runConsumer(worker));
+        }
         PoolManager.EngineIds().submit(() -> producerConsumer.runProducer());
     }
 
@@ -47,6 +81,19 @@ public class EngineIds implements Subject {
         engineFlagRunning = false;
         producerConsumer.stopConsumer();
         producerConsumer.stopProducer();
+        if (alertLogger != null) {
+            alertLogger.close();
+        }
+    }
+
+    /**
+     * Packets published and dropped by the overload policy since the engine started.
+     */
+    public Map<String, Long> getOverloadStatistics() {
+        if (producerConsumer == null) {
+            return Collections.emptyMap();
+        }
+        return producerConsumer.getOverloadStatistics();
     }
 
     public void addObserver(Observer observer) {
@@ -59,7 +106,8 @@ public class EngineIds implements Subject {
 
     public void notifyObservers(String data) {
         for (Observer observer : observers) {
-            PoolManager.EngineIds().submit(() -> observer.update(data));
+            // Notifications block on the GUI, so they run on the I/O pool, not the detection threads
+            PoolManager.ioPool().submit(() -> observer.update(data));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,528 @@
+package com.example.flow;
+
+import com.example.util.PacketRecord;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connection tracker keyed by the packet's 5-tuple. Each endpoint is packed
+ * into a long as (address << 16 | port) and the pair is stored lowest first,
+ * with the protocol in the top bits, so both directions of a conversation land
+ * on the same entry.
+ *
+ * Storage is column-oriented: one primitive array per field, indexed by a flow
+ * id handed out from a free list. The hash index is an open-addressing table
+ * of longs (hash in the high half, id + 1 in the low half) with linear probing
+ * and backward-shift deletion, so there are no tombstones and no per-flow
+ * objects. Arrays double when the table fills up to {@code maxFlows}, which is
+ * the only allocation after construction.
+ *
+ * Idle flows are dropped by a {@link TimerWheel} driven by packet timestamps,
+ * so replayed captures age out the same way live traffic does. The timeout
+ * depends on protocol and TCP state.
+ *
+ * Not thread-safe: each detection worker owns a table, and flow sharding
+ * sends both directions of a flow to the same worker.
+ */
+public final class FlowTable {
+    public static final int DEFAULT_MAX_FLOWS = 1 << 22;
+    private static final int DEFAULT_INITIAL_FLOWS = 1 << 12;
+
+    /** Flow states. Non-TCP flows go from NEW to ESTABLISHED once the responder answers. */
+    public static final int STATE_NEW = 1;
+    public static final int STATE_SYN_SENT = 2;
+    public static final int STATE_SYN_RECEIVED = 3;
+    public static final int STATE_ESTABLISHED = 4;
+    public static final int STATE_FIN_WAIT = 5;
+    public static final int STATE_CLOSING = 6;
+    public static final int STATE_CLOSED = 7;
+
+    private static final long SECOND = 1_000_000_000L;
+    private static final long TIMEOUT_EMBRYONIC = 30 * SECOND;
+    private static final long TIMEOUT_ESTABLISHED = 600 * SECOND;
+    private static final long TIMEOUT_CLOSING = 30 * SECOND;
+    private static final long TIMEOUT_CLOSED = 10 * SECOND;
+    private static final long TIMEOUT_UDP = 60 * SECOND;
+    private static final long TIMEOUT_OTHER = 30 * SECOND;
+    private static final int WHEEL_BUCKETS = 1024;
+
+    // Per-flow bits in flags[]
+    private static final byte INITIATOR_IS_LOW = 0x01;
+    private static final byte FIN_FROM_INITIATOR = 0x02;
+    private static final byte FIN_FROM_RESPONDER = 0x04;
+
+    private static final long ENDPOINT_MASK = (1L << 48) - 1;
+
+    /** Told when a flow id stops referring to its connection, so per-flow state kept elsewhere can go. */
+    public interface Listener {
+        void flowClosed(int id);
+    }
+
+    private final int maxFlows;
+    private Listener[] listeners = new Listener[0];
+    private final TimerWheel wheel;
+    private final TimerWheel.Expiry expiry = this::onTimeout;
+
+    private long[] index;
+    private int indexMask;
+
+    private long[] lowKey;
+    private long[] highKey;
+    private byte[] state;
+    private byte[] flags;
+    private long[] firstSeen;
+    private long[] lastSeen;
+    // [2 * id] towards the responder, [2 * id + 1] towards the initiator
+    private long[] packets;
+    private long[] bytes;
+    // Flowbits, flowbitWords longs per flow, indexed by Flowbits.intern
+    private long[] flowbits;
+    private int flowbitWords = 1;
+    private int[] free;
+    private int freeCount;
+    private int size;
+
+    private long created;
+    private long expired;
+    private long overflows;
+
+    public FlowTable() {
+        this(DEFAULT_INITIAL_FLOWS, DEFAULT_MAX_FLOWS);
+    }
+
+    /**
+     * @param initialFlows flows held before the first resize
+     * @param maxFlows     hard limit; new flows beyond it are not tracked
+     */
+    public FlowTable(int initialFlows, int maxFlows) {
+        if (initialFlows <= 0 || maxFlows < initialFlows) {
+            throw new IllegalArgumentException("Invalid flow table size: " + initialFlows + "/" + maxFlows);
+        }
+        this.maxFlows = maxFlows;
+        this.wheel = new TimerWheel(initialFlows, WHEEL_BUCKETS, SECOND);
+        this.lowKey = new long[0];
+        this.highKey = new long[0];
+        this.state = new byte[0];
+        this.flags = new byte[0];
+        this.firstSeen = new long[0];
+        this.lastSeen = new long[0];
+        this.packets = new long[0];
+        this.bytes = new long[0];
+        this.flowbits = new long[0];
+        this.free = new int[0];
+        resize(initialFlows);
+    }
+
+    /**
+     * Finds or creates the packet's flow, advances its state and counters, and
+     * stamps the record with the flow id and {@link PacketRecord#FLOW_TRACKED},
+     * {@link PacketRecord#FLOW_ESTABLISHED} and direction flags. Packets without
+     * IPv4 addresses, or that would exceed {@code maxFlows}, are left untracked.
+     *
+     * @return the flow id, or -1 when the packet is not tracked
+     */
+    public int track(PacketRecord packet) {
+        long srcIp = packet.getSrcIp();
+        long dstIp = packet.getDstIp();
+        if (srcIp == PacketRecord.ABSENT || dstIp == PacketRecord.ABSENT) {
+            return -1;
+        }
+        int protocol = packet.getProtocol();
+        int srcPort;
+        int dstPort;
+        if (protocol == PacketRecord.PROTO_ICMP) {
+            // Echo requests and replies share the identifier
+            srcPort = dstPort = packet.getIcmpId() & 0xFFFF;
+        } else {
+            srcPort = packet.getSrcPort() & 0xFFFF;
+            dstPort = packet.getDstPort() & 0xFFFF;
+        }
+        long src = (srcIp << 16) | srcPort;
+        long dst = (dstIp << 16) | dstPort;
+        boolean fromLow = src <= dst;
+        long low = fromLow ? src : dst;
+        long high = (fromLow ? dst : src) | ((long) protocol << 48);
+
+        long now = packet.getTimestampNanos();
+        if (now <= 0) {
+            now = System.currentTimeMillis() * 1_000_000L;
+        }
+        expired += wheel.advance(now, expiry);
+
+        int tcpFlags = protocol == PacketRecord.PROTO_TCP ? packet.getTcpFlags() : 0;
+        int hash = hash(low, high);
+        int id = find(low, high, hash);
+        if (id < 0) {
+            id = insert(low, high, hash);
+            if (id < 0) {
+                overflows++;
+                return -1;
+            }
+            open(id, protocol, tcpFlags, fromLow, srcPort, dstPort, now);
+        } else if (protocol == PacketRecord.PROTO_TCP && state[id] == STATE_CLOSED
+                && (tcpFlags & (PacketRecord.TCP_SYN | PacketRecord.TCP_ACK)) == PacketRecord.TCP_SYN) {
+            // Port reuse: a fresh SYN on a closed connection starts a new one
+            notifyClosed(id);
+            open(id, protocol, tcpFlags, fromLow, srcPort, dstPort, now);
+        }
+
+        boolean fromInitiator = fromLow == ((flags[id] & INITIATOR_IS_LOW) != 0);
+        int before = state[id];
+        if (protocol == PacketRecord.PROTO_TCP) {
+            advanceTcp(id, tcpFlags, fromInitiator);
+        } else if (!fromInitiator && before == STATE_NEW) {
+            state[id] = STATE_ESTABLISHED;
+        }
+        if (state[id] != before) {
+            // Closing states time out sooner than the deadline already on the wheel
+            wheel.schedule(id, now + timeout(id));
+        }
+        int direction = fromInitiator ? 0 : 1;
+        packets[2 * id + direction]++;
+        bytes[2 * id + direction] += packet.getPayloadLength();
+        if (now > lastSeen[id]) {
+            lastSeen[id] = now;
+        }
+
+        int flowFlags = PacketRecord.FLOW_TRACKED
+            | (fromInitiator ? PacketRecord.FLOW_TO_SERVER : PacketRecord.FLOW_TO_CLIENT);
+        if (isEstablished(id)) {
+            flowFlags |= PacketRecord.FLOW_ESTABLISHED;
+        }
+        packet.setFlow(id, flowFlags);
+        return id;
+    }
+
+    /** Drops flows that have been idle past their timeout as of {@code nowNanos}. */
+    public void expire(long nowNanos) {
+        expired += wheel.advance(nowNanos, expiry);
+    }
+
+    public void addListener(Listener listener) {
+        Listener[] grown = Arrays.copyOf(listeners, listeners.length + 1);
+        grown[listeners.length] = listener;
+        listeners = grown;
+    }
+
+    private void notifyClosed(int id) {
+        for (Listener listener : listeners) {
+            listener.flowClosed(id);
+        }
+    }
+
+    private void open(int id, int protocol, int tcpFlags, boolean fromLow, int srcPort, int dstPort, long now) {
+        boolean senderIsInitiator;
+        int initial;
+        if (protocol != PacketRecord.PROTO_TCP) {
+            senderIsInitiator = true;
+            initial = STATE_NEW;
+        } else if ((tcpFlags & PacketRecord.TCP_RST) != 0) {
+            senderIsInitiator = true;
+            initial = STATE_CLOSED;
+        } else if ((tcpFlags & PacketRecord.TCP_SYN) != 0) {
+            // A SYN/ACK comes from the server
+            senderIsInitiator = (tcpFlags & PacketRecord.TCP_ACK) == 0;
+            initial = senderIsInitiator ? STATE_SYN_SENT : STATE_SYN_RECEIVED;
+        } else {
+            // Picked up mid-stream: the client is the side with the ephemeral port
+            senderIsInitiator = srcPort >= dstPort;
+            initial = STATE_ESTABLISHED;
+        }
+        state[id] = (byte) initial;
+        flags[id] = senderIsInitiator == fromLow ? INITIATOR_IS_LOW : 0;
+        firstSeen[id] = now;
+        lastSeen[id] = now;
+        packets[2 * id] = 0;
+        packets[2 * id + 1] = 0;
+        bytes[2 * id] = 0;
+        bytes[2 * id + 1] = 0;
+        Arrays.fill(flowbits, id * flowbitWords, (id + 1) * flowbitWords, 0L);
+        wheel.schedule(id, now + timeout(id));
+    }
+
+    private void advanceTcp(int id, int tcpFlags, boolean fromInitiator) {
+        if ((tcpFlags & PacketRecord.TCP_RST) != 0) {
+            state[id] = STATE_CLOSED;
+            return;
+        }
+        boolean syn = (tcpFlags & PacketRecord.TCP_SYN) != 0;
+        boolean ack = (tcpFlags & PacketRecord.TCP_ACK) != 0;
+        boolean fin = (tcpFlags & PacketRecord.TCP_FIN) != 0;
+        switch (state[id]) {
+            case STATE_SYN_SENT:
+                if (!fromInitiator && syn && ack) state[id] = STATE_SYN_RECEIVED;
+                break;
+            case STATE_SYN_RECEIVED:
+                if (fromInitiator && ack && !syn) state[id] = STATE_ESTABLISHED;
+                break;
+            case STATE_ESTABLISHED:
+            case STATE_FIN_WAIT:
+                if (fin) {
+                    flags[id] |= fromInitiator ? FIN_FROM_INITIATOR : FIN_FROM_RESPONDER;
+                    boolean both = (flags[id] & (FIN_FROM_INITIATOR | FIN_FROM_RESPONDER))
+                        == (FIN_FROM_INITIATOR | FIN_FROM_RESPONDER);
+                    state[id] = (byte) (both ? STATE_CLOSING : STATE_FIN_WAIT);
+                }
+                break;
+            case STATE_CLOSING:
+                if (ack && !fin) state[id] = STATE_CLOSED;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private long onTimeout(int id, long now) {
+        long deadline = lastSeen[id] + timeout(id);
+        if (deadline > now) {
+            return deadline;
+        }
+        remove(id);
+        return now;
+    }
+
+    private long timeout(int id) {
+        int protocol = (int) (highKey[id] >>> 48);
+        if (protocol == PacketRecord.PROTO_UDP) return TIMEOUT_UDP;
+        if (protocol != PacketRecord.PROTO_TCP) return TIMEOUT_OTHER;
+        switch (state[id]) {
+            case STATE_ESTABLISHED: return TIMEOUT_ESTABLISHED;
+            case STATE_FIN_WAIT:
+            case STATE_CLOSING: return TIMEOUT_CLOSING;
+            case STATE_CLOSED: return TIMEOUT_CLOSED;
+            default: return TIMEOUT_EMBRYONIC;
+        }
+    }
+
+    private int find(long low, long high, int hash) {
+        for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+            long entry = index[slot];
+            if (entry == 0) return -1;
+            if ((int) (entry >>> 32) == hash) {
+                int id = (int) entry - 1;
+                if (lowKey[id] == low && highKey[id] == high) return id;
+            }
+        }
+    }
+
+    private int insert(long low, long high, int hash) {
+        if (freeCount == 0) {
+            if (size >= maxFlows) return -1;
+            resize((int) Math.min((long) size * 2, maxFlows));
+        }
+        int id = free[--freeCount];
+        lowKey[id] = low;
+        highKey[id] = high;
+        place(id, hash);
+        size++;
+        created++;
+        return id;
+    }
+
+    private void place(int id, int hash) {
+        int slot = hash & indexMask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & indexMask;
+        }
+        index[slot] = ((long) hash << 32) | (id + 1);
+    }
+
+    private void remove(int id) {
+        int hash = hash(lowKey[id], highKey[id]);
+        int slot = hash & indexMask;
+        while ((int) index[slot] != id + 1) {
+            slot = (slot + 1) & indexMask;
+        }
+        // Backward-shift: pull later entries of the probe run into the hole
+        int hole = slot;
+        for (int next = (hole + 1) & indexMask; index[next] != 0; next = (next + 1) & indexMask) {
+            int home = (int) (index[next] >>> 32) & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index[hole] = index[next];
+                hole = next;
+            }
+        }
+        index[hole] = 0;
+        wheel.cancel(id);
+        notifyClosed(id);
+        clearFlowbits(id);
+        state[id] = 0;
+        free[freeCount++] = id;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int old = state.length;
+        if (capacity <= old) return;
+        lowKey = Arrays.copyOf(lowKey, capacity);
+        highKey = Arrays.copyOf(highKey, capacity);
+        state = Arrays.copyOf(state, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        firstSeen = Arrays.copyOf(firstSeen, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        packets = Arrays.copyOf(packets, 2 * capacity);
+        bytes = Arrays.copyOf(bytes, 2 * capacity);
+        flowbits = Arrays.copyOf(flowbits, flowbitWords * capacity);
+        free = Arrays.copyOf(free, capacity);
+        // Hand out low ids first
+        for (int id = capacity - 1; id >= old; id--) {
+            free[freeCount++] = id;
+        }
+        wheel.grow(capacity);
+
+        // Index at most half full keeps probe runs short
+        int slots = Integer.highestOneBit(capacity - 1) << 2;
+        index = new long[Math.max(slots, 4)];
+        indexMask = index.length - 1;
+        for (int id = 0; id < old; id++) {
+            if (state[id] != 0) {
+                place(id, hash(lowKey[id], highKey[id]));
+            }
+        }
+    }
+
+    private static int hash(long low, long high) {
+        long h = low * 0x9E3779B97F4A7C15L + high;
+        // fmix64 from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** True once the handshake completed (or the flow was picked up mid-stream) and until it closes. */
+    public boolean isEstablished(int id) {
+        int s = state[id];
+        return s == STATE_ESTABLISHED || s == STATE_FIN_WAIT || s == STATE_CLOSING;
+    }
+
+    public int getState(int id) {
+        return state[id];
+    }
+
+    public int getProtocol(int id) {
+        return (int) (highKey[id] >>> 48);
+    }
+
+    /** Address of the side that opened the flow, as an unsigned 32-bit value. */
+    public long getInitiatorIp(int id) {
+        return initiatorEndpoint(id) >>> 16;
+    }
+
+    public int getInitiatorPort(int id) {
+        return (int) (initiatorEndpoint(id) & 0xFFFF);
+    }
+
+    public long getResponderIp(int id) {
+        return responderEndpoint(id) >>> 16;
+    }
+
+    public int getResponderPort(int id) {
+        return (int) (responderEndpoint(id) & 0xFFFF);
+    }
+
+    private long initiatorEndpoint(int id) {
+        return (flags[id] & INITIATOR_IS_LOW) != 0 ? lowKey[id] : highKey[id] & ENDPOINT_MASK;
+    }
+
+    private long responderEndpoint(int id) {
+        return (flags[id] & INITIATOR_IS_LOW) != 0 ? highKey[id] & ENDPOINT_MASK : lowKey[id];
+    }
+
+    public long getFirstSeen(int id) {
+        return firstSeen[id];
+    }
+
+    public long getLastSeen(int id) {
+        return lastSeen[id];
+    }
+
+    public long getPacketsToServer(int id) {
+        return packets[2 * id];
+    }
+
+    public long getPacketsToClient(int id) {
+        return packets[2 * id + 1];
+    }
+
+    /** Transport payload bytes sent by the initiator. */
+    public long getBytesToServer(int id) {
+        return bytes[2 * id];
+    }
+
+    public long getBytesToClient(int id) {
+        return bytes[2 * id + 1];
+    }
+
+    public boolean isFlowbitSet(int id, int bit) {
+        int word = bit >>> 6;
+        return word < flowbitWords && (flowbits[id * flowbitWords + word] & (1L << bit)) != 0;
+    }
+
+    /** True when any flowbit is set on the flow. */
+    public boolean hasFlowbits(int id) {
+        for (int i = id * flowbitWords, end = i + flowbitWords; i < end; i++) {
+            if (flowbits[i] != 0) return true;
+        }
+        return false;
+    }
+
+    public void setFlowbit(int id, int bit) {
+        ensureFlowbit(bit);
+        flowbits[id * flowbitWords + (bit >>> 6)] |= 1L << bit;
+    }
+
+    public void clearFlowbit(int id, int bit) {
+        int word = bit >>> 6;
+        if (word < flowbitWords) {
+            flowbits[id * flowbitWords + word] &= ~(1L << bit);
+        }
+    }
+
+    public void toggleFlowbit(int id, int bit) {
+        ensureFlowbit(bit);
+        flowbits[id * flowbitWords + (bit >>> 6)] ^= 1L << bit;
+    }
+
+    public void clearFlowbits(int id) {
+        Arrays.fill(flowbits, id * flowbitWords, (id + 1) * flowbitWords, 0L);
+    }
+
+    /** Widens every flow's bitset when a rule set brings more flowbit names than fit. */
+    private void ensureFlowbit(int bit) {
+        int words = (bit >>> 6) + 1;
+        if (words <= flowbitWords) return;
+        int capacity = state.length;
+        long[] wider = new long[words * capacity];
+        for (int id = 0; id < capacity; id++) {
+            System.arraycopy(flowbits, id * flowbitWords, wider, id * words, flowbitWords);
+        }
+        flowbits = wider;
+        flowbitWords = words;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return state.length;
+    }
+
+    public int getMaxFlows() {
+        return maxFlows;
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("flows", size);
+        stats.put("capacity", state.length);
+        stats.put("created", created);
+        stats.put("expired", expired);
+        stats.put("overflows", overflows);
+        return stats;
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.flow;
+
+import com.example.util.PacketRecord;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, per flow direction, the decisions that only depend on packet
+ * headers: the first matching header-only rule and the RL action. The bulk of a
+ * transfer then reuses the verdict of its first packet instead of running the
+ * rule scan and the agent again.
+ *
+ * The cache is direct-mapped: a directional 5-tuple (source and destination
+ * endpoints packed as {@code ip << 16 | port}, protocol in the top bits) hashes
+ * to exactly one slot and a colliding flow simply replaces it. Each verdict is
+ * stamped with the packet timestamp and expires after the TTL, so rule reloads,
+ * RL training and changes in flow state are picked up within that time; rule
+ * verdicts are also keyed by rule set generation, protocol label and flow flags.
+ *
+ * Only TCP and UDP packets with IPv4 addresses are cached. Not thread-safe.
+ *
+ * @param <A> type of the cached action
+ */
+public final class FlowVerdictCache<A> {
+    /** Returned by {@link #lookupRule} when there is no usable verdict. */
+    public static final int MISS = Integer.MIN_VALUE;
+
+    public static final int DEFAULT_SLOTS = 1 << 16;
+    public static final long DEFAULT_TTL_NANOS = 10_000_000_000L;
+
+    private final int mask;
+    private final long ttlNanos;
+
+    private final long[] srcKey;
+    private final long[] dstKey;
+    private final long[] ruleStamp;
+    private final int[] ruleRank;
+    private final int[] ruleGeneration;
+    private final int[] ruleFlowFlags;
+    private final String[] ruleLabel;
+    private final long[] actionStamp;
+    private final Object[] actions;
+
+    private long ruleHits;
+    private long ruleMisses;
+    private long actionHits;
+    private long actionMisses;
+
+    public FlowVerdictCache() {
+        this(DEFAULT_SLOTS, DEFAULT_TTL_NANOS);
+    }
+
+    /**
+     * @param slots    number of cached flow directions, rounded up to a power of two
+     * @param ttlNanos how long a verdict is reused, in packet time
+     */
+    public FlowVerdictCache(int slots, long ttlNanos) {
+        if (slots <= 0 || ttlNanos <= 0) {
+            throw new IllegalArgumentException("Invalid verdict cache: " + slots + " slots, ttl " + ttlNanos);
+        }
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.ttlNanos = ttlNanos;
+        this.srcKey = new long[size];
+        this.dstKey = new long[size];
+        this.ruleStamp = new long[size];
+        this.ruleRank = new int[size];
+        this.ruleGeneration = new int[size];
+        this.ruleFlowFlags = new int[size];
+        this.ruleLabel = new String[size];
+        this.actionStamp = new long[size];
+        this.actions = new Object[size];
+    }
+
+    /**
+     * Cached header-only rule verdict for the packet's flow direction: a rank
+     * (&ge; 0), -1 for "no header-only rule matched", or {@link #MISS}.
+     */
+    public int lookupRule(PacketRecord packet, int generation) {
+        int slot = slotOf(packet);
+        if (slot < 0 || !fresh(ruleStamp[slot], packet) || ruleGeneration[slot] != generation
+                || ruleFlowFlags[slot] != packet.getFlowFlags()
+                || !packet.getProtocolName().equals(ruleLabel[slot])) {
+            ruleMisses++;
+            return MISS;
+        }
+        ruleHits++;
+        return ruleRank[slot];
+    }
+
+    public void storeRule(PacketRecord packet, int generation, int rank) {
+        int slot = claim(packet);
+        if (slot < 0) return;
+        ruleStamp[slot] = stamp(packet);
+        ruleRank[slot] = rank;
+        ruleGeneration[slot] = generation;
+        ruleFlowFlags[slot] = packet.getFlowFlags();
+        ruleLabel[slot] = packet.getProtocolName();
+    }
+
+    /** Cached action for the packet's flow direction, or null. */
+    @SuppressWarnings("unchecked")
+    public A lookupAction(PacketRecord packet) {
+        int slot = slotOf(packet);
+        if (slot < 0 || actions[slot] == null || !fresh(actionStamp[slot], packet)) {
+            actionMisses++;
+            return null;
+        }
+        actionHits++;
+        return (A) actions[slot];
+    }
+
+    public void storeAction(PacketRecord packet, A action) {
+        int slot = claim(packet);
+        if (slot < 0) return;
+        actionStamp[slot] = stamp(packet);
+        actions[slot] = action;
+    }
+
+    /** Returns the packet's slot if it currently holds the packet's flow direction, else -1. */
+    private int slotOf(PacketRecord packet) {
+        if (!cacheable(packet)) return -1;
+        long src = srcKey(packet);
+        long dst = dstKey(packet);
+        int slot = hash(src, dst) & mask;
+        return srcKey[slot] == src && dstKey[slot] == dst ? slot : -1;
+    }
+
+    /** Returns the packet's slot, evicting whichever flow direction held it. */
+    private int claim(PacketRecord packet) {
+        if (!cacheable(packet)) return -1;
+        long src = srcKey(packet);
+        long dst = dstKey(packet);
+        int slot = hash(src, dst) & mask;
+        if (srcKey[slot] != src || dstKey[slot] != dst) {
+            srcKey[slot] = src;
+            dstKey[slot] = dst;
+            ruleStamp[slot] = 0;
+            ruleLabel[slot] = null;
+            actionStamp[slot] = 0;
+            actions[slot] = null;
+        }
+        return slot;
+    }
+
+    private boolean fresh(long stamp, PacketRecord packet) {
+        return stamp != 0 && stamp(packet) - stamp < ttlNanos;
+    }
+
+    private static long stamp(PacketRecord packet) {
+        long now = packet.getTimestampNanos();
+        return now > 0 ? now : System.currentTimeMillis() * 1_000_000L;
+    }
+
+    private static boolean cacheable(PacketRecord packet) {
+        int protocol = packet.getProtocol();
+        return (protocol == PacketRecord.PROTO_TCP || protocol == PacketRecord.PROTO_UDP)
+            && packet.getSrcIp() != PacketRecord.ABSENT && packet.getDstIp() != PacketRecord.ABSENT;
+    }
+
+    private static long srcKey(PacketRecord packet) {
+        // Keys are never 0, so an empty slot cannot match
+        return (packet.getSrcIp() << 16) | (packet.getSrcPort() & 0xFFFF) | (1L << 63);
+    }
+
+    private static long dstKey(PacketRecord packet) {
+        return (packet.getDstIp() << 16) | (packet.getDstPort() & 0xFFFF) | ((long) packet.getProtocol() << 48);
+    }
+
+    private static int hash(long src, long dst) {
+        long h = src * 0x9E3779B97F4A7C15L + dst;
+        // fmix64 from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    public double getRuleHitRate() {
+        long total = ruleHits + ruleMisses;
+        return total == 0 ? 0.0 : (double) ruleHits / total;
+    }
+
+    public double getActionHitRate() {
+        long total = actionHits + actionMisses;
+        return total == 0 ? 0.0 : (double) actionHits / total;
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("slots", mask + 1);
+        stats.put("ruleHits", ruleHits);
+        stats.put("ruleMisses", ruleMisses);
+        stats.put("ruleHitRate", getRuleHitRate());
+        stats.put("actionHits", actionHits);
+        stats.put("actionMisses", actionMisses);
+        stats.put("actionHitRate", getActionHitRate());
+        return stats;
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.flow;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns flowbit names into small integers shared by every rule set and flow
+ * table, so a flow's flowbits are a bitset and rules test bit indexes instead of
+ * strings. Names are never removed: a reloaded rule set keeps the indexes of the
+ * names it shares with the previous one, and flows carry their bits across the reload.
+ */
+public final class Flowbits {
+    private static final Map<String, Integer> INDEXES = new HashMap<>();
+
+    private Flowbits() {}
+
+    /** Index of {@code name}, assigning the next free one on first use. */
+    public static synchronized int intern(String name) {
+        Integer index = INDEXES.get(name);
+        if (index == null) {
+            index = INDEXES.size();
+            INDEXES.put(name, index);
+        }
+        return index;
+    }
+
+    /** Number of names interned so far. */
+    public static synchronized int count() {
+        return INDEXES.size();
+    }
+}
@@ -0,0 +1,472 @@
+package com.example.flow;
+
+import com.example.util.PacketRecord;
+import com.example.util.RawPacketDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles IPv4 fragments before detection, so content rules see the whole
+ * datagram and every packet handed on has its real transport header.
+ *
+ * Datagrams in progress are keyed by (source, destination, protocol, IP id) in
+ * an open-addressing index and their fragments are copied into a per-datagram
+ * buffer, with the received byte ranges kept sorted and merged. Overlapping
+ * fragments are settled by the {@link OverlapPolicy}. When the ranges cover the
+ * datagram up to the end given by the last fragment, the fragment record is
+ * rewritten to hold the datagram and its transport header is decoded.
+ *
+ * Memory is bounded three ways: the number of datagrams in progress, the
+ * buffer bytes held for one source and the buffer bytes held in total. Making
+ * room evicts the oldest datagram (of that source, for the per-source cap):
+ * datagrams are kept in arrival order in one list and in one list per source,
+ * so finding it takes constant time even under a flood of first fragments.
+ * Datagrams not completed within the timeout are dropped, as are those with
+ * malformed fragments (odd lengths, inconsistent ends, past 64KB) or too many.
+ *
+ * Not thread-safe: one defragmenter per producer, ahead of the flow sharding,
+ * so the fragments of a datagram meet in one place whatever their ports.
+ */
+public final class IpDefragmenter {
+    public static final long DEFAULT_TIMEOUT_NANOS = 30_000_000_000L;
+    public static final int DEFAULT_MAX_DATAGRAMS = 4096;
+    public static final long DEFAULT_MEMORY_BYTES = 16L << 20;
+    public static final long DEFAULT_SOURCE_MEMORY_BYTES = 1L << 20;
+
+    /** Largest IPv4 payload: the total length field minus a minimal header. */
+    private static final int MAX_PAYLOAD = 65535 - 20;
+    private static final int MAX_FRAGMENTS = 128;
+    private static final int MIN_BUFFER = 2048;
+    private static final int WHEEL_BUCKETS = 64;
+    private static final long SECOND = 1_000_000_000L;
+    private static final int EMPTY = 0;
+    private static final int NONE = -1;
+
+    private final int maxDatagrams;
+    private final long timeoutNanos;
+    private final long memoryCap;
+    private final long sourceCap;
+    private final OverlapPolicy policy;
+
+    // Slot -> datagram id + 1, linear probing; at least twice the datagrams, so never full
+    private final int[] index;
+    private final int indexMask;
+
+    // Per datagram
+    private final long[] addresses;
+    private final int[] protocolAndId;
+    private final int[] hashes;
+    private final long[] firstSeen;
+    private final int[] totalLength;
+    private final int[] fragmentCount;
+    private final byte[][] buffers;
+    private final int[][] ranges;
+    private final int[] rangeCount;
+    private final int[] free;
+    private int freeCount;
+
+    // Arrival order, oldest first: across all datagrams, and per source
+    private final int[] newer;
+    private final int[] older;
+    private final int[] newerOfSource;
+    private final int[] olderOfSource;
+    private int oldest = NONE;
+    private int newest = NONE;
+
+    /** Buffer bytes and datagrams of one source address. */
+    private static final class Source {
+        long bytes;
+        int oldest = NONE;
+        int newest = NONE;
+    }
+
+    private final TimerWheel wheel;
+    private final TimerWheel.Expiry expiry = this::onTimeout;
+    private final Map<Integer, Source> sources = new HashMap<>();
+    private long heldBytes;
+
+    private long fragments;
+    private long reassembled;
+    private long timeouts;
+    private long evictions;
+    private long overlaps;
+    private long malformed;
+    private long dropped;
+
+    public IpDefragmenter(OverlapPolicy policy) {
+        this(DEFAULT_MAX_DATAGRAMS, DEFAULT_MEMORY_BYTES, DEFAULT_SOURCE_MEMORY_BYTES, DEFAULT_TIMEOUT_NANOS, policy);
+    }
+
+    /**
+     * @param maxDatagrams datagrams reassembled at once
+     * @param memoryCap    buffer bytes held in total
+     * @param sourceCap    buffer bytes held for one source address
+     * @param timeoutNanos time from a datagram's first fragment until it is dropped, in packet time
+     */
+    public IpDefragmenter(int maxDatagrams, long memoryCap, long sourceCap, long timeoutNanos,
+                          OverlapPolicy policy) {
+        if (maxDatagrams <= 0 || memoryCap <= 0 || sourceCap <= 0 || timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid defragmenter limits: " + maxDatagrams + " datagrams, "
+                + memoryCap + " bytes, " + sourceCap + " bytes per source, timeout " + timeoutNanos);
+        }
+        this.maxDatagrams = maxDatagrams;
+        this.memoryCap = memoryCap;
+        this.sourceCap = sourceCap;
+        this.timeoutNanos = timeoutNanos;
+        this.policy = policy;
+        int slots = Integer.highestOneBit(Math.max(2, maxDatagrams * 2 - 1)) << 1;
+        this.index = new int[slots];
+        this.indexMask = slots - 1;
+        this.addresses = new long[maxDatagrams];
+        this.protocolAndId = new int[maxDatagrams];
+        this.hashes = new int[maxDatagrams];
+        this.firstSeen = new long[maxDatagrams];
+        this.totalLength = new int[maxDatagrams];
+        this.fragmentCount = new int[maxDatagrams];
+        this.buffers = new byte[maxDatagrams][];
+        this.ranges = new int[maxDatagrams][];
+        this.rangeCount = new int[maxDatagrams];
+        this.free = new int[maxDatagrams];
+        this.newer = new int[maxDatagrams];
+        this.older = new int[maxDatagrams];
+        this.newerOfSource = new int[maxDatagrams];
+        this.olderOfSource = new int[maxDatagrams];
+        for (int id = maxDatagrams - 1; id >= 0; id--) {
+            free[freeCount++] = id;
+        }
+        this.wheel = new TimerWheel(maxDatagrams, WHEEL_BUCKETS, SECOND);
+    }
+
+    /**
+     * Defragmenter configured by system properties, or null when -Dids.defrag=false.
+     * -Dids.defrag.overlap=first|last, -Dids.defrag.memory in MB, -Dids.defrag.timeout in seconds.
+     */
+    public static IpDefragmenter fromSystemProperties() {
+        if (!Boolean.parseBoolean(System.getProperty("ids.defrag", "true"))) {
+            return null;
+        }
+        long memory = Long.getLong("ids.defrag.memory", DEFAULT_MEMORY_BYTES >> 20) << 20;
+        long timeout = Long.getLong("ids.defrag.timeout", DEFAULT_TIMEOUT_NANOS / SECOND) * SECOND;
+        return new IpDefragmenter(DEFAULT_MAX_DATAGRAMS, memory, Math.min(memory, DEFAULT_SOURCE_MEMORY_BYTES),
+                                  timeout, OverlapPolicy.fromString(System.getProperty("ids.defrag.overlap")));
+    }
+
+    /**
+     * Takes the fragment held by {@code record}. Records that are not IPv4
+     * fragments are left alone.
+     *
+     * @return true if {@code record} should go on to detection: it was not a
+     *         fragment, or it now holds the reassembled datagram. False if the
+     *         fragment was kept (or dropped) and the record can be reused.
+     */
+    public boolean accept(PacketRecord record) {
+        if (!record.isFragment()) return true;
+        long now = record.getTimestampNanos();
+        if (now <= 0) {
+            now = System.currentTimeMillis() * 1_000_000L;
+        }
+        wheel.advance(now, expiry);
+        fragments++;
+
+        int start = record.getFragmentOffset();
+        int length = record.getPayloadLength();
+        int end = start + length;
+        boolean more = record.hasMoreFragments();
+        // Every fragment but the last carries a multiple of 8 bytes
+        if (more && (length == 0 || (length & 7) != 0)) {
+            malformed++;
+            return false;
+        }
+
+        long address = (record.getSrcIp() << 32) | (record.getDstIp() & 0xFFFFFFFFL);
+        int key = (record.getProtocol() << 16) | record.getIpId();
+        int hash = hash(address, key);
+        int id = find(address, key, hash);
+        if (id < 0) {
+            id = insert(address, key, hash, now);
+        }
+
+        if (end > MAX_PAYLOAD
+                || (!more && totalLength[id] >= 0 && totalLength[id] != end)
+                || (!more && end == 0)
+                || (totalLength[id] >= 0 && end > totalLength[id])
+                || (!more && rangeCount[id] > 0 && ranges[id][2 * rangeCount[id] - 1] > end)) {
+            malformed++;
+            remove(id);
+            return false;
+        }
+        if (++fragmentCount[id] > MAX_FRAGMENTS || !reserve(id, end)) {
+            dropped++;
+            remove(id);
+            return false;
+        }
+        if (!more) {
+            totalLength[id] = end;
+        }
+        if (length > 0) {
+            store(id, record, start, end);
+        }
+
+        int total = totalLength[id];
+        if (total < 0 || rangeCount[id] != 1 || ranges[id][0] != 0 || ranges[id][1] != total) {
+            return false;
+        }
+        // Complete: the buffer goes to the record and is not reused
+        byte[] datagram = buffers[id];
+        remove(id);
+        reassembled++;
+        if (!RawPacketDecoder.decodeDatagram(datagram, total, record)) {
+            malformed++;
+            return false;
+        }
+        return true;
+    }
+
+    /** Drops datagrams whose timeout has passed as of {@code nowNanos}. */
+    public void expire(long nowNanos) {
+        wheel.advance(nowNanos, expiry);
+    }
+
+    private long onTimeout(int id, long now) {
+        long deadline = firstSeen[id] + timeoutNanos;
+        if (deadline <= now) {
+            timeouts++;
+            // remove() cancels the handle, which the wheel has already unlinked
+            release(id);
+        }
+        return deadline;
+    }
+
+    /** Copies the fragment into the buffer and adds its range. */
+    private void store(int id, PacketRecord record, int start, int end) {
+        byte[] buffer = buffers[id];
+        int[] r = ranges[id];
+        int n = rangeCount[id];
+        boolean overlapped = false;
+        int pos = start;
+        for (int i = 0; i < n; i++) {
+            int a = r[2 * i];
+            int b = r[2 * i + 1];
+            if (b <= start) continue;
+            if (a >= end) break;
+            overlapped = true;
+            if (policy == OverlapPolicy.FIRST) {
+                // Only fill the holes before this range
+                if (a > pos) {
+                    record.copyPayload(pos - start, buffer, pos, a - pos);
+                }
+                pos = Math.max(pos, b);
+            }
+        }
+        if (policy == OverlapPolicy.LAST) {
+            record.copyPayload(0, buffer, start, end - start);
+        } else if (pos < end) {
+            record.copyPayload(pos - start, buffer, pos, end - pos);
+        }
+        if (overlapped) {
+            overlaps++;
+        }
+
+        // Insert by start, then merge overlapping and adjacent ranges
+        if (2 * (n + 1) > r.length) {
+            r = ranges[id] = Arrays.copyOf(r, r.length * 2);
+        }
+        int at = n;
+        while (at > 0 && r[2 * (at - 1)] > start) {
+            r[2 * at] = r[2 * (at - 1)];
+            r[2 * at + 1] = r[2 * (at - 1) + 1];
+            at--;
+        }
+        r[2 * at] = start;
+        r[2 * at + 1] = end;
+        n++;
+        int w = 0;
+        for (int k = 1; k < n; k++) {
+            if (r[2 * k] <= r[2 * w + 1]) {
+                r[2 * w + 1] = Math.max(r[2 * w + 1], r[2 * k + 1]);
+            } else {
+                w++;
+                r[2 * w] = r[2 * k];
+                r[2 * w + 1] = r[2 * k + 1];
+            }
+        }
+        rangeCount[id] = w + 1;
+    }
+
+    /** Grows the datagram's buffer to hold {@code end} bytes, evicting others to stay within the caps. */
+    private boolean reserve(int id, int end) {
+        byte[] buffer = buffers[id];
+        int capacity = buffer == null ? 0 : buffer.length;
+        if (end <= capacity) return true;
+        int grown = totalLength[id] >= 0 ? totalLength[id]
+            : Math.min(MAX_PAYLOAD, Math.max(Math.max(MIN_BUFFER, capacity * 2), end));
+        grown = Math.max(grown, end);
+        long delta = grown - capacity;
+        // The datagram itself is in its source's list, so the entry outlives the evictions
+        Source source = sources.get(source(id));
+        while (source.bytes + delta > sourceCap) {
+            if (!evictOldest(source.oldest, newerOfSource, id)) return false;
+        }
+        while (heldBytes + delta > memoryCap) {
+            if (!evictOldest(oldest, newer, id)) return false;
+        }
+        buffers[id] = buffer == null ? new byte[grown] : Arrays.copyOf(buffer, grown);
+        charge(source, delta);
+        return true;
+    }
+
+    /** Evicts the first datagram other than {@code except} of the list starting at {@code first}. */
+    private boolean evictOldest(int first, int[] next, int except) {
+        int victim = first == except ? next[first] : first;
+        if (victim == NONE) return false;
+        evictions++;
+        remove(victim);
+        return true;
+    }
+
+    private int find(long address, int key, int hash) {
+        for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+            int entry = index[slot];
+            if (entry == EMPTY) return NONE;
+            int id = entry - 1;
+            if (addresses[id] == address && protocolAndId[id] == key) return id;
+        }
+    }
+
+    private int insert(long address, int key, int hash, long now) {
+        if (freeCount == 0) {
+            evictOldest(oldest, newer, NONE);
+        }
+        int id = free[--freeCount];
+        addresses[id] = address;
+        protocolAndId[id] = key;
+        hashes[id] = hash;
+        firstSeen[id] = now;
+        totalLength[id] = -1;
+        fragmentCount[id] = 0;
+        rangeCount[id] = 0;
+        if (ranges[id] == null) {
+            ranges[id] = new int[16];
+        }
+        int slot = hash & indexMask;
+        while (index[slot] != EMPTY) {
+            slot = (slot + 1) & indexMask;
+        }
+        index[slot] = id + 1;
+        link(id);
+        wheel.schedule(id, now + timeoutNanos);
+        return id;
+    }
+
+    /** Appends the datagram to the arrival lists. */
+    private void link(int id) {
+        older[id] = newest;
+        newer[id] = NONE;
+        if (newest != NONE) newer[newest] = id; else oldest = id;
+        newest = id;
+
+        Source source = sources.computeIfAbsent(source(id), address -> new Source());
+        olderOfSource[id] = source.newest;
+        newerOfSource[id] = NONE;
+        if (source.newest != NONE) newerOfSource[source.newest] = id; else source.oldest = id;
+        source.newest = id;
+    }
+
+    /** Takes the datagram out of the arrival lists, dropping its source once empty. */
+    private void unlink(int id, Source source) {
+        if (older[id] != NONE) newer[older[id]] = newer[id]; else oldest = newer[id];
+        if (newer[id] != NONE) older[newer[id]] = older[id]; else newest = older[id];
+
+        int before = olderOfSource[id];
+        int after = newerOfSource[id];
+        if (before != NONE) newerOfSource[before] = after; else source.oldest = after;
+        if (after != NONE) olderOfSource[after] = before; else source.newest = before;
+        if (source.oldest == NONE) {
+            sources.remove(source(id));
+        }
+    }
+
+    private void remove(int id) {
+        wheel.cancel(id);
+        release(id);
+    }
+
+    /** Frees the datagram's index slot, buffer and id; the wheel is left to the caller. */
+    private void release(int id) {
+        int slot = hashes[id] & indexMask;
+        while (index[slot] != id + 1) {
+            slot = (slot + 1) & indexMask;
+        }
+        // Backward-shift deletion keeps probe sequences unbroken without tombstones
+        int hole = slot;
+        for (int next = (hole + 1) & indexMask; index[next] != EMPTY; next = (next + 1) & indexMask) {
+            int home = hashes[index[next] - 1] & indexMask;
+            if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+                index[hole] = index[next];
+                hole = next;
+            }
+        }
+        index[hole] = EMPTY;
+
+        Source source = sources.get(source(id));
+        if (buffers[id] != null) {
+            charge(source, -buffers[id].length);
+            buffers[id] = null;
+        }
+        unlink(id, source);
+        free[freeCount++] = id;
+    }
+
+    private void charge(Source source, long delta) {
+        heldBytes += delta;
+        source.bytes += delta;
+    }
+
+    private int source(int id) {
+        return (int) (addresses[id] >>> 32);
+    }
+
+    private static int hash(long address, int key) {
+        long h = address * 0x9E3779B97F4A7C15L + key;
+        // fmix64 from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /** Datagrams currently being reassembled. */
+    public int size() {
+        return maxDatagrams - freeCount;
+    }
+
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("datagrams", size());
+        stats.put("heldBytes", heldBytes);
+        stats.put("fragments", fragments);
+        stats.put("reassembled", reassembled);
+        stats.put("timeouts", timeouts);
+        stats.put("evictions", evictions);
+        stats.put("overlaps", overlaps);
+        stats.put("malformed", malformed);
+        stats.put("dropped", dropped);
+        return stats;
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.flow;
+
+/**
+ * Which copy of a byte wins when TCP segments or IP fragments overlap. Targets
+ * resolve overlaps differently, so the policy should match the protected hosts.
+ */
+public enum OverlapPolicy {
+    /** The byte seen first is kept (BSD, Windows). */
+    FIRST,
+    /** A retransmitted byte replaces the earlier one (Linux, Solaris). */
+    LAST;
+
+    public static OverlapPolicy fromString(String name) {
+        return name == null ? FIRST : valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,455 @@
+package com.example.flow;
+
+import com.example.util.PacketRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds each direction of the TCP flows of a {@link FlowTable} in sequence
+ * order, so content and PCRE rules can see signatures split across segments.
+ *
+ * Each stream (flow id and direction) borrows a fixed-size ring buffer covering
+ * [windowStart, windowStart + bufferSize) of its sequence space. Bytes before
+ * the next expected sequence number form the detection window: at most
+ * {@code windowSize} already-delivered bytes, which slides forward as data
+ * arrives. Bytes past it are out-of-order data waiting for the gap to fill,
+ * marked in a presence bitmap. When a segment does not fit past a gap (a lost
+ * or dropped segment that will not come back), the gap is skipped: the stream
+ * jumps to the first waiting byte, or to the new segment, and the detection
+ * window restarts there. Data that still falls outside the buffer is dropped.
+ *
+ * Overlaps are settled byte by byte by the {@link OverlapPolicy}. That covers
+ * retransmits of delivered data still in the window and overlapping
+ * out-of-order segments.
+ *
+ * Buffers come from a {@link MemoryBudget} that can be shared by every worker.
+ * When it is exhausted, the least recently used streams are examined and the
+ * one holding the most bytes is evicted; it resynchronises on its next segment.
+ * Buffers are pooled per reassembler and never handed back to the heap.
+ *
+ * Not thread-safe: one reassembler per detection worker, like its flow table.
+ */
+public final class StreamReassembler implements FlowTable.Listener {
+
+    /** Byte budget for reassembly buffers, shared by the reassemblers created with it. */
+    public static final class MemoryBudget {
+        private final long capBytes;
+        private final AtomicLong used = new AtomicLong();
+
+        public MemoryBudget(long capBytes) {
+            this.capBytes = capBytes;
+        }
+
+        boolean tryReserve(long bytes) {
+            long current;
+            do {
+                current = used.get();
+                if (current + bytes > capBytes) return false;
+            } while (!used.compareAndSet(current, current + bytes));
+            return true;
+        }
+
+        public long getCapBytes() {
+            return capBytes;
+        }
+
+        public long getUsedBytes() {
+            return used.get();
+        }
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    public static final int DEFAULT_WINDOW_SIZE = 4 * 1024;
+
+    /** Shared by reassemblers created without an explicit budget; -Dids.reassembly.memory in MB. */
+    private static final MemoryBudget GLOBAL_BUDGET =
+        new MemoryBudget(Long.getLong("ids.reassembly.memory", 64) << 20);
+
+    private static final int EVICTION_CANDIDATES = 8;
+    private static final int NONE = -1;
+
+    private final FlowTable flows;
+    private final int bufferSize;
+    private final int mask;
+    private final int windowSize;
+    private final OverlapPolicy policy;
+    private final MemoryBudget budget;
+
+    // Per stream, indexed by 2 * flow id + direction (0 towards the server)
+    private int[] buffer = new int[0];
+    private boolean[] synced = new boolean[0];
+    private int[] windowStart = new int[0];
+    private int[] nextSeq = new int[0];
+    private int[] pending = new int[0];
+    private int[] lruPrev = new int[0];
+    private int[] lruNext = new int[0];
+    private Object[] lastAlert = new Object[0];
+    private int[] lastAlertSeq = new int[0];
+    private int lruHead = NONE;
+    private int lruTail = NONE;
+
+    // Buffer pool
+    private final List<byte[]> data = new ArrayList<>();
+    private final List<long[]> present = new ArrayList<>();
+    private int[] freeBuffers = new int[0];
+    private int freeCount;
+
+    private final byte[] view;
+
+    private long segments;
+    private long outOfOrder;
+    private long retransmits;
+    private long conflicts;
+    private long truncated;
+    private long gaps;
+    private long skippedBytes;
+    private long evictions;
+    private long starved;
+
+    public StreamReassembler(FlowTable flows, OverlapPolicy policy) {
+        this(flows, DEFAULT_BUFFER_SIZE, DEFAULT_WINDOW_SIZE, GLOBAL_BUDGET, policy);
+    }
+
+    /**
+     * @param bufferSize per-stream buffer, a power of two larger than {@code windowSize}
+     * @param windowSize delivered bytes kept for detection
+     */
+    public StreamReassembler(FlowTable flows, int bufferSize, int windowSize, MemoryBudget budget,
+                             OverlapPolicy policy) {
+        if (Integer.bitCount(bufferSize) != 1 || bufferSize < 64 || windowSize <= 0 || windowSize >= bufferSize) {
+            throw new IllegalArgumentException("Invalid reassembly sizes: buffer " + bufferSize + ", window " + windowSize);
+        }
+        this.flows = flows;
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.windowSize = windowSize;
+        this.budget = budget;
+        this.policy = policy;
+        this.view = new byte[windowSize];
+        flows.addListener(this);
+    }
+
+    /**
+     * Adds the packet's TCP payload to its stream. The packet must have been
+     * tracked by this reassembler's flow table.
+     *
+     * @param window filled with the packet's headers and the stream's detection
+     *               window when this returns true
+     * @return true when the packet extended the in-order stream and the window
+     *         holds more than the packet's own payload
+     */
+    public boolean accept(PacketRecord packet, PacketRecord window) {
+        int flowId = packet.getFlowId();
+        long sequence = packet.getTcpSeq();
+        if (packet.getProtocol() != PacketRecord.PROTO_TCP || flowId < 0 || sequence == PacketRecord.ABSENT) {
+            return false;
+        }
+        int stream = 2 * flowId + ((packet.getFlowFlags() & PacketRecord.FLOW_TO_CLIENT) != 0 ? 1 : 0);
+        ensureStreams(stream);
+        int flags = packet.getTcpFlags();
+        int seq = (int) sequence;
+        if ((flags & PacketRecord.TCP_SYN) != 0) {
+            // The SYN takes one sequence number; any data follows it
+            seq++;
+        }
+        if (!synced[stream]) {
+            synced[stream] = true;
+            windowStart[stream] = seq;
+            nextSeq[stream] = seq;
+            pending[stream] = 0;
+            lastAlert[stream] = null;
+        }
+        int length = packet.getPayloadLength();
+        if (length == 0 || (flags & PacketRecord.TCP_RST) != 0) {
+            return false;
+        }
+        segments++;
+        if (buffer[stream] == NONE && !allocate(stream)) {
+            starved++;
+            return false;
+        }
+        touch(stream);
+
+        int before = nextSeq[stream];
+        insert(stream, seq, packet, length);
+        int delivered = nextSeq[stream] - before;
+        if (delivered <= 0) {
+            return false;
+        }
+        if (nextSeq[stream] - windowStart[stream] > windowSize) {
+            windowStart[stream] = nextSeq[stream] - windowSize;
+        }
+        int viewLength = nextSeq[stream] - windowStart[stream];
+        if (viewLength <= length) {
+            return false;
+        }
+        byte[] ring = data.get(buffer[stream]);
+        int from = windowStart[stream] & mask;
+        int first = Math.min(viewLength, bufferSize - from);
+        System.arraycopy(ring, from, view, 0, first);
+        System.arraycopy(ring, 0, view, first, viewLength - first);
+        window.copyHeaders(packet);
+        window.setPayload(view, 0, viewLength);
+        return true;
+    }
+
+    /**
+     * Call when a rule matched the window last filled by {@link #accept}. The same
+     * rule is reported once per stream until the bytes it matched have slid out
+     * of the window.
+     *
+     * @return true if the alert should be raised
+     */
+    public boolean shouldReport(PacketRecord window, Object rule) {
+        int stream = 2 * window.getFlowId() + ((window.getFlowFlags() & PacketRecord.FLOW_TO_CLIENT) != 0 ? 1 : 0);
+        if (stream < 0 || stream >= buffer.length) return true;
+        if (lastAlert[stream] == rule && lastAlertSeq[stream] - windowStart[stream] > 0) {
+            return false;
+        }
+        lastAlert[stream] = rule;
+        lastAlertSeq[stream] = nextSeq[stream];
+        return true;
+    }
+
+    private void insert(int stream, int seq, PacketRecord packet, int length) {
+        int from = Math.max(0, windowStart[stream] - seq);
+        if (windowStart[stream] - seq >= length) {
+            retransmits++;
+            return; // entirely before the window
+        }
+        byte[] ring = data.get(buffer[stream]);
+
+        // Retransmitted bytes that were already delivered
+        int deliveredEnd = Math.min(length, nextSeq[stream] - seq);
+        if (deliveredEnd > from) {
+            retransmits++;
+            for (int i = from; i < deliveredEnd; i++) {
+                int pos = (seq + i) & mask;
+                byte b = (byte) packet.getPayloadByte(i);
+                if (ring[pos] != b) {
+                    conflicts++;
+                    if (policy == OverlapPolicy.LAST) ring[pos] = b;
+                }
+            }
+            from = deliveredEnd;
+        }
+        if (from >= length) return;
+
+        int to = length;
+        int room = windowStart[stream] + bufferSize - seq;
+        if (to > room && skipGaps(stream, seq + from, seq + length)) {
+            // The buffer moved forward: settle the segment against it again
+            insert(stream, seq, packet, length);
+            return;
+        }
+        if (to > room) {
+            truncated++;
+            to = room;
+            if (from >= to) return;
+        }
+
+        if (pending[stream] == 0 && seq + from == nextSeq[stream]) {
+            // In order with nothing waiting: straight copy
+            int pos = (seq + from) & mask;
+            int n = to - from;
+            int firstPart = Math.min(n, bufferSize - pos);
+            packet.copyPayload(from, ring, pos, firstPart);
+            packet.copyPayload(from + firstPart, ring, 0, n - firstPart);
+            nextSeq[stream] += n;
+            return;
+        }
+
+        if (seq + from != nextSeq[stream]) {
+            outOfOrder++;
+        }
+        long[] bits = present.get(buffer[stream]);
+        for (int i = from; i < to; i++) {
+            int pos = (seq + i) & mask;
+            byte b = (byte) packet.getPayloadByte(i);
+            long bit = 1L << pos;
+            if ((bits[pos >>> 6] & bit) != 0) {
+                if (ring[pos] != b) {
+                    conflicts++;
+                    if (policy == OverlapPolicy.LAST) ring[pos] = b;
+                }
+            } else {
+                ring[pos] = b;
+                bits[pos >>> 6] |= bit;
+                pending[stream]++;
+            }
+        }
+        deliverContiguous(stream, bits);
+    }
+
+    /** Moves out-of-order bytes that now follow the stream's end into it. */
+    private void deliverContiguous(int stream, long[] bits) {
+        while (pending[stream] > 0) {
+            int pos = nextSeq[stream] & mask;
+            long bit = 1L << pos;
+            if ((bits[pos >>> 6] & bit) == 0) break;
+            bits[pos >>> 6] &= ~bit;
+            nextSeq[stream]++;
+            pending[stream]--;
+        }
+    }
+
+    /**
+     * Gives up on the missing bytes in front of a segment ending at {@code end}
+     * that does not fit in the buffer: the stream jumps to whichever comes first
+     * of its first waiting byte and {@code start}, delivers what follows, and
+     * repeats until the segment fits or no gap is left.
+     *
+     * @return true if the stream moved
+     */
+    private boolean skipGaps(int stream, int start, int end) {
+        long[] bits = present.get(buffer[stream]);
+        boolean moved = false;
+        while (end - (windowStart[stream] + bufferSize) > 0) {
+            int next = nextSeq[stream];
+            int target = start - next > 0 ? start : next;
+            if (pending[stream] > 0) {
+                int waiting = firstPending(bits, next, windowStart[stream] + bufferSize);
+                if (target == next || waiting - target < 0) target = waiting;
+            }
+            if (target == next) break;
+            gaps++;
+            skippedBytes += target - next;
+            nextSeq[stream] = target;
+            windowStart[stream] = target;
+            moved = true;
+            if (target == start) break;
+            deliverContiguous(stream, bits);
+        }
+        return moved;
+    }
+
+    /** Sequence number of the first out-of-order byte in [from, limit), or limit. */
+    private int firstPending(long[] bits, int from, int limit) {
+        for (int s = from; limit - s > 0; ) {
+            int pos = s & mask;
+            long word = bits[pos >>> 6] >>> (pos & 63);
+            if (word != 0) {
+                int found = s + Long.numberOfTrailingZeros(word);
+                return limit - found > 0 ? found : limit;
+            }
+            s += 64 - (pos & 63);
+        }
+        return limit;
+    }
+
+    private boolean allocate(int stream) {
+        int index;
+        if (freeCount > 0) {
+            index = freeBuffers[--freeCount];
+        } else if (budget.tryReserve(bufferSize + bufferSize / 8L)) {
+            index = data.size();
+            data.add(new byte[bufferSize]);
+            present.add(new long[bufferSize >>> 6]);
+            freeBuffers = Arrays.copyOf(freeBuffers, data.size());
+        } else {
+            int victim = pickVictim(stream);
+            if (victim == NONE) return false;
+            evictions++;
+            release(victim);
+            synced[victim] = false;
+            index = freeBuffers[--freeCount];
+        }
+        buffer[stream] = index;
+        return true;
+    }
+
+    /** Among the least recently used streams, the one holding the most bytes. */
+    private int pickVictim(int requester) {
+        int victim = NONE;
+        int largest = -1;
+        int examined = 0;
+        for (int s = lruTail; s != NONE && examined < EVICTION_CANDIDATES; s = lruPrev[s]) {
+            if (s == requester) continue;
+            examined++;
+            int held = nextSeq[s] - windowStart[s] + pending[s];
+            if (held > largest) {
+                largest = held;
+                victim = s;
+            }
+        }
+        return victim;
+    }
+
+    private void release(int stream) {
+        int index = buffer[stream];
+        if (index == NONE) return;
+        Arrays.fill(present.get(index), 0L);
+        freeBuffers[freeCount++] = index;
+        buffer[stream] = NONE;
+        pending[stream] = 0;
+        unlink(stream);
+    }
+
+    @Override
+    public void flowClosed(int id) {
+        for (int stream = 2 * id; stream <= 2 * id + 1 && stream < buffer.length; stream++) {
+            release(stream);
+            synced[stream] = false;
+            lastAlert[stream] = null;
+        }
+    }
+
+    private void touch(int stream) {
+        if (lruHead == stream) return;
+        unlink(stream);
+        lruPrev[stream] = NONE;
+        lruNext[stream] = lruHead;
+        if (lruHead != NONE) lruPrev[lruHead] = stream;
+        lruHead = stream;
+        if (lruTail == NONE) lruTail = stream;
+    }
+
+    private void unlink(int stream) {
+        int before = lruPrev[stream];
+        int after = lruNext[stream];
+        if (before == NONE && after == NONE && lruHead != stream) return; // not linked
+        if (before != NONE) lruNext[before] = after; else lruHead = after;
+        if (after != NONE) lruPrev[after] = before; else lruTail = before;
+        lruPrev[stream] = NONE;
+        lruNext[stream] = NONE;
+    }
+
+    private void ensureStreams(int stream) {
+        if (stream < buffer.length) return;
+        int size = Math.max(Math.max(2 * buffer.length, 2 * flows.getCapacity()), stream + 1);
+        int old = buffer.length;
+        buffer = Arrays.copyOf(buffer, size);
+        Arrays.fill(buffer, old, size, NONE);
+        synced = Arrays.copyOf(synced, size);
+        windowStart = Arrays.copyOf(windowStart, size);
+        nextSeq = Arrays.copyOf(nextSeq, size);
+        pending = Arrays.copyOf(pending, size);
+        lruPrev = Arrays.copyOf(lruPrev, size);
+        lruNext = Arrays.copyOf(lruNext, size);
+        Arrays.fill(lruPrev, old, size, NONE);
+        Arrays.fill(lruNext, old, size, NONE);
+        lastAlert = Arrays.copyOf(lastAlert, size);
+        lastAlertSeq = Arrays.copyOf(lastAlertSeq, size);
+    }
+
+    public Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("segments", segments);
+        stats.put("outOfOrder", outOfOrder);
+        stats.put("retransmits", retransmits);
+        stats.put("conflicts", conflicts);
+        stats.put("truncated", truncated);
+        stats.put("gaps", gaps);
+        stats.put("skippedBytes", skippedBytes);
+        stats.put("evictions", evictions);
+        stats.put("starved", starved);
+        stats.put("buffers", data.size());
+        stats.put("buffersInUse", data.size() - freeCount);
+        stats.put("budgetUsedBytes", budget.getUsedBytes());
+        return stats;
+    }
+}
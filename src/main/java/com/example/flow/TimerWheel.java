@@ -0,0 +1,144 @@
+package com.example.flow;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel over integer handles (0 .. capacity-1). Each bucket is an
+ * intrusive circular list threaded through two int arrays, so scheduling,
+ * cancelling and expiring never allocate.
+ *
+ * The wheel does not keep deadlines itself: when a bucket comes due, the
+ * {@link Expiry} callback is asked for the handle's current deadline and the
+ * handle is either dropped or moved to a later bucket. Owners can therefore
+ * bump a "last seen" timestamp on every packet without touching the wheel, and
+ * handles further away than one turn of the wheel are simply visited once per turn.
+ */
+public final class TimerWheel {
+
+    /** Called for each handle whose bucket comes due. */
+    public interface Expiry {
+        /**
+         * @return the handle's next deadline in nanoseconds; a value at or before
+         *         {@code now} drops the handle from the wheel
+         */
+        long onTimeout(int handle, long now);
+    }
+
+    private final long tickNanos;
+    private final int buckets;
+    private final int mask;
+    // Nodes 0..buckets-1 are the bucket sentinels, handle h is node buckets + h
+    private int[] next;
+    private int[] prev;
+    private long currentTick = Long.MIN_VALUE;
+
+    /**
+     * @param capacity   number of handles
+     * @param buckets    wheel size, rounded up to a power of two
+     * @param tickNanos  time covered by one bucket
+     */
+    public TimerWheel(int capacity, int buckets, long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick must be positive: " + tickNanos);
+        }
+        this.buckets = Integer.highestOneBit(Math.max(2, buckets - 1)) << 1;
+        this.mask = this.buckets - 1;
+        this.tickNanos = tickNanos;
+        this.next = new int[0];
+        this.prev = new int[0];
+        grow(capacity);
+        for (int b = 0; b < this.buckets; b++) {
+            next[b] = b;
+            prev[b] = b;
+        }
+    }
+
+    /** Makes room for handles up to {@code capacity - 1}; new handles start unscheduled. */
+    public void grow(int capacity) {
+        int oldNodes = next.length;
+        int nodes = buckets + capacity;
+        if (nodes <= oldNodes) return;
+        next = Arrays.copyOf(next, nodes);
+        prev = Arrays.copyOf(prev, nodes);
+        for (int n = Math.max(oldNodes, buckets); n < nodes; n++) {
+            next[n] = n;
+            prev[n] = n;
+        }
+    }
+
+    /** Schedules {@code handle} for {@code deadlineNanos}, moving it if it was already scheduled. */
+    public void schedule(int handle, long deadlineNanos) {
+        int node = buckets + handle;
+        unlink(node);
+        long tick = Math.floorDiv(deadlineNanos, tickNanos);
+        if (currentTick != Long.MIN_VALUE && tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+        int head = (int) (tick & mask);
+        int last = prev[head];
+        next[last] = node;
+        prev[node] = last;
+        next[node] = head;
+        prev[head] = node;
+    }
+
+    public void cancel(int handle) {
+        unlink(buckets + handle);
+    }
+
+    public boolean isScheduled(int handle) {
+        int node = buckets + handle;
+        return next[node] != node;
+    }
+
+    /**
+     * Runs every bucket between the last call and {@code nowNanos}. After a gap
+     * longer than a full turn each bucket is visited once.
+     *
+     * @return number of handles dropped
+     */
+    public int advance(long nowNanos, Expiry expiry) {
+        long now = Math.floorDiv(nowNanos, tickNanos);
+        if (currentTick == Long.MIN_VALUE) {
+            currentTick = now;
+            return 0;
+        }
+        if (now <= currentTick) return 0;
+        long from = Math.max(currentTick + 1, now - mask);
+        currentTick = now;
+        int dropped = 0;
+        for (long tick = from; tick <= now; tick++) {
+            int head = (int) (tick & mask);
+            // Detach the bucket so handles rescheduled into it wait for the next turn
+            int node = next[head];
+            if (node == head) continue;
+            prev[node] = -1;
+            next[prev[head]] = -1;
+            next[head] = head;
+            prev[head] = head;
+            while (node >= 0) {
+                int following = next[node];
+                next[node] = node;
+                prev[node] = node;
+                long deadline = expiry.onTimeout(node - buckets, nowNanos);
+                if (deadline > nowNanos) {
+                    schedule(node - buckets, deadline);
+                } else {
+                    dropped++;
+                }
+                node = following;
+            }
+        }
+        return dropped;
+    }
+
+    private void unlink(int node) {
+        int after = next[node];
+        if (after == node) return;
+        int before = prev[node];
+        next[before] = after;
+        prev[after] = before;
+        next[node] = node;
+        prev[node] = node;
+    }
+}
@@ -1,7 +1,9 @@
 package com.example.gui;
 
 import com.example.gui.components.*;
+import com.example.util.PacketDecoder;
 import com.example.util.PacketReader;
+import com.example.util.PacketRecord;
 import com.example.util.PacketReaderFactory;
 import com.example.detection.RuleEngine;
 import com.example.detection.Alert;
@@ -14,6 +16,10 @@ import com.example.rl.Action;
 import com.example.util.Rule;
 import com.example.util.EmailSender;
 import com.example.util.EmailConfig;
+import com.example.concurrent.PoolManager;
+import com.example.flow.FlowTable;
+import com.example.flow.FlowVerdictCache;
+import com.example.flow.IpDefragmenter;
 import org.pcap4j.core.PcapNetworkInterface;
 import org.pcap4j.core.Pcaps;
 import org.pcap4j.packet.Packet;
@@ -46,6 +52,10 @@ public class Gui extends JFrame {
     private RuleEngine ruleEngine;
     private RLAgent rlAgent;
     private Environment env;
+    private final PacketRecord packetRecord = new PacketRecord();
+    private final FlowTable flowTable = new FlowTable();
+    private final IpDefragmenter defragmenter = IpDefragmenter.fromSystemProperties();
+    private final FlowVerdictCache<Action> verdictCache = new FlowVerdictCache<>();
     private AtomicBoolean isCapturing = new AtomicBoolean(false);
     private AtomicInteger allowedCount = new AtomicInteger(0);
     private AtomicInteger blockedCount = new AtomicInteger(0);
@@ -408,6 +418,7 @@ public class Gui extends JFrame {
 
     private void initializeSystems() {
         ruleEngine = new RuleEngine();
+        ruleEngine.setFlowTable(flowTable);
         rlAgent = new RLAgent();
         env = new Environment();
 
@@ -452,6 +463,13 @@ public class Gui extends JFrame {
         if (reader != null) {
             reader.close();
         }
+        LOGGER.info("Flow table: " + flowTable.getStatistics() + ", verdict cache: " + verdictCache.getStatistics());
+        if (defragmenter != null) {
+            LOGGER.info("IP defragmenter: " + defragmenter.getStatistics());
+        }
+        if (env != null) {
+            LOGGER.info("Anomaly sources: " + env.getAnomalyDetector().getStatistics());
+        }
         
         // Re-enable interface selection and related controls
         controlPanel.getInterfaceComboBox().setEnabled(true);
@@ -486,7 +504,16 @@ public class Gui extends JFrame {
 
     private void processPacket(Packet packet) {
         try {
-            State state = env.extractState(packet);
+            // Decode headers and payload once for the detectors; fragments wait for their datagram
+            boolean decoded = PacketDecoder.decode(packet, packetRecord);
+            if (decoded && defragmenter != null && !defragmenter.accept(packetRecord)) {
+                return;
+            }
+            if (decoded) {
+                flowTable.track(packetRecord);
+            }
+
+            State state = decoded ? env.extractState(packetRecord) : env.extractState(packet);
             if (state == null) {
                 return; // Skip invalid packets
             }
@@ -505,7 +532,7 @@ public class Gui extends JFrame {
             trafficStatisticsPanel.updateStatistics(packetData);
 
             // Check rules
-            boolean ruleMatch = ruleEngine.matches(packetData);
+            boolean ruleMatch = decoded ? ruleEngine.matches(packetRecord, verdictCache) : ruleEngine.matches(packetData);
             if (ruleMatch) {
                 Alert alert = ruleEngine.getLastAlert();
                 logPanel.displayAlert(alert);
@@ -514,7 +541,9 @@ public class Gui extends JFrame {
             }
 
             // Check for anomalies
-            Alert anomalyAlert = env.getAnomalyDetector().detectAnomaly(packetData);
+            env.getAnomalyDetector().advanceClock(decoded ? packetRecord.getTimestampNanos() : 0);
+            Alert anomalyAlert = decoded ? env.getAnomalyDetector().detectAnomaly(packetRecord)
+                                         : env.getAnomalyDetector().detectAnomaly(packetData);
             if (anomalyAlert != null) {
                 logPanel.displayAlert(anomalyAlert);
                 processAlert(anomalyAlert);
@@ -523,7 +552,14 @@ public class Gui extends JFrame {
 
             // RL decision if enabled
             if (controlPanel.getRlEnabledCheckbox().isSelected()) {
-                Action rlAction = rlAgent.getAction(state);
+                // Same flow direction, same headers: reuse the decision while it is fresh
+                Action rlAction = decoded ? verdictCache.lookupAction(packetRecord) : null;
+                if (rlAction == null) {
+                    rlAction = rlAgent.getAction(state);
+                    if (decoded) {
+                        verdictCache.storeAction(packetRecord, rlAction);
+                    }
+                }
                 boolean isAllowed = rlAction.isAllowed();
 
                 if (isAllowed) {
@@ -669,6 +705,7 @@ public class Gui extends JFrame {
 
     public void setRuleEngine(RuleEngine ruleEngine) {
         this.ruleEngine = ruleEngine;
+        ruleEngine.setFlowTable(flowTable);
     }
 
     public PacketDisplayPanel getPacketDisplayPanel() {
@@ -705,7 +742,7 @@ public class Gui extends JFrame {
             }
 
             // Send email asynchronously
-            new Thread(() -> {
+            PoolManager.ioPool().execute(() -> {
                 try {
                     LOGGER.info("Attempting to send alert email");
                     emailSender.sendAlertEmail(
@@ -716,7 +753,7 @@ public class Gui extends JFrame {
                 } catch (Exception e) {
                     LOGGER.log(Level.SEVERE, "Failed to send alert email", e);
                 }
-            }).start();
+            });
         } else {
             if (!emailAlertsEnabled) {
                 LOGGER.info("Email alerts are disabled");
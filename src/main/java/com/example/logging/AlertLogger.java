@@ -1,5 +1,6 @@
 package com.example.logging;
 
+import com.example.concurrent.PoolManager;
 import com.example.detection.Alert;
 import com.example.detection.AlertType;
 import com.example.detection.Severity;
@@ -9,7 +10,6 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.nio.file.*;
@@ -31,7 +31,8 @@ public class AlertLogger {
     public AlertLogger() throws IOException {
         createLogDirectory();
         this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        this.executor = Executors.newSingleThreadExecutor();
+        // Writes stay in order on one thread; a virtual one, since it mostly waits on the disk
+        this.executor = PoolManager.newSerialExecutor("alert-log");
         this.currentLogSize = new AtomicLong(0);
         initializeLogFile();
     }
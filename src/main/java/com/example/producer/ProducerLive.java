@@ -1,46 +1,59 @@
 package com.example.producer;
 
+import com.example.concurrent.OverloadPolicy;
+import com.example.concurrent.PacketSink;
+import com.example.flow.IpDefragmenter;
 import com.example.util.LivePacketReader;
-import com.example.util.PacketParser;
+import com.example.util.PacketRecord;
 import com.example.designpatterns.StrategyPattern.ProducerStrategy;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.Map;
 
 public class ProducerLive implements ProducerStrategy {
     private final LivePacketReader packetReader;
-    private final BlockingQueue<Map<String, String>> packetQueue;
+    private final OverloadPolicy overloadPolicy;
+    // Réassemblage IP avant le partage par flux : -Dids.defrag=false pour le désactiver
+    private final IpDefragmenter defragmenter = IpDefragmenter.fromSystemProperties();
     private volatile boolean running;
 
     public ProducerLive(String networkInterface) throws Exception {
+        this(networkInterface, OverloadPolicy.DROP_NEWEST);
+    }
+
+    public ProducerLive(String networkInterface, OverloadPolicy overloadPolicy) throws Exception {
         this.packetReader = new LivePacketReader(networkInterface);
-        this.packetQueue = new LinkedBlockingQueue<>(1000); // Buffer de 1000 paquets
+        this.overloadPolicy = overloadPolicy;
         this.running = true;
     }
 
     @Override
-    public void start(BlockingQueue<String> queue) {
+    public void start(PacketSink sink) {
         try {
             while (running) {
-                var packet = packetReader.getNextPacket();
-                if (packet != null) {
-                    // Convertir le paquet en Map et l'ajouter à la queue
-                    Map<String, String> packetData = PacketParser.parsePacket(packet.toString());
-                    if (packetData != null) {
-                        queue.put(packetData.toString());
-                    }
+                PacketRecord record = sink.claim();
+                if (record == null) break;
+                // Décoder les en-têtes depuis les octets de la trame, sans objets pcap4j
+                if (packetReader.nextRecord(record)) {
+                    // Un fragment est gardé jusqu'à ce que son datagramme soit complet
+                    if (defragmenter != null && !defragmenter.accept(record)) continue;
+                    // Si les consommateurs sont en retard, la politique décide : attendre, jeter ou échantillonner
+                    sink.offer(overloadPolicy);
+                } else {
+                    // Délai de capture écoulé : publier le lot en attente
+                    sink.flush();
                 }
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /** The IP defragmenter, or null when defragmentation is disabled. */
+    public IpDefragmenter getDefragmenter() {
+        return defragmenter;
+    }
+
     @Override
     public void stop() {
         running = false;
         packetReader.close();
     }
-} 
\ No newline at end of file
+}
@@ -1,26 +1,40 @@
 package com.example.producer;
+import com.example.concurrent.PacketSink;
 import com.example.designpatterns.StrategyPattern.ProducerStrategy;
-import java.util.concurrent.*;
+import com.example.flow.IpDefragmenter;
+import com.example.util.PacketReader;
+import com.example.util.PacketReaderFactory;
+import com.example.util.PacketRecord;
 
 public class ProducerPcap implements ProducerStrategy {
-    private OfflinePacketReader packetReader;
+    private PacketReader packetReader;
+    // IP reassembly ahead of the flow sharding; -Dids.defrag=false turns it off
+    private final IpDefragmenter defragmenter = IpDefragmenter.fromSystemProperties();
     private volatile boolean producing = true;
 
     public ProducerPcap(String pcapFile) throws Exception {
-        this.packetReader = new OfflinePacketReader(pcapFile);
+        this.packetReader = PacketReaderFactory.createPacketReader("mmap", pcapFile);
     }
 
     @Override
-    public void start(BlockingQueue<String> queue) {
-        try {
-            while (producing) {
-                var packet = packetReader.getNextPacket();
-                if (packet == null) break;
-                queue.put(packet.toString());
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+    public void start(PacketSink sink) {
+        while (producing) {
+            PacketRecord record = sink.claim();
+            if (record == null) break;
+            // Decoded in place from the mapped file; the payload stays a view into it
+            if (!packetReader.nextRecord(record)) break;
+            // A fragment is kept until its datagram is complete; the record is reused meanwhile
+            if (defragmenter != null && !defragmenter.accept(record)) continue;
+            // Offline replay waits for room rather than dropping packets
+            if (!sink.publish()) break;
         }
+        // Publish the last partial batch
+        sink.flush();
+    }
+
+    /** The IP defragmenter, or null when defragmentation is disabled. */
+    public IpDefragmenter getDefragmenter() {
+        return defragmenter;
     }
 
     @Override
@@ -5,6 +5,7 @@ import org.pcap4j.packet.Packet;
 import org.pcap4j.packet.TcpPacket;
 import org.pcap4j.packet.UdpPacket;
 import com.example.detection.AnomalyDetector;
+import com.example.util.PacketRecord;
 
 public class Environment {
     private final AnomalyDetector anomalyDetector;
@@ -33,6 +34,21 @@ public class Environment {
         return new State(protocol, srcPort, srcIP, destPort, destIP);
     }
 
+    /**
+     * Same state as {@link #extractState(Packet)} from a decoded record, which may
+     * hold a reassembled datagram whose ports pcap4j never saw.
+     */
+    public State extractState(PacketRecord packet) {
+        int protocol = packet.getProtocol();
+        String name = protocol == PacketRecord.PROTO_TCP ? "TCP" : (protocol == PacketRecord.PROTO_UDP ? "UDP" : "UNKNOWN");
+        String srcPort = String.valueOf(Math.max(0, packet.getSrcPort()));
+        String destPort = String.valueOf(Math.max(0, packet.getDstPort()));
+        String srcIP = packet.getSrcIp() != PacketRecord.ABSENT ? PacketRecord.formatIpv4((int) packet.getSrcIp()) : "0.0.0.0";
+        String destIP = packet.getDstIp() != PacketRecord.ABSENT ? PacketRecord.formatIpv4((int) packet.getDstIp()) : "0.0.0.0";
+
+        return new State(name, srcPort, srcIP, destPort, destIP);
+    }
+
     public boolean isMalicious(Packet packet) {
         int dstPort = extractDstPort(packet);
         String payload = packet.toString().toLowerCase();
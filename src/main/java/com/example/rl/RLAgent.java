@@ -211,6 +211,15 @@ public class RLAgent {
         return Math.min(1.0, confidence);  // Ensure confidence doesn't exceed 1.0
     }
     
+    /**
+     * Counts a decision reused from a verdict cache instead of returned by
+     * {@link #getAction(State)}, so the allowed/blocked totals still cover every packet.
+     */
+    public void recordDecision(Action action) {
+        lastAction = action;
+        updateCounter(action.isAllowed());
+    }
+
     private void updateCounter(boolean allowed) {
         if (allowed) allowedCount++;
         else blockedCount++;
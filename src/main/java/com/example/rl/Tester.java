@@ -33,7 +33,7 @@ public class Tester {
             }
 
             // Initialize components
-            PacketReader reader = PacketReaderFactory.createPacketReader("offline", "test.pcapng");
+            PacketReader reader = PacketReaderFactory.createPacketReader("mmap", "test.pcapng");
             Environment env = new Environment();
             RuleEngine ruleEngine = new RuleEngine();
 
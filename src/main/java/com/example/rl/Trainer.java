@@ -42,7 +42,7 @@ public class Trainer {
         FileWriter fw = null;
 
         try {
-            PacketReader reader = PacketReaderFactory.createPacketReader("offline", "train.pcapng");
+            PacketReader reader = PacketReaderFactory.createPacketReader("mmap", "train.pcapng");
             Environment env = new Environment();
             RLAgent agent = new RLAgent();
             RuleEngine ruleEngine = new RuleEngine();
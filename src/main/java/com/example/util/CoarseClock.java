@@ -0,0 +1,38 @@
+package com.example.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Millisecond clock that detectors read instead of calling
+ * {@link System#currentTimeMillis()} per packet. The owner advances it once per
+ * batch, from the capture timestamps when there are any (so a pcap replay sees
+ * its own time) or from the wall clock otherwise. It never goes backwards, even
+ * when several owners advance it concurrently.
+ */
+public final class CoarseClock {
+    private final AtomicLong millis = new AtomicLong();
+
+    /** Current time in milliseconds since the epoch, as of the last advance. */
+    public long millis() {
+        return millis.get();
+    }
+
+    /** True until the clock has been advanced once. */
+    public boolean isUnset() {
+        return millis.get() == 0;
+    }
+
+    /**
+     * Moves the clock to a capture timestamp, or to the wall clock when
+     * {@code timestampNanos} is not set. Earlier times are ignored.
+     */
+    public void advance(long timestampNanos) {
+        long now = timestampNanos > 0 ? timestampNanos / 1_000_000L : System.currentTimeMillis();
+        millis.accumulateAndGet(now, Math::max);
+    }
+
+    /** Moves the clock to the wall clock. */
+    public void tick() {
+        advance(0);
+    }
+}
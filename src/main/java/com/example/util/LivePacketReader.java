@@ -2,6 +2,7 @@ package com.example.util;
 
 import org.pcap4j.core.*;
 import org.pcap4j.packet.Packet;
+import java.sql.Timestamp;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -35,6 +36,30 @@ public class LivePacketReader implements PacketReader {
         }
     }
 
+    @Override
+    public byte[] getNextRawFrame() {
+        try {
+            return handle.getNextRawPacket();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error reading packet", e);
+            return null;
+        }
+    }
+
+    @Override
+    public int getDataLinkType() {
+        return handle.getDlt().value();
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        Timestamp ts = handle.getTimestamp();
+        if (ts == null) {
+            return System.currentTimeMillis() * 1_000_000L;
+        }
+        return Math.floorDiv(ts.getTime(), 1000L) * 1_000_000_000L + ts.getNanos();
+    }
+
     @Override
     public void close() {
         if (handle != null) {
@@ -0,0 +1,393 @@
+package com.example.util;
+
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.factory.PacketFactories;
+import org.pcap4j.packet.namednumber.DataLinkType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads classic pcap and pcapng files in pure Java by memory-mapping them,
+ * without going through libpcap. The file is mapped in windows of
+ * {@link #DEFAULT_WINDOW_SIZE} bytes, moved forward as the reader advances, so
+ * captures larger than 2 GB are supported.
+ *
+ * {@link #nextRecord(PacketRecord)} decodes frames in place: the record's payload
+ * is a view into the mapped window and nothing is copied. {@link #getNextRawFrame()}
+ * and {@link #getNextPacket()} copy the frame, as their return types require.
+ *
+ * pcapng files may mix link types across interfaces; {@link #getDataLinkType()}
+ * and {@link #getTimestampNanos()} describe the frame last returned.
+ */
+public class MappedPacketReader implements PacketReader {
+    private static final Logger LOGGER = Logger.getLogger(MappedPacketReader.class.getName());
+
+    public static final long DEFAULT_WINDOW_SIZE = 256L << 20;
+
+    private static final int PCAP_MAGIC_MICROS = 0xA1B2C3D4;
+    private static final int PCAP_MAGIC_NANOS = 0xA1B23C4D;
+    private static final int PCAP_HEADER_LENGTH = 24;
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE = 1;
+    private static final int BLOCK_PACKET_OBSOLETE = 2;
+    private static final int BLOCK_SIMPLE_PACKET = 3;
+    private static final int BLOCK_ENHANCED_PACKET = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int OPTION_TS_RESOLUTION = 9;
+    private static final int OPTION_TS_OFFSET = 14;
+
+    private final String file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private final boolean pcapng;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private ByteOrder order;
+
+    // Classic pcap: one link type and timestamp precision for the whole file
+    private int fileLinkType;
+    private long fractionToNanos;
+
+    // pcapng: interfaces declared in the current section
+    private final List<long[]> interfaces = new ArrayList<>();
+    private static final int IF_LINK_TYPE = 0;
+    private static final int IF_SNAP_LENGTH = 1;
+    private static final int IF_UNITS_PER_SECOND = 2;
+    private static final int IF_OFFSET_SECONDS = 3;
+
+    // Frame last returned
+    private int frameOffset;
+    private int frameLength;
+    private int frameLinkType;
+    private long frameTimestampNanos;
+
+    public MappedPacketReader(String file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedPacketReader(String file, long windowSize) throws IOException {
+        this.file = file;
+        this.windowSize = Math.max(1L << 16, Math.min(windowSize, Integer.MAX_VALUE));
+        this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            if (!map(0, 4)) {
+                throw new IOException("Not a pcap or pcapng file: " + file);
+            }
+            int magic = window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+            if (magic == BLOCK_SECTION_HEADER) {
+                this.pcapng = true;
+                this.frameLinkType = -1;
+                // Read the section and interface headers so the link type is known up front
+                if (!skipToPacketBlock()) {
+                    LOGGER.warning("No packets in " + file);
+                } else if (!interfaces.isEmpty()) {
+                    frameLinkType = (int) interfaces.get(0)[IF_LINK_TYPE];
+                }
+            } else {
+                this.pcapng = false;
+                readPcapHeader(magic);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        LOGGER.info("Mapped capture file: " + file + " (" + fileSize + " bytes, "
+                    + (pcapng ? "pcapng" : "pcap") + ")");
+    }
+
+    @Override
+    public Packet getNextPacket() {
+        byte[] frame = getNextRawFrame();
+        if (frame == null) {
+            return null;
+        }
+        return PacketFactories.getFactory(Packet.class, DataLinkType.class)
+            .newInstance(frame, 0, frame.length, DataLinkType.getInstance(frameLinkType));
+    }
+
+    /**
+     * Returns a copy of the next frame. Use {@link #nextRecord(PacketRecord)} to
+     * decode without copying.
+     */
+    @Override
+    public byte[] getNextRawFrame() {
+        if (!advance()) {
+            return null;
+        }
+        byte[] frame = new byte[frameLength];
+        ByteBuffer slice = window.duplicate();
+        slice.position(frameOffset);
+        slice.get(frame);
+        return frame;
+    }
+
+    /**
+     * Decodes the next IP frame straight from the mapped file. The record's payload
+     * stays valid after the reader moves on, since windows are never unmapped
+     * while referenced.
+     */
+    @Override
+    public boolean nextRecord(PacketRecord record) {
+        while (advance()) {
+            if (RawPacketDecoder.decode(window, frameOffset, frameLength, frameLinkType,
+                                        frameTimestampNanos, record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getDataLinkType() {
+        return frameLinkType;
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        return frameTimestampNanos;
+    }
+
+    @Override
+    public void close() {
+        window = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing capture file " + file, e);
+        }
+    }
+
+    private boolean advance() {
+        if (window == null) {
+            return false;
+        }
+        try {
+            return pcapng ? nextPcapngFrame() : nextPcapFrame();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error reading " + file + " at offset " + position, e);
+            return false;
+        }
+    }
+
+    // ----- classic pcap -----
+
+    private void readPcapHeader(int magic) throws IOException {
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS
+                   || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            throw new IOException("Not a pcap or pcapng file: " + file);
+        }
+        if (!map(0, PCAP_HEADER_LENGTH)) {
+            throw new IOException("Truncated pcap header: " + file);
+        }
+        window.order(order);
+        fractionToNanos = magic == PCAP_MAGIC_NANOS ? 1L : 1000L;
+        // Upper bits of the link type field carry FCS information
+        fileLinkType = window.getInt(20) & 0xFFFF;
+        frameLinkType = fileLinkType;
+        position = PCAP_HEADER_LENGTH;
+    }
+
+    private boolean nextPcapFrame() throws IOException {
+        if (!map(position, PCAP_RECORD_HEADER_LENGTH)) {
+            return false;
+        }
+        int at = (int) (position - windowStart);
+        long seconds = u32(at);
+        long fraction = u32(at + 4);
+        long captured = u32(at + 8);
+        if (!map(position + PCAP_RECORD_HEADER_LENGTH, captured)) {
+            LOGGER.warning("Truncated packet record in " + file + " at offset " + position);
+            return false;
+        }
+        frameOffset = (int) (position + PCAP_RECORD_HEADER_LENGTH - windowStart);
+        frameLength = (int) captured;
+        frameTimestampNanos = seconds * 1_000_000_000L + fraction * fractionToNanos;
+        position += PCAP_RECORD_HEADER_LENGTH + captured;
+        return true;
+    }
+
+    // ----- pcapng -----
+
+    private boolean nextPcapngFrame() throws IOException {
+        while (skipToPacketBlock()) {
+            if (readPacketBlock()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean readPacketBlock() {
+        int at = (int) (position - windowStart);
+        int type = window.getInt(at);
+        long length = u32(at + 4);
+        long[] iface;
+        long timestamp;
+        if (type == BLOCK_SIMPLE_PACKET) {
+            iface = interfaces.isEmpty() ? null : interfaces.get(0);
+            long original = u32(at + 8);
+            long captured = Math.min(original, length - 16);
+            if (iface != null && iface[IF_SNAP_LENGTH] > 0) {
+                captured = Math.min(captured, iface[IF_SNAP_LENGTH]);
+            }
+            frameOffset = at + 12;
+            frameLength = (int) captured;
+            timestamp = -1;
+        } else {
+            int id = type == BLOCK_ENHANCED_PACKET ? window.getInt(at + 8) : window.getShort(at + 8) & 0xFFFF;
+            iface = id >= 0 && id < interfaces.size() ? interfaces.get(id) : null;
+            timestamp = (u32(at + 12) << 32) | u32(at + 16);
+            frameOffset = at + 28;
+            frameLength = (int) Math.min(u32(at + 20), length - 32);
+        }
+        if (iface == null || frameLength < 0) {
+            LOGGER.warning("Skipping packet block without a valid interface in " + file + " at offset " + position);
+            position += length;
+            return false;
+        }
+        frameLinkType = (int) iface[IF_LINK_TYPE];
+        frameTimestampNanos = timestamp < 0 ? 0L : toNanos(timestamp, iface);
+        position += length;
+        return true;
+    }
+
+    /**
+     * Consumes section headers, interface descriptions and any other non-packet
+     * blocks, leaving {@link #position} on the next packet block. The packet
+     * block is mapped in full.
+     */
+    private boolean skipToPacketBlock() throws IOException {
+        while (map(position, 12)) {
+            int at = (int) (position - windowStart);
+            int type = window.getInt(at);
+            if (type == BLOCK_SECTION_HEADER) {
+                int magic = window.order(ByteOrder.BIG_ENDIAN).getInt(at + 8);
+                if (magic == BYTE_ORDER_MAGIC) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else if (Integer.reverseBytes(magic) == BYTE_ORDER_MAGIC) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else {
+                    throw new IOException("Bad pcapng byte-order magic in " + file + " at offset " + position);
+                }
+                window.order(order);
+                interfaces.clear();
+            }
+            long length = u32(at + 4);
+            if (length < 12 || (length & 3) != 0) {
+                throw new IOException("Bad pcapng block length " + length + " in " + file + " at offset " + position);
+            }
+            if (!map(position, length)) {
+                LOGGER.warning("Truncated block in " + file + " at offset " + position);
+                return false;
+            }
+            at = (int) (position - windowStart);
+            if (type == BLOCK_ENHANCED_PACKET || type == BLOCK_PACKET_OBSOLETE) {
+                if (length >= 32) {
+                    return true;
+                }
+            } else if (type == BLOCK_SIMPLE_PACKET) {
+                if (length >= 16) {
+                    return true;
+                }
+            } else if (type == BLOCK_INTERFACE && length >= 20) {
+                readInterface(at, (int) length);
+            }
+            position += length;
+        }
+        return false;
+    }
+
+    private void readInterface(int at, int length) {
+        long[] iface = new long[4];
+        iface[IF_LINK_TYPE] = window.getShort(at + 8) & 0xFFFF;
+        iface[IF_SNAP_LENGTH] = u32(at + 12);
+        iface[IF_UNITS_PER_SECOND] = 1_000_000L;
+        int option = at + 16;
+        int end = at + length - 4;
+        while (option + 4 <= end) {
+            int code = window.getShort(option) & 0xFFFF;
+            int size = window.getShort(option + 2) & 0xFFFF;
+            if (code == 0 || option + 4 + size > end) {
+                break;
+            }
+            if (code == OPTION_TS_RESOLUTION && size >= 1) {
+                int resolution = window.get(option + 4) & 0xFF;
+                int exponent = resolution & 0x7F;
+                if ((resolution & 0x80) != 0) {
+                    iface[IF_UNITS_PER_SECOND] = exponent < 63 ? 1L << exponent : Long.MAX_VALUE;
+                } else {
+                    long units = 1;
+                    for (int i = 0; i < exponent && units <= Long.MAX_VALUE / 10; i++) {
+                        units *= 10;
+                    }
+                    iface[IF_UNITS_PER_SECOND] = units;
+                }
+            } else if (code == OPTION_TS_OFFSET && size >= 8) {
+                iface[IF_OFFSET_SECONDS] = window.getLong(option + 4);
+            }
+            option += 4 + ((size + 3) & ~3);
+        }
+        interfaces.add(iface);
+    }
+
+    private static long toNanos(long timestamp, long[] iface) {
+        long units = iface[IF_UNITS_PER_SECOND];
+        long seconds = Long.divideUnsigned(timestamp, units);
+        long fraction = Long.remainderUnsigned(timestamp, units);
+        long nanos = units <= 1_000_000_000L
+            ? fraction * (1_000_000_000L / units) + fraction * (1_000_000_000L % units) / units
+            : fraction / (units / 1_000_000_000L);
+        return (seconds + iface[IF_OFFSET_SECONDS]) * 1_000_000_000L + nanos;
+    }
+
+    // ----- mapping -----
+
+    /**
+     * Makes {@code [offset, offset + length)} addressable in {@link #window}, mapping
+     * a new window starting at {@code offset} when needed.
+     * @return false if the range runs past the end of the file
+     */
+    private boolean map(long offset, long length) throws IOException {
+        if (offset + length > fileSize) {
+            return false;
+        }
+        if (window != null && offset >= windowStart && offset + length <= windowStart + window.capacity()) {
+            return true;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Block of " + length + " bytes in " + file + " at offset " + offset);
+        }
+        long size = Math.min(Math.max(windowSize, length), fileSize - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        if (order != null) {
+            window.order(order);
+        }
+        windowStart = offset;
+        return true;
+    }
+
+    private long u32(int index) {
+        return window.getInt(index) & 0xFFFFFFFFL;
+    }
+}
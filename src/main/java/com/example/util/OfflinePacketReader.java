@@ -4,6 +4,7 @@ package com.example.util;
 import org.pcap4j.core.PcapHandle;
 import org.pcap4j.core.Pcaps;
 import org.pcap4j.packet.Packet;
+import java.sql.Timestamp;
 
 public class OfflinePacketReader implements PacketReader {
     private PcapHandle handle;
@@ -22,6 +23,30 @@ public class OfflinePacketReader implements PacketReader {
         }
     }
 
+    @Override
+    public byte[] getNextRawFrame() {
+        try {
+            return handle.getNextRawPacket();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public int getDataLinkType() {
+        return handle.getDlt().value();
+    }
+
+    @Override
+    public long getTimestampNanos() {
+        Timestamp ts = handle.getTimestamp();
+        if (ts == null) {
+            return System.currentTimeMillis() * 1_000_000L;
+        }
+        return Math.floorDiv(ts.getTime(), 1000L) * 1_000_000_000L + ts.getNanos();
+    }
+
     @Override
     public void close() {
         if (handle != null) {
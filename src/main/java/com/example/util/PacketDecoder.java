@@ -0,0 +1,122 @@
+package com.example.util;
+
+import java.net.InetAddress;
+import org.pcap4j.packet.IcmpV4CommonPacket;
+import org.pcap4j.packet.IcmpV4EchoPacket;
+import org.pcap4j.packet.IcmpV4EchoReplyPacket;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpPacket;
+import org.pcap4j.packet.UdpPacket;
+
+/**
+ * Fills a {@link PacketRecord} straight from the headers pcap4j has already
+ * decoded, instead of rendering the packet with {@code toString()} and
+ * scraping the text back in {@link PacketParser}. IPv4 fragments are recorded
+ * as such, without transport fields, as {@link RawPacketDecoder} does.
+ */
+public final class PacketDecoder {
+
+    private PacketDecoder() {}
+
+    /**
+     * Decodes {@code packet} into {@code record}, stamped with the current time.
+     * @return false for packets without an IPv4 header; {@code record} is then unspecified
+     */
+    public static boolean decode(Packet packet, PacketRecord record) {
+        return decode(packet, System.currentTimeMillis() * 1_000_000L, record);
+    }
+
+    /**
+     * Decodes {@code packet} into {@code record}, which is cleared first.
+     * @param timestampNanos capture time, in nanoseconds since the epoch
+     * @return false for packets without an IPv4 header; {@code record} is then unspecified
+     */
+    public static boolean decode(Packet packet, long timestampNanos, PacketRecord record) {
+        if (packet == null) {
+            return false;
+        }
+        IpV4Packet ip = packet.get(IpV4Packet.class);
+        if (ip == null) {
+            return false;
+        }
+
+        record.clear();
+        record.setTimestampNanos(timestampNanos);
+        record.setIpVersion(4);
+        IpV4Packet.IpV4Header header = ip.getHeader();
+        record.setSrcIp(toInt(header.getSrcAddr()));
+        record.setDstIp(toInt(header.getDstAddr()));
+        record.setProtocol(header.getProtocol().value() & 0xFF);
+
+        if (header.getMoreFragmentFlag() || header.getFragmentOffset() != 0) {
+            // pcap4j leaves fragments undecoded; keep the raw slice for reassembly
+            record.setFragment(header.getIdentificationAsInt(), header.getFragmentOffset() * 8,
+                               header.getMoreFragmentFlag());
+            if (ip.getPayload() != null) {
+                byte[] data = ip.getPayload().getRawData();
+                record.setPayload(data, 0, data.length);
+            }
+            return true;
+        }
+
+        Packet payload;
+        TcpPacket tcp = ip.get(TcpPacket.class);
+        UdpPacket udp = tcp == null ? ip.get(UdpPacket.class) : null;
+        IcmpV4CommonPacket icmp = tcp == null && udp == null ? ip.get(IcmpV4CommonPacket.class) : null;
+        if (tcp != null) {
+            TcpPacket.TcpHeader tcpHeader = tcp.getHeader();
+            record.setSrcPort(tcpHeader.getSrcPort().valueAsInt());
+            record.setDstPort(tcpHeader.getDstPort().valueAsInt());
+            record.setTcpSeq(tcpHeader.getSequenceNumber());
+            record.setTcpFlags(tcpFlags(tcpHeader));
+            payload = tcp.getPayload();
+        } else if (udp != null) {
+            record.setSrcPort(udp.getHeader().getSrcPort().valueAsInt());
+            record.setDstPort(udp.getHeader().getDstPort().valueAsInt());
+            payload = udp.getPayload();
+        } else if (icmp != null) {
+            record.setIcmpType(icmp.getHeader().getType().value() & 0xFF);
+            record.setIcmpCode(icmp.getHeader().getCode().value() & 0xFF);
+            payload = icmp.getPayload();
+            IcmpV4EchoPacket echo = icmp.get(IcmpV4EchoPacket.class);
+            IcmpV4EchoReplyPacket reply = echo == null ? icmp.get(IcmpV4EchoReplyPacket.class) : null;
+            if (echo != null) {
+                record.setIcmpId(echo.getHeader().getIdentifierAsInt());
+                payload = echo.getPayload();
+            } else if (reply != null) {
+                record.setIcmpId(reply.getHeader().getIdentifierAsInt());
+                payload = reply.getPayload();
+            }
+        } else {
+            payload = ip.getPayload();
+        }
+
+        if (payload != null) {
+            byte[] data = payload.getRawData();
+            record.setPayload(data, 0, data.length);
+        }
+
+        // Same HTTP/HTTPS labelling as the text parser
+        if (tcp != null) {
+            record.deferProtocolLabel();
+        }
+        return true;
+    }
+
+    private static int tcpFlags(TcpPacket.TcpHeader header) {
+        int flags = 0;
+        if (header.getFin()) flags |= PacketRecord.TCP_FIN;
+        if (header.getSyn()) flags |= PacketRecord.TCP_SYN;
+        if (header.getRst()) flags |= PacketRecord.TCP_RST;
+        if (header.getPsh()) flags |= PacketRecord.TCP_PSH;
+        if (header.getAck()) flags |= PacketRecord.TCP_ACK;
+        if (header.getUrg()) flags |= PacketRecord.TCP_URG;
+        return flags;
+    }
+
+    private static int toInt(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.util;
+
+import org.pcap4j.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the text path ({@code Packet.toString()} scraped by PacketParser)
+ * with {@link PacketDecoder} and {@link RawPacketDecoder} on the same capture.
+ * Packets are read into memory first so only decoding is timed. Also counts
+ * packets whose addresses or ports differ between the paths.
+ *
+ * Usage: PacketDecoderBenchmark [pcap file] [iterations]
+ */
+public class PacketDecoderBenchmark {
+
+    private static final int TEXT = 0;
+    private static final int HEADERS = 1;
+    private static final int RAW = 2;
+
+    public static void main(String[] args) throws Exception {
+        String pcapFile = args.length > 0 ? args[0] : "test.pcapng";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<Packet> packets = new ArrayList<>();
+        int linkType;
+        PacketReader reader = PacketReaderFactory.createPacketReader("offline", pcapFile);
+        try {
+            linkType = reader.getDataLinkType();
+            Packet packet;
+            while ((packet = reader.getNextPacket()) != null) {
+                packets.add(packet);
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.printf("Loaded %d packets from %s%n", packets.size(), pcapFile);
+        if (packets.isEmpty()) {
+            return;
+        }
+
+        PacketRecord text = new PacketRecord();
+        PacketRecord direct = new PacketRecord();
+        PacketRecord raw = new PacketRecord();
+        int textDecoded = 0;
+        int directDecoded = 0;
+        int rawDecoded = 0;
+        int mismatches = 0;
+        int rawMismatches = 0;
+        for (Packet packet : packets) {
+            boolean fromText = PacketParser.parsePacket(packet.toString(), text);
+            boolean fromHeaders = PacketDecoder.decode(packet, direct);
+            byte[] frame = packet.getRawData();
+            boolean fromBytes = RawPacketDecoder.decode(frame, 0, frame.length, linkType, 0L, raw);
+            if (fromText) textDecoded++;
+            if (fromHeaders) directDecoded++;
+            if (fromBytes) rawDecoded++;
+            if (fromText && fromHeaders && !sameHeader(text, direct)) {
+                mismatches++;
+            }
+            if (fromHeaders && fromBytes && !sameHeader(direct, raw)) {
+                rawMismatches++;
+            }
+        }
+        System.out.printf("Decoded: text %d, direct %d, raw %d, header mismatches: %d (text/direct), %d (direct/raw)%n",
+            textDecoded, directDecoded, rawDecoded, mismatches, rawMismatches);
+
+        double before = time(packets, linkType, iterations, TEXT);
+        double headers = time(packets, linkType, iterations, HEADERS);
+        double bytes = time(packets, linkType, iterations, RAW);
+        System.out.printf("%-24s %12.1f packets/s%n", "toString + PacketParser", before);
+        System.out.printf("%-24s %12.1f packets/s  %6.2fx%n", "PacketDecoder", headers, headers / before);
+        System.out.printf("%-24s %12.1f packets/s  %6.2fx%n", "RawPacketDecoder", bytes, bytes / before);
+    }
+
+    private static boolean sameHeader(PacketRecord a, PacketRecord b) {
+        return a.getSrcIp() == b.getSrcIp() && a.getDstIp() == b.getDstIp()
+            && a.getSrcPort() == b.getSrcPort() && a.getDstPort() == b.getDstPort();
+    }
+
+    private static double time(List<Packet> packets, int linkType, int iterations, int path) {
+        PacketRecord record = new PacketRecord();
+        // Warm-up pass so every path runs JIT-compiled code
+        decodeAll(packets, linkType, record, path);
+        long start = System.nanoTime();
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += decodeAll(packets, linkType, record, path);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink < 0) {
+            System.out.println(sink);
+        }
+        return (double) packets.size() * iterations / (elapsed / 1e9);
+    }
+
+    private static long decodeAll(List<Packet> packets, int linkType, PacketRecord record, int path) {
+        long decoded = 0;
+        for (Packet packet : packets) {
+            boolean ok;
+            if (path == TEXT) {
+                ok = PacketParser.parsePacket(packet.toString(), record);
+            } else if (path == HEADERS) {
+                ok = PacketDecoder.decode(packet, record);
+            } else {
+                // getRawData() is cached by pcap4j, so this times decoding only
+                byte[] frame = packet.getRawData();
+                ok = RawPacketDecoder.decode(frame, 0, frame.length, linkType, 0L, record);
+            }
+            if (ok) {
+                decoded += record.getPayloadLength() + 1;
+            }
+        }
+        return decoded;
+    }
+}
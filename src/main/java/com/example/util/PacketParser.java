@@ -109,17 +109,8 @@ public class PacketParser {
         String data = extractedData[7];
 
         // Détection HTTP/HTTPS
-        if ("TCP".equals(baseProtocol)) {
-            if (isHttpTraffic(srcPort, destPort, data)) {
-                packetData.put("protocol", "HTTP");
-            } else if (isHttpsTraffic(srcPort, destPort, data)) {
-                packetData.put("protocol", "HTTPS");
-            } else {
-                packetData.put("protocol", "TCP");
-            }
-        } else {
-            packetData.put("protocol", baseProtocol);
-        }
+        packetData.put("protocol", classifyProtocol(baseProtocol, PacketRecord.parsePort(srcPort),
+                                                    PacketRecord.parsePort(destPort), data));
 
         // Autres champs
         packetData.put("srcIP", extractedData[1]);
@@ -143,26 +134,117 @@ public class PacketParser {
         return packetData;
     }
 
+    /**
+     * Parses a packet string into {@code record}, which is cleared first. Fills the
+     * same fields as {@link #parsePacket(String)} without building a map.
+     * @param packet Raw packet string
+     * @param record Record to fill, typically reused across packets
+     * @return true if the packet was valid and {@code record} was filled
+     */
+    public static boolean parsePacket(String packet, PacketRecord record) {
+        if (packet == null) {
+            return false;
+        }
+
+        String[] extractedData = extractPacketFields(packet);
+        if (extractedData == null) {
+            return false;
+        }
+
+        String baseProtocol = extractedData[0];
+        String srcPort = extractedData[2];
+        String destPort = extractedData[4];
+        String data = extractedData[7];
+
+        record.clear();
+        record.setTimestampNanos(System.currentTimeMillis() * 1_000_000L);
+        record.setProtocol(PacketRecord.protocolNumber(baseProtocol));
+        record.setProtocolName(classifyProtocol(baseProtocol, PacketRecord.parsePort(srcPort),
+                                                PacketRecord.parsePort(destPort), data));
+        record.setSrcIp((int) PacketRecord.parseIpv4(extractedData[1]));
+        record.setDstIp((int) PacketRecord.parseIpv4(extractedData[3]));
+
+        // Same default as the map form: a missing port reads as 0, except in an
+        // IP fragment, where there is no transport header to take ports from
+        boolean fragment = isIpFragment(packet);
+        int port = PacketRecord.parsePort(srcPort != null ? srcPort : fragment ? null : "0");
+        if (port >= 0) record.setSrcPort(port);
+        port = PacketRecord.parsePort(destPort != null ? destPort : fragment ? null : "0");
+        if (port >= 0) record.setDstPort(port);
+
+        if ("TCP".equals(baseProtocol)) {
+            String flags = extractTcpFlags(packet);
+            if (flags != null) {
+                record.setTcpFlags(PacketRecord.parseTcpFlags(flags));
+            }
+        }
+
+        record.setPayloadText(data);
+        return true;
+    }
+
+    /**
+     * Refines TCP to HTTP or HTTPS based on ports and payload signatures.
+     * Shared with {@link PacketDecoder} so both paths label packets alike.
+     */
+    static String classifyProtocol(String baseProtocol, int srcPort, int destPort, String data) {
+        if ("TCP".equals(baseProtocol)) {
+            if (isHttpTraffic(srcPort, destPort, data)) {
+                return "HTTP";
+            } else if (isHttpsTraffic(srcPort, destPort, data)) {
+                return "HTTPS";
+            }
+            return "TCP";
+        }
+        return baseProtocol;
+    }
+
+    /**
+     * Reads the flag lines of the TCP header dump ("  SYN: true"). Matching the bare
+     * flag names would also hit "SYN" or "ACK" anywhere else in the text, including
+     * the "SYN: false" lines themselves.
+     */
     private static String extractTcpFlags(String packet) {
         StringBuilder flags = new StringBuilder();
         
-        if (packet.contains("SYN")) flags.append("S");
-        if (packet.contains("ACK")) flags.append("A");
-        if (packet.contains("FIN")) flags.append("F");
-        if (packet.contains("RST")) flags.append("R");
-        if (packet.contains("PSH")) flags.append("P");
-        if (packet.contains("URG")) flags.append("U");
+        if (isFlagSet(packet, "SYN")) flags.append("S");
+        if (isFlagSet(packet, "ACK")) flags.append("A");
+        if (isFlagSet(packet, "FIN")) flags.append("F");
+        if (isFlagSet(packet, "RST")) flags.append("R");
+        if (isFlagSet(packet, "PSH")) flags.append("P");
+        if (isFlagSet(packet, "URG")) flags.append("U");
         
         return flags.length() > 0 ? flags.toString() : null;
     }
 
+    private static boolean isFlagSet(String packet, String flag) {
+        return packet.contains("\n  " + flag + ": true");
+    }
+
+    /**
+     * True if the IPv4 header printed by pcap4j has the More Fragments flag or a
+     * non-zero fragment offset.
+     */
+    static boolean isIpFragment(String packet) {
+        int at = packet.indexOf("Fragment offset: ");
+        if (at >= 0 && !packet.startsWith("0 ", at + "Fragment offset: ".length())) {
+            return true;
+        }
+        at = packet.indexOf("More Fragment) = (");
+        if (at < 0) return false;
+        int close = packet.indexOf(')', at + "More Fragment) = (".length());
+        if (close < 0) return false;
+        String[] flags = packet.substring(at + "More Fragment) = (".length(), close).split(",");
+        return flags.length == 3 && flags[2].trim().equals("true");
+    }
+
     /**
      * Validates if the packet contains HTTP traffic
      */
-    private static boolean isHttpTraffic(String srcPort, String destPort, String data) {
+    private static boolean isHttpTraffic(int srcPort, int destPort, String data) {
         // Vérifier les ports HTTP standards
-        if ("80".equals(srcPort) || "80".equals(destPort) || 
-            "8080".equals(srcPort) || "8080".equals(destPort)) {
+        if (srcPort == 80 || destPort == 80 || 
+            srcPort == 8080 || destPort == 8080) {
             return true;
         }
 
@@ -214,10 +296,10 @@ public class PacketParser {
         return false;
     }
 
-    private static boolean isHttpsTraffic(String srcPort, String destPort, String data) {
+    private static boolean isHttpsTraffic(int srcPort, int destPort, String data) {
         // Vérifier les ports HTTPS standards
-        if ("443".equals(srcPort) || "443".equals(destPort) || 
-            "8443".equals(srcPort) || "8443".equals(destPort)) {
+        if (srcPort == 443 || destPort == 443 || 
+            srcPort == 8443 || destPort == 8443) {
             return true;
         }
 
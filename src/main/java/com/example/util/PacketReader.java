@@ -4,5 +4,36 @@ import org.pcap4j.packet.Packet;
 
 public interface PacketReader {
     Packet getNextPacket();
+
+    /**
+     * Returns the next captured frame as raw bytes, link-layer header included,
+     * without building pcap4j's packet objects. Decode it with
+     * {@link RawPacketDecoder} using {@link #getDataLinkType()}.
+     * Returns null on timeout or end of capture.
+     */
+    byte[] getNextRawFrame();
+
+    /** Link-layer header type (DLT_*) of the frames this reader returns. */
+    int getDataLinkType();
+
+    /** Capture time of the frame last returned, in nanoseconds since the epoch. */
+    long getTimestampNanos();
+
+    /**
+     * Decodes the next IP frame into {@code record}, skipping frames that are not IP.
+     * Returns false when no frame is available: end of capture, or a timeout for
+     * live readers.
+     */
+    default boolean nextRecord(PacketRecord record) {
+        byte[] frame;
+        while ((frame = getNextRawFrame()) != null) {
+            if (RawPacketDecoder.decode(frame, 0, frame.length, getDataLinkType(),
+                                        getTimestampNanos(), record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void close();
 }
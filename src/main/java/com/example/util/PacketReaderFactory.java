@@ -17,6 +17,9 @@ public class PacketReaderFactory {
         } else if ("offline".equalsIgnoreCase(mode)) {
             // source is pcapng file
             return new OfflinePacketReader(source);
+        } else if ("mmap".equalsIgnoreCase(mode)) {
+            // source is a pcap or pcapng file, read without libpcap
+            return new MappedPacketReader(source);
         } else {
             throw new IllegalArgumentException("Invalid mode: " + mode);
         }
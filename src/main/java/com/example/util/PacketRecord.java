@@ -0,0 +1,643 @@
+package com.example.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flat, mutable view of one decoded packet. Addresses, ports, flags and ICMP
+ * fields are kept as primitives and the payload is a slice of a caller-owned
+ * buffer, so a reader thread can decode every packet into the same instance
+ * with {@link #clear()} in between instead of allocating a map per packet.
+ *
+ * {@link #fromMap(Map, PacketRecord)} and {@link #toMap()} convert from and to
+ * the {@code Map<String,String>} form used by the older parts of the pipeline.
+ */
+public final class PacketRecord {
+    /** Returned by the port and address getters when the field is not present. */
+    public static final int ABSENT = -1;
+
+    public static final byte PROTO_UNKNOWN = 0;
+    public static final byte PROTO_ICMP = 1;
+    public static final byte PROTO_TCP = 6;
+    public static final byte PROTO_UDP = 17;
+
+    public static final int TCP_FIN = 0x01;
+    public static final int TCP_SYN = 0x02;
+    public static final int TCP_RST = 0x04;
+    public static final int TCP_PSH = 0x08;
+    public static final int TCP_ACK = 0x10;
+    public static final int TCP_URG = 0x20;
+
+    /** Set by a flow tracker: the packet belongs to a tracked flow. */
+    public static final int FLOW_TRACKED = 0x01;
+    /** The flow completed its handshake (or answered, for connectionless protocols). */
+    public static final int FLOW_ESTABLISHED = 0x02;
+    /** Sent by the side that opened the flow. */
+    public static final int FLOW_TO_SERVER = 0x04;
+    /** Sent by the side that answered. */
+    public static final int FLOW_TO_CLIENT = 0x08;
+
+    private static final int HAS_SRC_IP = 0x01;
+    private static final int HAS_DST_IP = 0x02;
+    private static final int HAS_SRC_PORT = 0x04;
+    private static final int HAS_DST_PORT = 0x08;
+    private static final int HAS_ICMP_TYPE = 0x10;
+    private static final int HAS_ICMP_CODE = 0x20;
+    private static final int HAS_ICMP_ID = 0x40;
+    private static final int HAS_TCP_FLAGS = 0x80;
+    private static final int HAS_TCP_SEQ = 0x100;
+    private static final int HAS_FRAGMENT = 0x200;
+
+    private long timestampNanos;
+    private byte ipVersion;
+    private byte protocol;
+    private String protocolName;
+    private boolean labelPending;
+    private int present;
+    private int srcIp;
+    private int dstIp;
+    private short srcPort;
+    private short dstPort;
+    private int tcpFlags;
+    private int tcpSeq;
+    private byte icmpType;
+    private byte icmpCode;
+    private short icmpId;
+    private short ipId;
+    private int fragmentOffset;
+    private boolean moreFragments;
+    private int flowId = ABSENT;
+    private int flowFlags;
+
+    private byte[] payload;
+    private ByteBuffer payloadView;
+    private int payloadOffset;
+    private int payloadLength;
+    private String payloadText;
+
+    /**
+     * Resets every field so the record can be filled with the next packet.
+     * The payload buffer is released, not cleared.
+     */
+    public PacketRecord clear() {
+        timestampNanos = 0;
+        ipVersion = 0;
+        protocol = PROTO_UNKNOWN;
+        protocolName = null;
+        labelPending = false;
+        present = 0;
+        srcIp = 0;
+        dstIp = 0;
+        srcPort = 0;
+        dstPort = 0;
+        tcpFlags = 0;
+        tcpSeq = 0;
+        icmpType = 0;
+        icmpCode = 0;
+        icmpId = 0;
+        ipId = 0;
+        fragmentOffset = 0;
+        moreFragments = false;
+        flowId = ABSENT;
+        flowFlags = 0;
+        payload = null;
+        payloadView = null;
+        payloadOffset = 0;
+        payloadLength = 0;
+        payloadText = null;
+        return this;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public void setTimestampNanos(long timestampNanos) {
+        this.timestampNanos = timestampNanos;
+    }
+
+    /** 4 or 6, or 0 when the decoder did not see an IP header. */
+    public int getIpVersion() {
+        return ipVersion;
+    }
+
+    public void setIpVersion(int ipVersion) {
+        this.ipVersion = (byte) ipVersion;
+    }
+
+    /** IP protocol number (6 for TCP, 17 for UDP, ...). */
+    public int getProtocol() {
+        return protocol & 0xFF;
+    }
+
+    /**
+     * Protocol label used by rules and logs. Defaults to the name of the IP protocol;
+     * decoders may refine it to an application protocol such as "HTTP".
+     */
+    public String getProtocolName() {
+        if (labelPending) {
+            labelPending = false;
+            protocolName = PacketParser.classifyProtocol(getProtocolName(), getSrcPort(), getDstPort(), getPayloadText());
+        }
+        if (protocolName != null) return protocolName;
+        switch (protocol) {
+            case PROTO_TCP: return "TCP";
+            case PROTO_UDP: return "UDP";
+            case PROTO_ICMP: return "ICMP";
+            default: return "UNKNOWN";
+        }
+    }
+
+    public void setProtocol(int protocol) {
+        this.protocol = (byte) protocol;
+    }
+
+    public void setProtocolName(String protocolName) {
+        this.protocolName = protocolName;
+        this.labelPending = false;
+    }
+
+    /**
+     * Asks for the HTTP/HTTPS label to be worked out from ports and payload the
+     * first time {@link #getProtocolName()} is called, so decoders do not have to
+     * materialise the payload text themselves.
+     */
+    public void deferProtocolLabel() {
+        this.labelPending = true;
+    }
+
+    /** Source address as an unsigned 32-bit value, or {@link #ABSENT}. */
+    public long getSrcIp() {
+        return (present & HAS_SRC_IP) != 0 ? srcIp & 0xFFFFFFFFL : ABSENT;
+    }
+
+    public void setSrcIp(int srcIp) {
+        this.srcIp = srcIp;
+        present |= HAS_SRC_IP;
+    }
+
+    /** Destination address as an unsigned 32-bit value, or {@link #ABSENT}. */
+    public long getDstIp() {
+        return (present & HAS_DST_IP) != 0 ? dstIp & 0xFFFFFFFFL : ABSENT;
+    }
+
+    public void setDstIp(int dstIp) {
+        this.dstIp = dstIp;
+        present |= HAS_DST_IP;
+    }
+
+    public int getSrcPort() {
+        return (present & HAS_SRC_PORT) != 0 ? srcPort & 0xFFFF : ABSENT;
+    }
+
+    public void setSrcPort(int srcPort) {
+        this.srcPort = (short) srcPort;
+        present |= HAS_SRC_PORT;
+    }
+
+    public int getDstPort() {
+        return (present & HAS_DST_PORT) != 0 ? dstPort & 0xFFFF : ABSENT;
+    }
+
+    public void setDstPort(int dstPort) {
+        this.dstPort = (short) dstPort;
+        present |= HAS_DST_PORT;
+    }
+
+    /** TCP flag bits ({@link #TCP_SYN}, {@link #TCP_ACK}, ...), 0 when none are set. */
+    public int getTcpFlags() {
+        return tcpFlags;
+    }
+
+    public boolean hasTcpFlags() {
+        return (present & HAS_TCP_FLAGS) != 0;
+    }
+
+    public void setTcpFlags(int tcpFlags) {
+        this.tcpFlags = tcpFlags;
+        present |= HAS_TCP_FLAGS;
+    }
+
+    /** TCP sequence number as an unsigned 32-bit value, or {@link #ABSENT}. */
+    public long getTcpSeq() {
+        return (present & HAS_TCP_SEQ) != 0 ? tcpSeq & 0xFFFFFFFFL : ABSENT;
+    }
+
+    public void setTcpSeq(int tcpSeq) {
+        this.tcpSeq = tcpSeq;
+        present |= HAS_TCP_SEQ;
+    }
+
+    public int getIcmpType() {
+        return (present & HAS_ICMP_TYPE) != 0 ? icmpType & 0xFF : ABSENT;
+    }
+
+    public void setIcmpType(int icmpType) {
+        this.icmpType = (byte) icmpType;
+        present |= HAS_ICMP_TYPE;
+    }
+
+    public int getIcmpCode() {
+        return (present & HAS_ICMP_CODE) != 0 ? icmpCode & 0xFF : ABSENT;
+    }
+
+    public void setIcmpCode(int icmpCode) {
+        this.icmpCode = (byte) icmpCode;
+        present |= HAS_ICMP_CODE;
+    }
+
+    public int getIcmpId() {
+        return (present & HAS_ICMP_ID) != 0 ? icmpId & 0xFFFF : ABSENT;
+    }
+
+    public void setIcmpId(int icmpId) {
+        this.icmpId = (short) icmpId;
+        present |= HAS_ICMP_ID;
+    }
+
+    /**
+     * True for an IPv4 fragment that has not been reassembled: the payload is the
+     * fragment's slice of the IP payload and there are no transport fields.
+     */
+    public boolean isFragment() {
+        return (present & HAS_FRAGMENT) != 0;
+    }
+
+    /** IP identification of a fragment, or {@link #ABSENT}. */
+    public int getIpId() {
+        return (present & HAS_FRAGMENT) != 0 ? ipId & 0xFFFF : ABSENT;
+    }
+
+    /** Offset of a fragment's payload in the original datagram, in bytes. */
+    public int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    public boolean hasMoreFragments() {
+        return moreFragments;
+    }
+
+    /**
+     * Marks the packet as a fragment.
+     * @param offset offset of the payload in the datagram, in bytes (the header field times 8)
+     */
+    public void setFragment(int ipId, int offset, boolean moreFragments) {
+        this.ipId = (short) ipId;
+        this.fragmentOffset = offset;
+        this.moreFragments = moreFragments;
+        present |= HAS_FRAGMENT;
+    }
+
+    /** Drops the fragment fields, once the record holds the reassembled datagram. */
+    public void clearFragment() {
+        ipId = 0;
+        fragmentOffset = 0;
+        moreFragments = false;
+        present &= ~HAS_FRAGMENT;
+    }
+
+    /** Id of the packet's flow in the tracker that saw it, or {@link #ABSENT}. */
+    public int getFlowId() {
+        return flowId;
+    }
+
+    /** {@link #FLOW_TRACKED} and friends, 0 when no tracker has seen the packet. */
+    public int getFlowFlags() {
+        return flowFlags;
+    }
+
+    public void setFlow(int flowId, int flowFlags) {
+        this.flowId = flowId;
+        this.flowFlags = flowFlags;
+    }
+
+    /**
+     * Points the payload at {@code length} bytes of {@code buffer} starting at
+     * {@code offset}. The buffer is not copied and must stay unchanged while the
+     * record is in use.
+     */
+    public void setPayload(byte[] buffer, int offset, int length) {
+        this.payload = buffer;
+        this.payloadView = null;
+        this.payloadOffset = offset;
+        this.payloadLength = buffer == null ? 0 : length;
+        this.payloadText = null;
+    }
+
+    /**
+     * Same as {@link #setPayload(byte[], int, int)} for a buffer without an
+     * accessible array, such as a direct or memory-mapped buffer. Absolute
+     * indexes are used, so the buffer's position and limit are left alone.
+     */
+    public void setPayload(ByteBuffer buffer, int offset, int length) {
+        if (buffer != null && buffer.hasArray()) {
+            setPayload(buffer.array(), buffer.arrayOffset() + offset, length);
+            return;
+        }
+        this.payload = null;
+        this.payloadView = buffer;
+        this.payloadOffset = offset;
+        this.payloadLength = buffer == null ? 0 : length;
+        this.payloadText = null;
+    }
+
+    /**
+     * Sets the payload from text holding one char per byte, as produced by
+     * {@link HexToAscii}. The bytes are only materialised if someone asks for them.
+     */
+    public void setPayloadText(String text) {
+        this.payload = null;
+        this.payloadView = null;
+        this.payloadOffset = 0;
+        this.payloadLength = text == null ? 0 : text.length();
+        this.payloadText = text;
+    }
+
+    public boolean hasPayload() {
+        return payload != null || payloadView != null || payloadText != null;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getPayloadByte(int index) {
+        if (payload != null) return payload[payloadOffset + index] & 0xFF;
+        if (payloadView != null) return payloadView.get(payloadOffset + index) & 0xFF;
+        return payloadText.charAt(index) & 0xFF;
+    }
+
+    /**
+     * Payload bytes starting at {@link #getPayloadOffset()}. A text or direct-buffer
+     * payload is copied into an array the first time this is called.
+     */
+    public byte[] getPayloadBuffer() {
+        if (payload == null && payloadView != null) {
+            byte[] copy = new byte[payloadLength];
+            for (int i = 0; i < payloadLength; i++) {
+                copy[i] = payloadView.get(payloadOffset + i);
+            }
+            payload = copy;
+            payloadView = null;
+            payloadOffset = 0;
+        } else if (payload == null && payloadText != null) {
+            payload = payloadText.getBytes(StandardCharsets.ISO_8859_1);
+            payloadOffset = 0;
+        }
+        return payload;
+    }
+
+    /**
+     * Copies {@code length} payload bytes starting at payload index {@code from}
+     * into {@code target}, whatever form the payload is held in.
+     */
+    public void copyPayload(int from, byte[] target, int targetOffset, int length) {
+        if (payload != null) {
+            System.arraycopy(payload, payloadOffset + from, target, targetOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                target[targetOffset + i] = (byte) getPayloadByte(from + i);
+            }
+        }
+    }
+
+    /**
+     * Copies every field of {@code other} except the payload, which is left empty.
+     * @return this record, for chaining
+     */
+    public PacketRecord copyHeaders(PacketRecord other) {
+        clear();
+        timestampNanos = other.timestampNanos;
+        ipVersion = other.ipVersion;
+        protocol = other.protocol;
+        protocolName = other.protocolName;
+        labelPending = other.labelPending;
+        present = other.present;
+        srcIp = other.srcIp;
+        dstIp = other.dstIp;
+        srcPort = other.srcPort;
+        dstPort = other.dstPort;
+        tcpFlags = other.tcpFlags;
+        tcpSeq = other.tcpSeq;
+        icmpType = other.icmpType;
+        icmpCode = other.icmpCode;
+        icmpId = other.icmpId;
+        ipId = other.ipId;
+        fragmentOffset = other.fragmentOffset;
+        moreFragments = other.moreFragments;
+        flowId = other.flowId;
+        flowFlags = other.flowFlags;
+        return this;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Payload as text with one char per byte, or null when there is none.
+     * Built once per packet and cached until the payload changes.
+     */
+    public String getPayloadText() {
+        if (payloadText == null && payloadView != null) {
+            char[] chars = new char[payloadLength];
+            for (int i = 0; i < payloadLength; i++) {
+                chars[i] = (char) (payloadView.get(payloadOffset + i) & 0xFF);
+            }
+            payloadText = new String(chars);
+        } else if (payloadText == null && payload != null) {
+            payloadText = new String(payload, payloadOffset, payloadLength, StandardCharsets.ISO_8859_1);
+        }
+        return payloadText;
+    }
+
+    /**
+     * Hash of the protocol and both address/port endpoints that does not depend on
+     * direction, so a request and its reply hash the same. Absent fields hash as -1.
+     */
+    public int flowHash() {
+        long a = ((getSrcIp() & 0xFFFFFFFFL) << 16) ^ (getSrcPort() & 0xFFFF);
+        long b = ((getDstIp() & 0xFFFFFFFFL) << 16) ^ (getDstPort() & 0xFFFF);
+        long h = Math.min(a, b) * 0x9E3779B97F4A7C15L + Math.max(a, b) + getProtocol();
+        // fmix64 from MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Fills {@code record} from the map form. "data" is used as the payload, or
+     * "payload" when there is no "data". A missing port reads as 0, which is what
+     * the map-based rule engine assumed.
+     *
+     * @return {@code record}, for chaining
+     */
+    public static PacketRecord fromMap(Map<String, String> packet, PacketRecord record) {
+        record.clear();
+        record.setTimestampNanos(System.currentTimeMillis() * 1_000_000L);
+        String name = packet.get("protocol");
+        if (name != null) {
+            record.setProtocol(protocolNumber(name));
+            record.setProtocolName(name);
+        }
+        long ip = parseIpv4(packet.get("srcIP"));
+        if (ip >= 0) record.setSrcIp((int) ip);
+        ip = parseIpv4(packet.get("destIP"));
+        if (ip >= 0) record.setDstIp((int) ip);
+
+        int port = parsePort(packet.getOrDefault("srcPort", "0"));
+        if (port >= 0) record.setSrcPort(port);
+        port = parsePort(packet.getOrDefault("destPort", "0"));
+        if (port >= 0) record.setDstPort(port);
+
+        String flags = packet.containsKey("flags") ? packet.get("flags") : packet.get("tcpFlags");
+        if (flags != null) record.setTcpFlags(parseTcpFlags(flags));
+
+        int value = parseNumber(packet.get("itype"));
+        if (value >= 0 && value <= 0xFF) record.setIcmpType(value);
+        value = parseNumber(packet.get("icode"));
+        if (value >= 0 && value <= 0xFF) record.setIcmpCode(value);
+        value = parseNumber(packet.get("icmp_id"));
+        if (value >= 0 && value <= 0xFFFF) record.setIcmpId(value);
+
+        String data = packet.get("data");
+        record.setPayloadText(data != null ? data : packet.get("payload"));
+        return record;
+    }
+
+    /**
+     * Builds the map form of this record, for alerts, logs and callers that have
+     * not moved to records yet.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> packet = new HashMap<>();
+        packet.put("protocol", getProtocolName());
+        if ((present & HAS_SRC_IP) != 0) packet.put("srcIP", formatIpv4(srcIp));
+        if ((present & HAS_DST_IP) != 0) packet.put("destIP", formatIpv4(dstIp));
+        if ((present & HAS_SRC_PORT) != 0) packet.put("srcPort", String.valueOf(getSrcPort()));
+        if ((present & HAS_DST_PORT) != 0) packet.put("destPort", String.valueOf(getDstPort()));
+        if ((present & HAS_TCP_FLAGS) != 0 && tcpFlags != 0) packet.put("flags", formatTcpFlags(tcpFlags));
+        if ((present & HAS_ICMP_TYPE) != 0) packet.put("itype", String.valueOf(getIcmpType()));
+        if ((present & HAS_ICMP_CODE) != 0) packet.put("icode", String.valueOf(getIcmpCode()));
+        if ((present & HAS_ICMP_ID) != 0) packet.put("icmp_id", String.valueOf(getIcmpId()));
+        if (hasPayload()) packet.put("data", getPayloadText());
+        return packet;
+    }
+
+    /** IP protocol number for a protocol label; application protocols map to TCP. */
+    public static int protocolNumber(String name) {
+        switch (name.toUpperCase()) {
+            case "TCP":
+            case "HTTP":
+            case "HTTPS":
+                return PROTO_TCP;
+            case "UDP":
+                return PROTO_UDP;
+            case "ICMP":
+                return PROTO_ICMP;
+            default:
+                return PROTO_UNKNOWN;
+        }
+    }
+
+    /**
+     * Parses flag letters such as "SA" (S, A, F, R, P, U) into TCP flag bits.
+     */
+    public static int parseTcpFlags(String flags) {
+        int bits = 0;
+        for (int i = 0; i < flags.length(); i++) {
+            switch (flags.charAt(i)) {
+                case 'F': bits |= TCP_FIN; break;
+                case 'S': bits |= TCP_SYN; break;
+                case 'R': bits |= TCP_RST; break;
+                case 'P': bits |= TCP_PSH; break;
+                case 'A': bits |= TCP_ACK; break;
+                case 'U': bits |= TCP_URG; break;
+                default: break;
+            }
+        }
+        return bits;
+    }
+
+    /** Flag letters in the order PacketParser writes them (S, A, F, R, P, U). */
+    public static String formatTcpFlags(int bits) {
+        StringBuilder flags = new StringBuilder(6);
+        if ((bits & TCP_SYN) != 0) flags.append('S');
+        if ((bits & TCP_ACK) != 0) flags.append('A');
+        if ((bits & TCP_FIN) != 0) flags.append('F');
+        if ((bits & TCP_RST) != 0) flags.append('R');
+        if ((bits & TCP_PSH) != 0) flags.append('P');
+        if ((bits & TCP_URG) != 0) flags.append('U');
+        return flags.toString();
+    }
+
+    /**
+     * Parses a dotted IPv4 address into an unsigned 32-bit value, or returns -1.
+     */
+    public static long parseIpv4(String ip) {
+        if (ip == null) return -1;
+        long result = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) return -1;
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || octet < 0) return -1;
+        return (result << 8) | octet;
+    }
+
+    public static String formatIpv4(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
+
+    /**
+     * Parses a packet port such as "443" or "443 (https)", or returns {@link #ABSENT}.
+     */
+    public static int parsePort(String port) {
+        if (port == null) return ABSENT;
+        int i = 0;
+        int n = port.length();
+        while (i < n && port.charAt(i) == ' ') i++;
+        int value = 0;
+        int digits = 0;
+        while (i < n && port.charAt(i) >= '0' && port.charAt(i) <= '9') {
+            value = value * 10 + (port.charAt(i) - '0');
+            if (value > 65535) return ABSENT;
+            digits++;
+            i++;
+        }
+        while (i < n && port.charAt(i) == ' ') i++;
+        if (digits == 0 || (i < n && port.charAt(i) != '(')) return ABSENT;
+        return value;
+    }
+
+    private static int parseNumber(String value) {
+        if (value == null) return -1;
+        try {
+            int number = Integer.parseInt(value.trim());
+            return number >= 0 ? number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PacketRecord" + toMap();
+    }
+}
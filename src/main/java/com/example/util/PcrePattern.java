@@ -0,0 +1,301 @@
+package com.example.util;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A Snort {@code pcre:"/.../flags"} option compiled once at rule load.
+ *
+ * Supported modifiers:
+ * <ul>
+ *   <li>i, s, m, x - the usual Perl flags</li>
+ *   <li>A - anchored at the start of the buffer</li>
+ *   <li>E - {@code $} only matches at the very end of the buffer</li>
+ *   <li>G - inverts the greediness of every quantifier</li>
+ *   <li>R - search relative to the end of the rule's content match</li>
+ *   <li>O - no match limit for this pattern</li>
+ *   <li>U, I, P, H, D, M, C, K, S, Y, B - buffer selectors; packets here only
+ *       carry the raw payload, so these all search it</li>
+ * </ul>
+ *
+ * Java's regex engine backtracks without limit, so every match runs over a
+ * {@link CharSequence} that counts character reads and gives up once
+ * {@link #getMatchLimit()} is reached. A pattern that hits the limit is
+ * treated as not matching.
+ */
+public final class PcrePattern {
+    private static final Logger LOGGER = Logger.getLogger(PcrePattern.class.getName());
+    private static final String BUFFER_MODIFIERS = "UIPHDMCKSYB";
+
+    private static volatile long matchLimit = 1_000_000L;
+
+    private final String source;
+    private final Pattern pattern;
+    private final boolean negated;
+    private final boolean anchored;
+    private final boolean relative;
+    private final boolean unlimited;
+    private final String bufferModifiers;
+    private final LongAdder limitHits = new LongAdder();
+    private volatile boolean limitReported;
+
+    private PcrePattern(String source, Pattern pattern, boolean negated, boolean anchored,
+                        boolean relative, boolean unlimited, String bufferModifiers) {
+        this.source = source;
+        this.pattern = pattern;
+        this.negated = negated;
+        this.anchored = anchored;
+        this.relative = relative;
+        this.unlimited = unlimited;
+        this.bufferModifiers = bufferModifiers;
+    }
+
+    /**
+     * Parses and compiles a pcre option value such as {@code /^USER\s+w0rm/ims}
+     * or {@code !/foo/i}.
+     *
+     * @throws PatternSyntaxException if the value is not a delimited pattern, uses an
+     *         unknown modifier or the regex itself does not compile
+     */
+    public static PcrePattern compile(String value) {
+        String text = value.trim();
+        boolean negated = text.startsWith("!");
+        if (negated) {
+            text = text.substring(1).trim();
+        }
+        if (text.length() >= 2 && text.charAt(0) == '"' && text.charAt(text.length() - 1) == '"') {
+            text = text.substring(1, text.length() - 1);
+        }
+        int end = text.lastIndexOf('/');
+        if (!text.startsWith("/") || end <= 0) {
+            throw new PatternSyntaxException("PCRE must be written as /pattern/flags", value, 0);
+        }
+        String regex = text.substring(1, end);
+        String modifiers = text.substring(end + 1);
+
+        int flags = 0;
+        boolean anchored = false;
+        boolean dollarEndOnly = false;
+        boolean ungreedy = false;
+        boolean relative = false;
+        boolean unlimited = false;
+        StringBuilder buffers = new StringBuilder();
+        for (int i = 0; i < modifiers.length(); i++) {
+            char c = modifiers.charAt(i);
+            switch (c) {
+                case 'i': flags |= Pattern.CASE_INSENSITIVE; break;
+                case 's': flags |= Pattern.DOTALL; break;
+                case 'm': flags |= Pattern.MULTILINE; break;
+                case 'x': flags |= Pattern.COMMENTS; break;
+                case 'A': anchored = true; break;
+                case 'E': dollarEndOnly = true; break;
+                case 'G': ungreedy = true; break;
+                case 'R': relative = true; break;
+                case 'O': unlimited = true; break;
+                default:
+                    if (BUFFER_MODIFIERS.indexOf(c) < 0) {
+                        throw new PatternSyntaxException("Unknown PCRE modifier '" + c + "'", value, end + 1 + i);
+                    }
+                    buffers.append(c);
+            }
+        }
+        regex = rewrite(regex, ungreedy, dollarEndOnly && (flags & Pattern.MULTILINE) == 0);
+        return new PcrePattern(text, Pattern.compile(regex, flags), negated, anchored,
+                               relative, unlimited, buffers.toString());
+    }
+
+    /**
+     * Translates PCRE syntax that java.util.regex reads differently. A {@code {} that
+     * does not start a quantifier is a literal in PCRE but an error in Java, so it is
+     * escaped. The G and E modifiers have no Java flag: G toggles the lazy marker
+     * after each quantifier and E turns {@code $} into {@code \z}.
+     */
+    private static String rewrite(String regex, boolean ungreedy, boolean dollarEndOnly) {
+        StringBuilder out = new StringBuilder(regex.length() + 8);
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                out.append(c).append(regex.charAt(++i));
+                continue;
+            }
+            if (inClass) {
+                if (c == ']') inClass = false;
+                out.append(c);
+                continue;
+            }
+            if (c == '[') {
+                inClass = true;
+                out.append(c);
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') out.append(regex.charAt(++i));
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') out.append(regex.charAt(++i));
+                continue;
+            }
+            if (c == '$' && dollarEndOnly) {
+                out.append("\\z");
+                continue;
+            }
+            int quantifierEnd = -1;
+            if (c == '*' || c == '+' || (c == '?' && i > 0 && regex.charAt(i - 1) != '(')) {
+                quantifierEnd = i;
+            } else if (c == '{') {
+                int close = regex.indexOf('}', i);
+                if (close > 0 && regex.substring(i + 1, close).matches("\\d+(,\\d*)?")) {
+                    quantifierEnd = close;
+                } else {
+                    out.append("\\{");
+                    continue;
+                }
+            }
+            if (quantifierEnd < 0 || !ungreedy) {
+                out.append(c);
+                continue;
+            }
+            out.append(regex, i, quantifierEnd + 1);
+            i = quantifierEnd;
+            char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+            if (next == '?') {
+                i++;            // lazy becomes greedy
+            } else if (next != '+') {
+                out.append('?'); // greedy becomes lazy, possessive stays as is
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Searches {@code text} from {@code from}. Honours the A and ! modifiers and the
+     * match limit.
+     */
+    public boolean matches(CharSequence text, int from) {
+        if (text == null || from > text.length()) {
+            return negated;
+        }
+        boolean found;
+        try {
+            CharSequence input = unlimited ? text : new BoundedCharSequence(text, matchLimit);
+            Matcher matcher = pattern.matcher(input);
+            if (from > 0) {
+                matcher.region(from, text.length());
+            }
+            found = anchored ? matcher.lookingAt() : matcher.find();
+        } catch (MatchLimitExceeded e) {
+            limitHits.increment();
+            if (!limitReported) {
+                limitReported = true;
+                LOGGER.log(Level.WARNING, "PCRE match limit reached for /" + pattern.pattern() + "/");
+            }
+            return false;
+        }
+        return found != negated;
+    }
+
+    public boolean matches(CharSequence text) {
+        return matches(text, 0);
+    }
+
+    /**
+     * Matches against both text fields of a packet. A positive pattern has to be
+     * found in either field, a negated one in neither.
+     */
+    public boolean matches(CharSequence data, int dataFrom, CharSequence payload, int payloadFrom) {
+        boolean inData = matches(data, dataFrom);
+        boolean inPayload = matches(payload, payloadFrom);
+        return negated ? inData && inPayload : inData || inPayload;
+    }
+
+    /** The option as written in the rule, without the surrounding quotes. */
+    public String getSource() {
+        return source;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public boolean isNegated() {
+        return negated;
+    }
+
+    public boolean isAnchored() {
+        return anchored;
+    }
+
+    /** True for the R modifier: search after the previous content match. */
+    public boolean isRelative() {
+        return relative;
+    }
+
+    /** Buffer selector modifiers (U, B, H, ...) as written in the rule. */
+    public String getBufferModifiers() {
+        return bufferModifiers;
+    }
+
+    /** Number of matches abandoned because they reached the match limit. */
+    public long getLimitHits() {
+        return limitHits.sum();
+    }
+
+    /** Maximum number of character reads a single match may perform. */
+    public static long getMatchLimit() {
+        return matchLimit;
+    }
+
+    public static void setMatchLimit(long limit) {
+        matchLimit = limit;
+    }
+
+    @Override
+    public String toString() {
+        return (negated ? "!" : "") + source;
+    }
+
+    /**
+     * Thrown from {@link BoundedCharSequence#charAt} to unwind a runaway match.
+     * Stack traces are disabled since it is only used for control flow.
+     */
+    private static final class MatchLimitExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        MatchLimitExceeded() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class BoundedCharSequence implements CharSequence {
+        private final CharSequence text;
+        private long budget;
+
+        BoundedCharSequence(CharSequence text, long budget) {
+            this.text = text;
+            this.budget = budget;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--budget < 0) {
+                throw new MatchLimitExceeded();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BoundedCharSequence(text.subSequence(start, end), budget);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes captured frames straight from their bytes. Header fields are read at
+ * fixed offsets and the payload is recorded as an offset/length view into the
+ * caller's buffer, so nothing is allocated or copied per frame. This is the
+ * alternative to {@link PacketDecoder} for readers that can hand out raw frames.
+ *
+ * Link layers: Ethernet (with stacked 802.1Q/802.1ad tags), raw IP, Linux
+ * cooked capture and BSD loopback. Network layers: IPv4 and IPv6 (extension
+ * headers are skipped). Transports: TCP, UDP, ICMP and ICMPv6.
+ *
+ * The record keeps IPv4 addresses only; IPv6 packets get their ports, flags and
+ * payload decoded but no addresses, so only rules with "any" networks apply.
+ * IPv4 fragments are not decoded past the IP header: the record is marked as a
+ * fragment and its payload is the fragment's slice of the IP payload, to be
+ * reassembled with {@link #decodeDatagram}.
+ */
+public final class RawPacketDecoder {
+    /** libpcap link-layer header types (DLT_*) */
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+    public static final int LINKTYPE_IPV6 = 229;
+    private static final int LINKTYPE_RAW_OPENBSD = 12;
+    private static final int LINKTYPE_RAW_ALT = 14;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+
+    private static final int PROTO_ICMPV6 = 58;
+
+    private RawPacketDecoder() {}
+
+    /**
+     * Decodes {@code length} bytes of {@code frame} starting at {@code offset}.
+     * The record's payload points into {@code frame}, which must not be reused
+     * while the record is in use.
+     *
+     * @return false if the frame is not IP or is truncated; {@code record} is then unspecified
+     */
+    public static boolean decode(byte[] frame, int offset, int length, int linkType,
+                                 long timestampNanos, PacketRecord record) {
+        return decode(ByteBuffer.wrap(frame), offset, length, linkType, timestampNanos, record);
+    }
+
+    /**
+     * Decodes {@code length} bytes of {@code frame} starting at absolute index
+     * {@code offset}. Works for heap, direct and memory-mapped buffers; the
+     * buffer's position, limit and byte order are ignored.
+     *
+     * @return false if the frame is not IP or is truncated; {@code record} is then unspecified
+     */
+    public static boolean decode(ByteBuffer frame, int offset, int length, int linkType,
+                                 long timestampNanos, PacketRecord record) {
+        record.clear();
+        record.setTimestampNanos(timestampNanos);
+        int end = offset + length;
+        int at = offset;
+        int etherType;
+
+        switch (linkType) {
+            case LINKTYPE_ETHERNET:
+                if (end - at < 14) return false;
+                etherType = u16(frame, at + 12);
+                at += 14;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && end - at >= 4) {
+                    etherType = u16(frame, at + 2);
+                    at += 4;
+                }
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (end - at < 16) return false;
+                etherType = u16(frame, at + 14);
+                at += 16;
+                break;
+            case LINKTYPE_NULL:
+                if (end - at < 4) return false;
+                // Address family in host byte order: 2 is AF_INET, IPv6 varies by OS
+                int family = frame.get(at) == 0 ? frame.get(at + 3) : frame.get(at);
+                etherType = family == 2 ? ETHERTYPE_IPV4 : ETHERTYPE_IPV6;
+                at += 4;
+                break;
+            case LINKTYPE_RAW:
+            case LINKTYPE_RAW_OPENBSD:
+            case LINKTYPE_RAW_ALT:
+            case LINKTYPE_IPV4:
+            case LINKTYPE_IPV6:
+                if (end - at < 1) return false;
+                etherType = (u8(frame, at) >>> 4) == 6 ? ETHERTYPE_IPV6 : ETHERTYPE_IPV4;
+                break;
+            default:
+                return false;
+        }
+
+        if (etherType == ETHERTYPE_IPV4) {
+            return decodeIpv4(frame, at, end, record);
+        } else if (etherType == ETHERTYPE_IPV6) {
+            return decodeIpv6(frame, at, end, record);
+        }
+        return false;
+    }
+
+    private static boolean decodeIpv4(ByteBuffer frame, int at, int end, PacketRecord record) {
+        if (end - at < 20 || (u8(frame, at) >>> 4) != 4) return false;
+        int headerLength = (u8(frame, at) & 0x0F) * 4;
+        int totalLength = u16(frame, at + 2);
+        if (headerLength < 20 || end - at < headerLength) return false;
+        // Ethernet pads short frames; the IP total length bounds the real packet
+        if (totalLength >= headerLength && at + totalLength < end) {
+            end = at + totalLength;
+        }
+        int protocol = u8(frame, at + 9);
+        record.setIpVersion(4);
+        record.setProtocol(protocol);
+        record.setSrcIp(s32(frame, at + 12));
+        record.setDstIp(s32(frame, at + 16));
+
+        int fragment = u16(frame, at + 6);
+        boolean moreFragments = (fragment & 0x2000) != 0;
+        int fragmentOffset = (fragment & 0x1FFF) * 8;
+        int ipId = u16(frame, at + 4);
+        at += headerLength;
+        if (moreFragments || fragmentOffset != 0) {
+            // Even the first fragment may stop inside the transport header
+            record.setFragment(ipId, fragmentOffset, moreFragments);
+            record.setPayload(frame, at, end - at);
+            return true;
+        }
+        return decodeTransport(frame, at, end, protocol, record);
+    }
+
+    /**
+     * Decodes the transport header and payload of a reassembled IPv4 datagram into
+     * {@code record}, which keeps its IP fields and loses its fragment fields. The
+     * payload points into {@code datagram}.
+     *
+     * @param length length of the IP payload held at the start of {@code datagram}
+     * @return false if the transport header is truncated
+     */
+    public static boolean decodeDatagram(byte[] datagram, int length, PacketRecord record) {
+        record.clearFragment();
+        return decodeTransport(ByteBuffer.wrap(datagram), 0, length, record.getProtocol(), record);
+    }
+
+    private static boolean decodeIpv6(ByteBuffer frame, int at, int end, PacketRecord record) {
+        if (end - at < 40 || (u8(frame, at) >>> 4) != 6) return false;
+        int payloadLength = u16(frame, at + 4);
+        int next = u8(frame, at + 6);
+        at += 40;
+        if (payloadLength > 0 && at + payloadLength < end) {
+            end = at + payloadLength;
+        }
+        record.setIpVersion(6);
+
+        // Hop-by-hop, routing, fragment and destination options headers
+        while (next == 0 || next == 43 || next == 44 || next == 60) {
+            if (end - at < 8) return false;
+            int headerLength = next == 44 ? 8 : (u8(frame, at + 1) + 1) * 8;
+            if (next == 44 && (u16(frame, at + 2) & 0xFFF8) != 0) {
+                // Non-first fragment: no transport header
+                record.setProtocol(u8(frame, at));
+                record.setPayload(frame, at + 8, end - at - 8);
+                return true;
+            }
+            next = u8(frame, at);
+            at += headerLength;
+        }
+        record.setProtocol(next);
+        return decodeTransport(frame, at, end, next, record);
+    }
+
+    private static boolean decodeTransport(ByteBuffer frame, int at, int end, int protocol,
+                                           PacketRecord record) {
+        switch (protocol) {
+            case PacketRecord.PROTO_TCP: {
+                if (end - at < 20) return false;
+                record.setSrcPort(u16(frame, at));
+                record.setDstPort(u16(frame, at + 2));
+                record.setTcpSeq(s32(frame, at + 4));
+                record.setTcpFlags(u8(frame, at + 13) & 0x3F);
+                record.deferProtocolLabel();
+                int headerLength = (u8(frame, at + 12) >>> 4) * 4;
+                if (headerLength < 20 || end - at < headerLength) return false;
+                at += headerLength;
+                break;
+            }
+            case PacketRecord.PROTO_UDP:
+                if (end - at < 8) return false;
+                record.setSrcPort(u16(frame, at));
+                record.setDstPort(u16(frame, at + 2));
+                at += 8;
+                break;
+            case PacketRecord.PROTO_ICMP:
+            case PROTO_ICMPV6: {
+                if (end - at < 4) return false;
+                int type = u8(frame, at);
+                record.setIcmpType(type);
+                record.setIcmpCode(u8(frame, at + 1));
+                boolean echo = protocol == PacketRecord.PROTO_ICMP
+                    ? type == 0 || type == 8
+                    : type == 128 || type == 129;
+                if (echo && end - at >= 8) {
+                    record.setIcmpId(u16(frame, at + 4));
+                }
+                at += Math.min(8, end - at);
+                break;
+            }
+            default:
+                break;
+        }
+        record.setPayload(frame, at, end - at);
+        return true;
+    }
+
+    private static int u8(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return ((buffer.get(index) & 0xFF) << 8) | (buffer.get(index + 1) & 0xFF);
+    }
+
+    private static int s32(ByteBuffer buffer, int index) {
+        return (u16(buffer, index) << 16) | u16(buffer, index + 2);
+    }
+}
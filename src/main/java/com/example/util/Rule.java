@@ -2,8 +2,7 @@ package com.example.util;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -18,6 +17,8 @@ public class Rule {
     private String destinationPort;
     private String direction;
     private Map<String, String> options;
+    private PcrePattern pcrePattern;
+    private String pcreSource;  // option value pcrePattern was compiled from
     
     // Variables prédéfinies pour les réseaux
     private static final String HOME_NET = "192.168.0.0/16";  // Exemple, à configurer selon le réseau
@@ -212,32 +213,16 @@ public class Rule {
     }
 
     private boolean matchesPcre(Map<String, String> packetData) {
-        String pcre = this.options.get("pcre");
-        if (pcre == null) {
+        if (this.options.get("pcre") == null) {
             return true;
         }
 
-        try {
-            // Extraire le motif et les options de l'expression PCRE
-            String pattern = pcre.substring(1, pcre.lastIndexOf('/'));
-            String options = pcre.substring(pcre.lastIndexOf('/') + 1);
-            
-            int flags = 0;
-            if (options.contains("i")) flags |= Pattern.CASE_INSENSITIVE;
-            if (options.contains("s")) flags |= Pattern.DOTALL;
-            if (options.contains("m")) flags |= Pattern.MULTILINE;
-            
-            Pattern regex = Pattern.compile(pattern, flags);
-            
-            String data = packetData.get("data");
-            String payload = packetData.get("payload");
-            
-            return (data != null && regex.matcher(data).find()) ||
-                   (payload != null && regex.matcher(payload).find());
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error matching PCRE: " + e.getMessage(), e);
+        // Le motif est compilé une seule fois, au chargement de la règle
+        PcrePattern regex = getPcrePattern();
+        if (regex == null) {
             return false;
         }
+        return regex.matches(packetData.get("data"), 0, packetData.get("payload"), 0);
     }
 
     private boolean matchesNumericComparison(String value, String comparison) {
@@ -381,6 +366,28 @@ public class Rule {
     public String getOption(String key) {
         return this.options.get(key);
     }
+
+    /**
+     * Returns the compiled form of the "pcre" option, compiling it on first use.
+     * Returns null when the rule has no pcre option or when it does not compile;
+     * an invalid pattern is logged once.
+     */
+    public PcrePattern getPcrePattern() {
+        String pcre = this.options.get("pcre");
+        if (pcre == null) {
+            return null;
+        }
+        if (!pcre.equals(pcreSource)) {
+            try {
+                pcrePattern = PcrePattern.compile(pcre);
+            } catch (PatternSyntaxException e) {
+                pcrePattern = null;
+                LOGGER.log(Level.WARNING, "Invalid PCRE in rule " + (id != null ? id : this.options.get("msg")) + ": " + pcre + " (" + e.getDescription() + ")");
+            }
+            pcreSource = pcre;
+        }
+        return pcrePattern;
+    }
     
     @Override
     public String toString() {
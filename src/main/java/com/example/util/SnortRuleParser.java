@@ -29,6 +29,13 @@ public class SnortRuleParser {
         "(?:icode:(\\d+);\\s*)?" +
         ".*?\\)"
     );
+    // pcre may appear anywhere among the options, so it is picked up separately
+    private static final Pattern PCRE_OPTION = Pattern.compile(
+        "pcre:\\s*(!?)\\s*\"((?:[^\"\\\\]|\\\\.)*)\";"
+    );
+
+    // flowbits may appear several times per rule, in any position
+    private static final Pattern FLOWBITS_OPTION = Pattern.compile("flowbits:\\s*([^;]+);");
 
     public List<Rule> parseRules() throws IOException {
         List<Rule> rules = new ArrayList<>();
@@ -93,6 +100,23 @@ public class SnortRuleParser {
                 options.put("content", matcher.group(8));
             }
             
+            // PCRE
+            Matcher pcre = PCRE_OPTION.matcher(line);
+            if (pcre.find()) {
+                options.put("pcre", pcre.group(1) + pcre.group(2));
+            }
+            
+            // Flowbits, every clause kept in rule order: "set,file.zip;noalert"
+            Matcher flowbits = FLOWBITS_OPTION.matcher(line);
+            StringBuilder clauses = new StringBuilder();
+            while (flowbits.find()) {
+                if (clauses.length() > 0) clauses.append(';');
+                clauses.append(flowbits.group(1).trim());
+            }
+            if (clauses.length() > 0) {
+                options.put("flowbits", clauses.toString());
+            }
+            
             // Metadata
             if (matcher.group(9) != null) {
                 options.put("metadata", matcher.group(9));
@@ -131,6 +155,11 @@ public class SnortRuleParser {
             }
             
             rule.setOptions(options);
+
+            // Compile the PCRE now so a bad pattern is reported at load time, not per packet
+            if (options.containsKey("pcre") && rule.getPcrePattern() == null) {
+                return null;
+            }
             return rule;
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Error creating rule from match", e);
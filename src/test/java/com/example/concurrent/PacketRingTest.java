@@ -0,0 +1,93 @@
+package com.example.concurrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.example.util.PacketRecord;
+import org.junit.jupiter.api.Test;
+
+class PacketRingTest {
+
+    /** A ring of 8 slots, filled with packets numbered 0 to 7 by their source port. */
+    private static PacketRing fullRing() {
+        PacketRing ring = new PacketRing(8, WaitStrategy.PARK);
+        ring.setPublishBatch(1, 0);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(offer(ring, i, OverloadPolicy.DROP_NEWEST));
+        }
+        return ring;
+    }
+
+    private static boolean offer(PacketRing ring, int port, OverloadPolicy policy) {
+        PacketRecord record = ring.claim();
+        record.clear();
+        record.setProtocol(PacketRecord.PROTO_UDP);
+        record.setSrcPort(port);
+        return ring.offer(policy);
+    }
+
+    @Test
+    void dropOldestEvictsTheOldestQueuedPacket() {
+        PacketRing ring = fullRing();
+
+        assertTrue(offer(ring, 8, OverloadPolicy.DROP_OLDEST));
+        assertEquals(1, ring.getEvicted());
+        assertEquals(0, ring.getRejected());
+        assertEquals(8, ring.getOccupancy());
+
+        PacketBatch batch = new PacketBatch();
+        assertEquals(8, ring.drainTo(batch, 8));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 1, batch.get(i).getSrcPort());
+        }
+        batch.release();
+    }
+
+    @Test
+    void dropOldestDropsTheNewPacketWhileAConsumerHoldsItsSlot() {
+        PacketRing ring = fullRing();
+        PacketBatch held = new PacketBatch();
+        assertEquals(2, ring.drainTo(held, 2));
+
+        // The slot the producer needs is in the consumer's batch: evicting others frees nothing it can use
+        for (int i = 0; i < 3; i++) {
+            assertFalse(offer(ring, 100 + i, OverloadPolicy.DROP_OLDEST));
+        }
+        assertEquals(3, ring.getRejected());
+        assertEquals(0, ring.getEvicted());
+        assertEquals(6, ring.getOccupancy());
+
+        held.release();
+        assertTrue(offer(ring, 8, OverloadPolicy.DROP_OLDEST));
+        assertTrue(offer(ring, 9, OverloadPolicy.DROP_OLDEST));
+        assertEquals(0, ring.getEvicted());
+        assertEquals(8, ring.getOccupancy());
+
+        PacketBatch batch = new PacketBatch();
+        assertEquals(8, ring.drainTo(batch, 8));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i + 2, batch.get(i).getSrcPort());
+        }
+        batch.release();
+    }
+
+    @Test
+    void sampledControlPacketDoesNotEvictWhileAConsumerHoldsItsSlot() {
+        PacketRing ring = fullRing();
+        long taken = ring.next();
+        assertEquals(0, taken);
+
+        // UDP without payload counts as control
+        assertFalse(offer(ring, 100, OverloadPolicy.SAMPLED));
+        assertEquals(1, ring.getRejected());
+        assertEquals(0, ring.getEvicted());
+        assertEquals(7, ring.getOccupancy());
+
+        ring.release(taken);
+        assertTrue(offer(ring, 8, OverloadPolicy.SAMPLED));
+        assertTrue(offer(ring, 9, OverloadPolicy.SAMPLED));
+        assertEquals(1, ring.getEvicted());
+        assertEquals(8, ring.getOccupancy());
+    }
+}